@@ -0,0 +1,285 @@
+package ca.mcgill.distsys.hbase96.indexcoprocessorsinmem;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Mutation;
+import org.apache.hadoop.hbase.client.Put;
+
+import ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.pluggableIndex.IndexDelta;
+import ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.pluggableIndex.commons.ByteArrayWrapper;
+
+/**
+ * Computes the index updates of a batch of mutations with a compiled
+ * {@link IndexUpdatePlan}. Mutations are applied in batch order to the
+ * state of their row; for every index whose value changes, a delta is
+ * recorded. Deltas of the same row and index are coalesced, so that only the
+ * net change of the batch (first old value to last new value) reaches the
+ * index.
+ */
+public class BatchIndexUpdate {
+
+	private final IndexUpdatePlan plan;
+	// slot -> deltas of the index
+	private final List<IndexDelta>[] deltas;
+	// slot -> position of the delta of each row in the deltas of the index
+	private final HashMap<ByteArrayWrapper, Integer>[] deltaPositions;
+	// per mutation scratch: the slots it touches and their old values; a
+	// slot is marked with the number of the mutation that touched it last
+	private final int[] slotMarks;
+	private final int[] touchedSlots;
+	private final byte[][] oldValues;
+	private final byte[][][] oldIncludedValues;
+	private int touchedCount;
+	private int mutationCount = 0;
+
+	@SuppressWarnings("unchecked")
+	public BatchIndexUpdate(IndexUpdatePlan plan) {
+		this.plan = plan;
+		this.deltas = new List[plan.getIndexCount()];
+		this.deltaPositions = new HashMap[plan.getIndexCount()];
+		this.slotMarks = new int[plan.getIndexCount()];
+		this.touchedSlots = new int[plan.getIndexCount()];
+		this.oldValues = new byte[plan.getIndexCount()][];
+		this.oldIncludedValues = new byte[plan.getIndexCount()][][];
+	}
+
+	public IndexUpdatePlan getPlan() {
+		return plan;
+	}
+
+	/**
+	 * Marks the indexes whose value may be changed by the mutation, and
+	 * returns whether there is any.
+	 */
+	public boolean markAffectedIndexes(Mutation mutation, boolean[] affected) {
+		boolean found = false;
+		if (mutation instanceof Delete && mutation.isEmpty()) {
+			// DELETE ROW
+			for (int slot = 0; slot < affected.length; slot++) {
+				affected[slot] = true;
+			}
+			return affected.length > 0;
+		}
+		for (Map.Entry<byte[], List<Cell>> entry : mutation.getFamilyCellMap()
+				.entrySet()) {
+			int familyPos = plan.findFamily(entry.getKey());
+			if (familyPos < 0) {
+				continue;
+			}
+			for (Cell cell : entry.getValue()) {
+				if (mutation instanceof Delete
+						&& cell.getQualifierLength() == 0) {
+					// DELETING ENTIRE COLUMN FAMILY
+					for (int ordinal : plan.getFamilyColumns(familyPos)) {
+						found |= mark(ordinal, affected);
+					}
+				} else {
+					int ordinal = plan.findColumn(familyPos,
+							cell.getQualifierArray(), cell.getQualifierOffset(),
+							cell.getQualifierLength());
+					if (ordinal >= 0) {
+						found |= mark(ordinal, affected);
+					}
+				}
+			}
+		}
+		return found;
+	}
+
+	private boolean mark(int ordinal, boolean[] affected) {
+		for (int slot : plan.getDependentIndexes(ordinal)) {
+			affected[slot] = true;
+		}
+		return true;
+	}
+
+	// Apply the indexed cells of the put to the row state
+	public void applyPut(Put put, IndexedRowState rowState) {
+		startMutation();
+		for (Map.Entry<byte[], List<Cell>> entry : put.getFamilyCellMap()
+				.entrySet()) {
+			int familyPos = plan.findFamily(entry.getKey());
+			if (familyPos < 0) {
+				continue;
+			}
+			for (Cell cell : entry.getValue()) {
+				int ordinal = plan.findColumn(familyPos,
+						cell.getQualifierArray(), cell.getQualifierOffset(),
+						cell.getQualifierLength());
+				if (ordinal >= 0) {
+					touch(ordinal, rowState);
+					rowState.put(ordinal, CellUtil.cloneValue(cell));
+				}
+			}
+		}
+		endMutation(put.getRow(), rowState);
+	}
+
+	// Remove the indexed columns deleted by the delete from the row state
+	public void applyDelete(Delete delete, IndexedRowState rowState) {
+		startMutation();
+		if (delete.isEmpty()) {
+			// DELETE ROW
+			for (int ordinal = 0; ordinal < plan.getColumnCount(); ordinal++) {
+				deleteColumn(ordinal, rowState);
+			}
+		} else {
+			for (Map.Entry<byte[], List<Cell>> entry : delete
+					.getFamilyCellMap().entrySet()) {
+				int familyPos = plan.findFamily(entry.getKey());
+				if (familyPos < 0) {
+					continue;
+				}
+				for (Cell cell : entry.getValue()) {
+					if (cell.getQualifierLength() == 0) {
+						// DELETING ENTIRE COLUMN FAMILY
+						for (int ordinal : plan.getFamilyColumns(familyPos)) {
+							deleteColumn(ordinal, rowState);
+						}
+					} else {
+						int ordinal = plan.findColumn(familyPos,
+								cell.getQualifierArray(),
+								cell.getQualifierOffset(),
+								cell.getQualifierLength());
+						if (ordinal >= 0) {
+							deleteColumn(ordinal, rowState);
+						}
+					}
+				}
+			}
+		}
+		endMutation(delete.getRow(), rowState);
+	}
+
+	private void deleteColumn(int ordinal, IndexedRowState rowState) {
+		if (rowState.get(ordinal) != null) {
+			touch(ordinal, rowState);
+			rowState.delete(ordinal);
+		}
+	}
+
+	private void startMutation() {
+		mutationCount++;
+		touchedCount = 0;
+	}
+
+	// Remember the value of the indexes of the column before it changes
+	private void touch(int ordinal, IndexedRowState rowState) {
+		for (int slot : plan.getDependentIndexes(ordinal)) {
+			if (slotMarks[slot] != mutationCount) {
+				slotMarks[slot] = mutationCount;
+				touchedSlots[touchedCount++] = slot;
+				oldValues[slot] = rowState.getIndexedValue(slot);
+				oldIncludedValues[slot] = rowState.getIncludedValues(slot);
+			}
+		}
+	}
+
+	private void endMutation(byte[] row, IndexedRowState rowState) {
+		for (int i = 0; i < touchedCount; i++) {
+			int slot = touchedSlots[i];
+			byte[] concatOldValue = oldValues[slot];
+			byte[] concatNewValue = rowState.getIndexedValue(slot);
+			byte[][] includedValues = rowState.getIncludedValues(slot);
+			boolean includedChanged = includedValues != null
+					&& concatNewValue != null
+					&& !Arrays.deepEquals(oldIncludedValues[slot],
+							includedValues);
+			oldValues[slot] = null;
+			oldIncludedValues[slot] = null;
+			if (includedChanged
+					|| !Arrays.equals(concatOldValue, concatNewValue)) {
+				addDelta(slot, row, concatOldValue, concatNewValue,
+						includedValues);
+			}
+		}
+	}
+
+	private void addDelta(int slot, byte[] row, byte[] oldValue,
+			byte[] newValue, byte[][] includedValues) {
+		if (deltas[slot] == null) {
+			deltas[slot] = new ArrayList<IndexDelta>();
+			deltaPositions[slot] = new HashMap<ByteArrayWrapper, Integer>();
+		}
+		ByteArrayWrapper key = new ByteArrayWrapper(row);
+		Integer pos = deltaPositions[slot].get(key);
+		if (pos == null) {
+			deltaPositions[slot].put(key, deltas[slot].size());
+			deltas[slot].add(new IndexDelta(row, oldValue, newValue,
+					includedValues));
+		} else {
+			// The row already changed in this batch: keep its first old value.
+			// If the row is back to it, the delta is a no-op and is dropped
+			// by getDeltas().
+			IndexDelta previous = deltas[slot].get(pos);
+			deltas[slot].set(pos, new IndexDelta(row,
+					previous.getOldValue(), newValue, includedValues));
+		}
+	}
+
+	// Deltas of covering indexes also refresh the included values, which
+	// are not compared here: such deltas are kept
+	private static boolean isNoOp(IndexDelta delta) {
+		return delta.getIncludedValues() == null
+				&& Arrays.equals(delta.getOldValue(), delta.getNewValue());
+	}
+
+	/**
+	 * Records the changes of the given indexes between two states of a row,
+	 * e.g. when the row was changed by something else than a mutation of the
+	 * batch.
+	 */
+	public void addStateChange(byte[] row, IndexedRowState oldState,
+			IndexedRowState newState, boolean[] affectedIndexes) {
+		startMutation();
+		for (int slot = 0; slot < affectedIndexes.length; slot++) {
+			if (affectedIndexes[slot]) {
+				slotMarks[slot] = mutationCount;
+				touchedSlots[touchedCount++] = slot;
+				oldValues[slot] = oldState.getIndexedValue(slot);
+				oldIncludedValues[slot] = oldState.getIncludedValues(slot);
+			}
+		}
+		endMutation(row, newState);
+	}
+
+	public boolean isEmpty() {
+		for (List<IndexDelta> indexDeltas : deltas) {
+			if (indexDeltas != null) {
+				for (IndexDelta delta : indexDeltas) {
+					if (!isNoOp(delta)) {
+						return false;
+					}
+				}
+			}
+		}
+		return true;
+	}
+
+	// The net deltas of the batch, keyed by indexed column
+	public HashMap<String, List<IndexDelta>> getDeltas() {
+		HashMap<String, List<IndexDelta>> result = new HashMap<String, List<IndexDelta>>();
+		for (int slot = 0; slot < deltas.length; slot++) {
+			if (deltas[slot] != null) {
+				List<IndexDelta> indexDeltas = new ArrayList<IndexDelta>(
+						deltas[slot].size());
+				for (IndexDelta delta : deltas[slot]) {
+					if (!isNoOp(delta)) {
+						indexDeltas.add(delta);
+					}
+				}
+				if (!indexDeltas.isEmpty()) {
+					result.put(plan.getIndexKey(slot), indexDeltas);
+				}
+			}
+		}
+		return result;
+	}
+}
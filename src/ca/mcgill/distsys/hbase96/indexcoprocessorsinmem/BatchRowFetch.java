@@ -0,0 +1,117 @@
+package ca.mcgill.distsys.hbase96.indexcoprocessorsinmem;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.regionserver.HRegion;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import ca.mcgill.distsys.hbase96.indexcommonsinmem.proto.Column;
+
+/**
+ * The candidate rows of the queries of a batch, read from the region once
+ * for all of them. A first pass of the queries records the rows each of
+ * them would read without a filter, and their columns; fetch() reads the
+ * union in a single pass of a SortedRowScanner; the second pass of the
+ * queries then takes its candidate rows from memory. Rows read with a
+ * filter on non indexed columns are not shared.
+ */
+public class BatchRowFetch {
+
+	private final NavigableSet<byte[]> rows = new TreeSet<byte[]>(
+			Bytes.BYTES_COMPARATOR);
+	// union of the columns of the queries, by family:qualifier
+	private final Map<String, Column> columns = new LinkedHashMap<String, Column>();
+	// a query reads all the columns of its rows
+	private boolean allColumns = false;
+	// cells of the rows read, null until fetched
+	private TreeMap<byte[], List<Cell>> cells;
+
+	public boolean isFetched() {
+		return cells != null;
+	}
+
+	// Collect pass: the rows a query would read, and its columns
+	public void add(Set<byte[]> candidateRows, List<Column> columnList) {
+		rows.addAll(candidateRows);
+		if (columnList == null || columnList.isEmpty()) {
+			allColumns = true;
+		} else {
+			for (Column col : columnList) {
+				columns.put(col.toString(), col);
+			}
+		}
+	}
+
+	public void fetch(HRegion region) throws IOException {
+		cells = new TreeMap<byte[], List<Cell>>(Bytes.BYTES_COMPARATOR);
+		if (rows.isEmpty()) {
+			return;
+		}
+		Scan scan = SortedRowScanner.newScan(rows.first(), rows.last());
+		if (!allColumns) {
+			for (Column col : columns.values()) {
+				scan.addColumn(col.getFamily(), col.getQualifier());
+			}
+		}
+		scan.setFilter(new CandidateRowFilter(rows));
+		scan.setCacheBlocks(false);
+
+		SortedRowScanner scanner = new SortedRowScanner(region, scan);
+		try {
+			for (byte[] row : rows) {
+				List<Cell> rowCells = scanner.get(row);
+				if (rowCells != null) {
+					cells.put(row, rowCells);
+				}
+			}
+		} finally {
+			scanner.close();
+		}
+	}
+
+	// Whether all the rows were read
+	public boolean covers(Set<byte[]> candidateRows) {
+		if (cells == null) {
+			return false;
+		}
+		for (byte[] row : candidateRows) {
+			if (!rows.contains(row)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * The cells of the row in the columns, as a read of these columns alone
+	 * would return them, or null if there are none.
+	 */
+	public List<Cell> get(byte[] row, List<Column> columnList) {
+		List<Cell> rowCells = cells.get(row);
+		if (rowCells == null || columnList == null || columnList.isEmpty()) {
+			return rowCells;
+		}
+		List<Cell> projected = new ArrayList<Cell>(rowCells.size());
+		for (Cell cell : rowCells) {
+			for (Column col : columnList) {
+				if (CellUtil.matchingColumn(cell, col.getFamily(),
+						col.getQualifier())) {
+					projected.add(cell);
+					break;
+				}
+			}
+		}
+		return projected.isEmpty() ? null : projected;
+	}
+}
@@ -0,0 +1,57 @@
+package ca.mcgill.distsys.hbase96.indexcoprocessorsinmem;
+
+import java.util.NavigableSet;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.filter.FilterBase;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Restricts a region scan to a sorted set of candidate rows: cells of other
+ * rows make the scanner seek directly to the next candidate, so the rows
+ * between two candidates (e.g. after a candidate rejected by another filter)
+ * are never read. Only meant for scanners opened inside the region server;
+ * the filter is not serializable.
+ */
+public class CandidateRowFilter extends FilterBase {
+
+	private final NavigableSet<byte[]> rows;
+	// Row of the last cell seen, and whether it is a candidate
+	private byte[] currentRow;
+	private boolean currentIsCandidate;
+	private byte[] nextRow;
+	private boolean done = false;
+
+	public CandidateRowFilter(NavigableSet<byte[]> rows) {
+		this.rows = rows;
+	}
+
+	@Override
+	public ReturnCode filterKeyValue(Cell cell) {
+		if (currentRow == null
+				|| !Bytes.equals(currentRow, 0, currentRow.length,
+						cell.getRowArray(), cell.getRowOffset(),
+						cell.getRowLength())) {
+			currentRow = Bytes.copy(cell.getRowArray(), cell.getRowOffset(),
+					cell.getRowLength());
+			currentIsCandidate = rows.contains(currentRow);
+			nextRow = currentIsCandidate ? null : rows.higher(currentRow);
+			done = !currentIsCandidate && nextRow == null;
+		}
+		if (currentIsCandidate) {
+			return ReturnCode.INCLUDE;
+		}
+		return done ? ReturnCode.NEXT_ROW : ReturnCode.SEEK_NEXT_USING_HINT;
+	}
+
+	@Override
+	public boolean filterAllRemaining() {
+		return done;
+	}
+
+	@Override
+	public Cell getNextCellHint(Cell currentKV) {
+		return nextRow == null ? null : KeyValue.createFirstOnRow(nextRow);
+	}
+}
@@ -0,0 +1,118 @@
+package ca.mcgill.distsys.hbase96.indexcoprocessorsinmem;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Reduces the values of a column to one partial aggregate per region. Values
+ * are decoded with the given type (as written by Bytes.toBytes); values that
+ * do not have the size of the type are ignored. SUM of LONG and INT values is
+ * a long, SUM of DOUBLE values a double; MIN and MAX return the value as
+ * stored, BYTES values being compared in byte order.
+ */
+public class ColumnAggregator {
+
+	public enum Function {
+		SUM, MIN, MAX
+	}
+
+	public enum ValueType {
+		LONG, INT, DOUBLE, BYTES
+	}
+
+	private final Function function;
+	private final ValueType valueType;
+	private long count = 0;
+	private long longSum = 0;
+	private double doubleSum = 0;
+	// current MIN or MAX value
+	private byte[] extreme;
+
+	public ColumnAggregator(Function function, ValueType valueType) {
+		if (function == Function.SUM && valueType == ValueType.BYTES) {
+			throw new IllegalArgumentException("Cannot SUM values of type "
+					+ valueType + ".");
+		}
+		this.function = function;
+		this.valueType = valueType;
+	}
+
+	public void add(byte[] buffer, int offset, int length) {
+		if (!hasValidLength(length)) {
+			return;
+		}
+		count++;
+		if (function == Function.SUM) {
+			switch (valueType) {
+			case LONG:
+				longSum += Bytes.toLong(buffer, offset, length);
+				break;
+			case INT:
+				longSum += Bytes.toInt(buffer, offset, length);
+				break;
+			default:
+				doubleSum += Bytes.toDouble(buffer, offset);
+			}
+		} else if (extreme == null) {
+			extreme = Bytes.copy(buffer, offset, length);
+		} else {
+			int cmp = compare(buffer, offset, length);
+			if ((function == Function.MIN && cmp < 0)
+					|| (function == Function.MAX && cmp > 0)) {
+				extreme = Bytes.copy(buffer, offset, length);
+			}
+		}
+	}
+
+	public void add(byte[] value) {
+		add(value, 0, value.length);
+	}
+
+	private boolean hasValidLength(int length) {
+		switch (valueType) {
+		case LONG:
+		case DOUBLE:
+			return length == Bytes.SIZEOF_LONG;
+		case INT:
+			return length == Bytes.SIZEOF_INT;
+		default:
+			return true;
+		}
+	}
+
+	// Compares the value to the current extreme
+	private int compare(byte[] buffer, int offset, int length) {
+		switch (valueType) {
+		case LONG:
+			long l = Bytes.toLong(buffer, offset, length);
+			long currentLong = Bytes.toLong(extreme);
+			return l < currentLong ? -1 : (l == currentLong ? 0 : 1);
+		case INT:
+			int i = Bytes.toInt(buffer, offset, length);
+			int currentInt = Bytes.toInt(extreme);
+			return i < currentInt ? -1 : (i == currentInt ? 0 : 1);
+		case DOUBLE:
+			return Double.compare(Bytes.toDouble(buffer, offset),
+					Bytes.toDouble(extreme));
+		default:
+			return Bytes.compareTo(buffer, offset, length, extreme, 0,
+					extreme.length);
+		}
+	}
+
+	// Number of values aggregated
+	public long getCount() {
+		return count;
+	}
+
+	// The aggregate, or null if no value was aggregated
+	public byte[] getValue() {
+		if (count == 0) {
+			return null;
+		}
+		if (function != Function.SUM) {
+			return extreme;
+		}
+		return valueType == ValueType.DOUBLE ? Bytes.toBytes(doubleSum)
+				: Bytes.toBytes(longSum);
+	}
+}
@@ -2,10 +2,8 @@ package ca.mcgill.distsys.hbase96.indexcoprocessorsinmem;
 
 import ca.mcgill.distsys.hbase96.indexcommonsinmem.IndexedColumn;
 import ca.mcgill.distsys.hbase96.indexcommonsinmem.SecondaryIndexConstants;
-import ca.mcgill.distsys.hbase96.indexcommonsinmem.Util;
 import ca.mcgill.distsys.hbase96.indexcommonsinmem.proto.Column;
-import ca.mcgill.distsys.hbase96.indexcommonsinmem.proto.ColumnValue;
-import ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.pluggableIndex.AbstractPluggableIndex;
+import ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.pluggableIndex.IndexDelta;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
@@ -15,26 +13,38 @@ import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.permission.FsPermission;
 import org.apache.hadoop.hbase.CoprocessorEnvironment;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
 import org.apache.hadoop.hbase.HBaseConfiguration;
 import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.HConstants.OperationStatusCode;
 import org.apache.hadoop.hbase.HTableDescriptor;
 import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Append;
 import org.apache.hadoop.hbase.client.Delete;
 import org.apache.hadoop.hbase.client.Durability;
 import org.apache.hadoop.hbase.client.Get;
 import org.apache.hadoop.hbase.client.HBaseAdmin;
 import org.apache.hadoop.hbase.client.HTable;
 import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Increment;
+import org.apache.hadoop.hbase.client.Mutation;
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.Scan;
 import org.apache.hadoop.hbase.coprocessor.BaseRegionObserver;
 import org.apache.hadoop.hbase.coprocessor.ObserverContext;
 import org.apache.hadoop.hbase.coprocessor.RegionCoprocessorEnvironment;
+import org.apache.hadoop.hbase.io.hfile.CacheConfig;
+import org.apache.hadoop.hbase.io.hfile.HFile;
+import org.apache.hadoop.hbase.io.hfile.HFileScanner;
 import org.apache.hadoop.hbase.regionserver.HRegion;
+import org.apache.hadoop.hbase.regionserver.MiniBatchOperationInProgress;
 import org.apache.hadoop.hbase.regionserver.wal.WALEdit;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.hadoop.hbase.util.FSUtils;
+import org.apache.hadoop.hbase.util.Pair;
 import org.xerial.snappy.SnappyInputStream;
 import org.xerial.snappy.SnappyOutputStream;
 
@@ -45,21 +55,37 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
 public class HTableIndexCoprocessor extends BaseRegionObserver {
 
 	private static final Log LOG = LogFactory
 			.getLog(HTableIndexCoprocessor.class);
 
+	// Put attribute, or table descriptor value, declaring that puts only
+	// insert new rows: their rows are not read for old index values
+	public static final String INSERT_ONLY = "index.coprocessor.insert.only";
+
 	private boolean doNotRun = false;
 	private Configuration configuration;
 	private TableName tableName;
 	private HRegion region;
 	private String regionName;
+	// null unless index updates are applied asynchronously for this table
+	private IndexUpdatePipeline updatePipeline;
+	// Order the index updates of each row
+	private IndexRowLocks rowLocks;
+	// Whether old index values come from the forward map of the region index
+	// instead of the region
+	private boolean useForwardMap = false;
+	// Whether all the puts of the table are inserts of new rows
+	private boolean insertOnly = false;
 
 	@Override
 	public void start(CoprocessorEnvironment environment) throws IOException {
@@ -100,6 +126,17 @@ public class HTableIndexCoprocessor extends BaseRegionObserver {
 			regionName = region.getRegionNameAsString();
 			LOG.info("INDEX: Starting HTableIndexCoprocessor on region " + "["
 					+ regionName + "]");
+			rowLocks = new IndexRowLocks(regionName, configuration);
+			String forwardMapValue = desc.getValue(RegionIndex.FORWARD_MAP);
+			useForwardMap = forwardMapValue != null ? Boolean
+					.parseBoolean(forwardMapValue) : configuration.getBoolean(
+					RegionIndex.FORWARD_MAP, false);
+			insertOnly = Boolean.parseBoolean(desc.getValue(INSERT_ONLY));
+			if (IndexUpdatePipeline.isEnabled(desc, configuration)) {
+				LOG.info("INDEX: Index updates of region [" + regionName
+						+ "] are applied asynchronously.");
+				updatePipeline = new IndexUpdatePipeline(region, configuration);
+			}
 		}
 	}
 
@@ -189,8 +226,13 @@ public class HTableIndexCoprocessor extends BaseRegionObserver {
 		ObjectInputStream ois = new ObjectInputStream(sis);
 
 		RegionIndex regionIndex = (RegionIndex) ois.readObject();
-		RegionIndexMap.getInstance().add(regionName, regionIndex);
 		ois.close();
+		try {
+			regionIndex.upgradeKeyFormat(region);
+		} catch (NoSuchMethodException e) {
+			throw new IOException(e);
+		}
+		RegionIndexMap.getInstance().add(regionName, regionIndex);
 
 		try {
 			fs.delete(regionIndexPath, false);
@@ -336,6 +378,11 @@ public class HTableIndexCoprocessor extends BaseRegionObserver {
 						+ "initializing indexes.");
 				try {
 					loadRegionIndexes();
+					RegionIndex regionIndex = RegionIndexMap.getInstance().get(
+							regionName);
+					if (useForwardMap && regionIndex != null) {
+						ensureForwardMap(regionIndex);
+					}
 				} catch (NoSuchMethodException e1) {
 					LOG.fatal(
 							"INDEX: Failed to load the region's index for table "
@@ -552,173 +599,640 @@ public class HTableIndexCoprocessor extends BaseRegionObserver {
 	// }
 	// }
 
-	private void updateTableIndexes(List<KeyValue> kVListToIndex,
-			HashMap<String, Set<IndexedColumn>> singleMappedIndex,
-			Result currentRow, RegionIndex regionIndex, byte[] rowKey) throws IOException {
-
-		Set<IndexedColumn> changedIndexColumnSet;
-		Set<IndexedColumn> allChangedIndexColumnSet = new HashSet<IndexedColumn>();
-		List<ColumnValue> existColumns = new ArrayList<ColumnValue>();
-		List<ColumnValue> newColumns = new ArrayList<ColumnValue>();
-		ColumnValue tempColumnValue;
-		KeyValue nextColumn = null;
-		int index;
-		boolean isIndexed = true;
-		boolean isNew = false;
-		byte[] concatOldValue;
-		byte[] concatNewValue;
-		// return null??
-		//byte[] rowKey = currentRow.getRow();
-		for (KeyValue kv : kVListToIndex) {
-			KeyValue currentValue = currentRow.getColumnLatest(kv.getFamily(),
-					kv.getQualifier());
-
-			if (currentValue != null
-					&& !Arrays.equals(currentValue.getValue(), kv.getValue())) {
-
-				// There is a current value for the column but it is
-				// different from the one to be added
-				// => update current value's index to remove the reference
-				tempColumnValue = new ColumnValue(kv);
-				changedIndexColumnSet = singleMappedIndex.get(tempColumnValue
-						.toString());
-				allChangedIndexColumnSet.addAll(changedIndexColumnSet);
-				existColumns.add(tempColumnValue);
-				LOG.debug("Hello1: tempColumnValue: " + tempColumnValue.toStringFull());
-
-			} else if (currentValue == null) {
-
-				// new column added
-				tempColumnValue = new ColumnValue(kv);
-				changedIndexColumnSet = singleMappedIndex.get(tempColumnValue
-						.toString());
-				allChangedIndexColumnSet.addAll(changedIndexColumnSet);
-				newColumns.add(tempColumnValue);
-        LOG.debug("Hello2: tempColumnValue: " + tempColumnValue.toStringFull());
-			} else {
-				// Nothing to do, new value is the same as the old value
-			}
+	// State of the current mini-batch, captured in preBatchMutate for
+	// postBatchMutate, which runs on the same handler thread once the batch
+	// has been written. The region releases its row locks before
+	// postBatchMutate, so the index locks of the rows are held from the read
+	// of their old values until the deltas are applied: the next mutation of
+	// a row reads its old value once the index has it.
+	private static class PendingBatch {
+		IndexRowLocks rowLocks;
+		IndexRowLocks.Lease lease;
+		RegionIndex regionIndex;
+		BatchIndexUpdate batchUpdate;
+		boolean[] toIndex;
+		TreeMap<byte[], IndexedRowState> rowStates;
+	}
+
+	// Shared by the regions of the server: postBatchMutate is not called
+	// when a batch fails after preBatchMutate, nor postIncrement and
+	// postAppend when the mutation fails after lockIndexedRow. The next
+	// index hook of the handler thread, on any region, releases the locks of
+	// that batch; otherwise the first writer waiting for them reclaims them
+	// once their lease expires (see IndexRowLocks).
+	private static final ThreadLocal<PendingBatch> pendingBatch = new ThreadLocal<PendingBatch>();
+
+	private static void releaseFailedBatch() {
+		PendingBatch batch = pendingBatch.get();
+		if (batch != null) {
+			pendingBatch.remove();
+			LOG.warn("INDEX: BATCH: Releasing the index row locks of a batch "
+					+ "that failed after preBatchMutate.");
+			batch.rowLocks.unlock(batch.lease);
 		}
+	}
 
-		for (IndexedColumn indexedColumn : allChangedIndexColumnSet) {
-			isIndexed = true;
-			isNew = false;
-			concatOldValue = null;
-			concatNewValue = null;
-
-			for (Column column : indexedColumn.getColumnList()) {
-				tempColumnValue = new ColumnValue(column);
-				nextColumn = currentRow.getColumnLatest(column.getFamily(),
-						column.getQualifier());
-					
-				if ((index = newColumns.indexOf(tempColumnValue)) != -1) {
-					isNew = true;
-					concatNewValue = Util.concatByteArray(concatNewValue,
-							newColumns.get(index).getValue());
+	@Override
+	public void preBatchMutate(ObserverContext<RegionCoprocessorEnvironment> c,
+			MiniBatchOperationInProgress<Mutation> miniBatchOp)
+			throws IOException {
+		releaseFailedBatch();
+		if (doNotRun) {
+			return;
+		}
+		RegionIndex regionIndex = RegionIndexMap.getInstance().get(regionName);
+		if (regionIndex == null) {
+			return;
+		}
+		// Taken once, as indexes may be added or removed during the batch
+		IndexUpdatePlan plan = regionIndex.getUpdatePlan();
+		if (plan.getIndexCount() == 0) {
+			return;
+		}
+		BatchIndexUpdate batchUpdate = new BatchIndexUpdate(plan);
+
+		// (1) Find the mutations that may change an index, the rows they
+		// touch and the indexes they affect. Rows only touched by insert-only
+		// puts are new and have no old value to look up.
+		boolean[] toIndex = new boolean[miniBatchOp.size()];
+		boolean[] affectedIndexes = new boolean[plan.getIndexCount()];
+		TreeSet<byte[]> rows = new TreeSet<byte[]>(Bytes.BYTES_COMPARATOR);
+		TreeSet<byte[]> newRows = new TreeSet<byte[]>(Bytes.BYTES_COMPARATOR);
+		for (int i = 0; i < miniBatchOp.size(); i++) {
+			Mutation mutation = miniBatchOp.getOperation(i);
+			if (miniBatchOp.getOperationStatus(i).getOperationStatusCode() == OperationStatusCode.NOT_RUN
+					&& (mutation instanceof Put || mutation instanceof Delete)
+					&& batchUpdate.markAffectedIndexes(mutation,
+							affectedIndexes)) {
+				toIndex[i] = true;
+				if (mutation instanceof Put && isInsertOnly(mutation)) {
+					newRows.add(mutation.getRow());
 				} else {
-					if (nextColumn == null) {
-						isIndexed = false;
-						break;
-					}  else {
-						if ((index = existColumns.indexOf(tempColumnValue)) != -1) {
-							if (isNew == true) {
-								concatNewValue = Util.concatByteArray(
-										concatNewValue, existColumns.get(index).getValue());
-							} else {
-								concatNewValue = Util.concatByteArray(
-										concatNewValue, existColumns.get(index).getValue());
-								concatOldValue = Util.concatByteArray(
-										concatOldValue, nextColumn.getValue());
-							}
-						} else {
-							if (isNew == true) {
-								concatNewValue = Util.concatByteArray(
-										concatNewValue, nextColumn.getValue());
-							} else {
-								concatNewValue = Util.concatByteArray(
-										concatNewValue, nextColumn.getValue());
-								concatOldValue = Util.concatByteArray(
-										concatOldValue, nextColumn.getValue());
-							}
-						}
-					}
+					rows.add(mutation.getRow());
 				}
 			}
+		}
+		newRows.removeAll(rows);
+		if (rows.isEmpty() && newRows.isEmpty()) {
+			return;
+		}
 
-			if (isIndexed) {
-				try {
-					if (isNew) {
-						LOG.debug("HelloFinal1: rowKey: " + Bytes.toString(rowKey) +
-                ", indexedColumn: " + indexedColumn.toString() +
-                ", concatNewValue: " + Bytes.toString(concatNewValue));
-						addNewValueRefToIndex(rowKey,
-                indexedColumn.toString(), concatNewValue, regionIndex);
+		PendingBatch batch = new PendingBatch();
+		batch.rowLocks = rowLocks;
+		batch.regionIndex = regionIndex;
+		batch.batchUpdate = batchUpdate;
+		batch.toIndex = toIndex;
+		TreeSet<byte[]> lockedRows = new TreeSet<byte[]>(rows);
+		lockedRows.addAll(newRows);
+		batch.lease = rowLocks.lock(lockedRows);
+		boolean ready = false;
+		try {
+			// (2) Get the current value of all those rows, from the forward
+			// map if there is one, otherwise from the region in one sorted
+			// pass, restricted to the columns of the affected indexes
+			// (including the sibling columns of multi-column indexes and
+			// included columns)
+			TreeMap<byte[], IndexedRowState> rowStates;
+			if (useForwardMap) {
+				ensureForwardMap(regionIndex);
+				rowStates = new TreeMap<byte[], IndexedRowState>(
+						Bytes.BYTES_COMPARATOR);
+				for (byte[] row : rows) {
+					rowStates.put(row, regionIndex.getForwardState(row, plan));
+				}
+			} else if (!rows.isEmpty()) {
+				rowStates = readCurrentRows(rows, plan, affectedIndexes);
+			} else {
+				rowStates = new TreeMap<byte[], IndexedRowState>(
+						Bytes.BYTES_COMPARATOR);
+			}
+			for (byte[] row : newRows) {
+				rowStates.put(row, new IndexedRowState(plan));
+			}
+			batch.rowStates = rowStates;
+			pendingBatch.set(batch);
+			ready = true;
+		} finally {
+			if (!ready) {
+				rowLocks.unlock(batch.lease);
+			}
+		}
+	}
+
+	// A put is an insert if it says so, or if the table only has inserts
+	private boolean isInsertOnly(Mutation mutation) {
+		byte[] attribute = mutation.getAttribute(INSERT_ONLY);
+		return attribute != null ? Bytes.toBoolean(attribute) : insertOnly;
+	}
+
+	private synchronized void ensureForwardMap(RegionIndex regionIndex)
+			throws IOException {
+		if (!regionIndex.hasForwardMap()) {
+			LOG.info("INDEX: Building the forward index map of region ["
+					+ regionName + "].");
+			regionIndex.buildForwardMap(region);
+		}
+	}
+
+	@Override
+	public void postBatchMutate(
+			ObserverContext<RegionCoprocessorEnvironment> c,
+			MiniBatchOperationInProgress<Mutation> miniBatchOp)
+			throws IOException {
+		PendingBatch batch = pendingBatch.get();
+		if (batch == null) {
+			return;
+		}
+		if (batch.rowLocks != rowLocks) {
+			// left by a batch of another region
+			releaseFailedBatch();
+			return;
+		}
+		pendingBatch.remove();
+		try {
+			// (3) Compute the index updates of the mutations that were
+			// written, in batch order, so that mutations of the same row see
+			// each other's values
+			BatchIndexUpdate batchUpdate = batch.batchUpdate;
+			TreeSet<byte[]> writtenRows = new TreeSet<byte[]>(
+					Bytes.BYTES_COMPARATOR);
+			for (int i = 0; i < miniBatchOp.size(); i++) {
+				if (batch.toIndex[i]
+						&& miniBatchOp.getOperationStatus(i)
+								.getOperationStatusCode() == OperationStatusCode.SUCCESS) {
+					Mutation mutation = miniBatchOp.getOperation(i);
+					IndexedRowState rowState = batch.rowStates.get(mutation
+							.getRow());
+					if (mutation instanceof Put) {
+						batchUpdate.applyPut((Put) mutation, rowState);
 					} else {
-						
-						LOG.debug("HelloFinal1: rowKey: " + Bytes.toString(rowKey) +
-                ", indexedColumn: " + indexedColumn.toString() +
-                ", concatOldValue: " + Bytes.toString(concatOldValue));
-						LOG.debug("HelloFinal2: rowKey: " + Bytes.toString(rowKey) +
-                ", indexedColumn: " + indexedColumn.toString() +
-                ", concatNewValue: " + Bytes.toString(concatNewValue));
-						removeCurrentValueRefFromIndex(rowKey,
-								indexedColumn.toString(), concatOldValue, regionIndex);
-						
-						addNewValueRefToIndex(rowKey,
-								indexedColumn.toString(), concatNewValue, regionIndex);
-						
+						batchUpdate.applyDelete((Delete) mutation, rowState);
 					}
-				} catch (IOException IOe) {
-					LOG.error(
-							"INDEX: PUT: Failed to add to index for " + "table ["
-									+ tableName.toString() + "], " + "column ["
-									+ indexedColumn.toString() + "]", IOe);
-					throw IOe;
-				} catch (ClassNotFoundException CNFe) {
-					LOG.error(
-							"INDEX: PUT: Failed to add to index for " + "table ["
-									+ tableName.toString() + "], " + "column ["
-									+ indexedColumn.toString() + "]", CNFe);
-					throw new IOException(CNFe);
+					writtenRows.add(mutation.getRow());
+				}
+			}
+
+			if (useForwardMap) {
+				for (byte[] row : writtenRows) {
+					batch.regionIndex.putForwardState(row,
+							batch.rowStates.get(row));
+				}
+			}
+			if (!batchUpdate.isEmpty()) {
+				applyIndexDeltas(batchUpdate.getDeltas());
+			}
+		} finally {
+			if (batch.lease.isReclaimed()) {
+				LOG.warn("INDEX: BATCH: The index row locks of a batch of region ["
+						+ regionName + "] were reclaimed before its index "
+						+ "updates were applied; updates of its rows may have "
+						+ "been applied out of order.");
+			}
+			rowLocks.unlock(batch.lease);
+		}
+	}
+
+	private void applyIndexDeltas(HashMap<String, List<IndexDelta>> deltas)
+			throws IOException {
+		RegionIndex regionIndex = RegionIndexMap.getInstance().get(regionName);
+		if (regionIndex != null && updatePipeline != null) {
+			// Queries on this region wait on the pipeline of its index
+			if (regionIndex.getUpdatePipeline() != updatePipeline) {
+				regionIndex.setUpdatePipeline(updatePipeline);
+			}
+			updatePipeline.enqueue(deltas);
+		} else if (regionIndex != null) {
+			try {
+				regionIndex.applyDeltas(deltas);
+			} catch (IOException IOe) {
+				LOG.error("INDEX: BATCH: Failed to update the indexes for "
+						+ "table [" + tableName.toString() + "]; the indexes "
+						+ "may be in an invalid state.", IOe);
+				throw IOe;
+			}
+		}
+	}
+
+	// Called once the mutation is visible, so that cached query results
+	// computed before it are stale
+	private void regionDataChanged() {
+		if (doNotRun) {
+			return;
+		}
+		RegionIndex regionIndex = RegionIndexMap.getInstance().get(regionName);
+		if (regionIndex != null) {
+			regionIndex.advanceDataVersion();
+		}
+	}
+
+	@Override
+	public void postPut(ObserverContext<RegionCoprocessorEnvironment> e,
+			Put put, WALEdit edit, Durability durability) throws IOException {
+		regionDataChanged();
+	}
+
+	@Override
+	public void postDelete(ObserverContext<RegionCoprocessorEnvironment> e,
+			Delete delete, WALEdit edit, Durability durability)
+			throws IOException {
+		regionDataChanged();
+	}
+
+	@Override
+	public Result preIncrementAfterRowLock(
+			ObserverContext<RegionCoprocessorEnvironment> e, Increment increment)
+			throws IOException {
+		lockIndexedRow(increment);
+		return null;
+	}
+
+	@Override
+	public Result preAppendAfterRowLock(
+			ObserverContext<RegionCoprocessorEnvironment> e, Append append)
+			throws IOException {
+		lockIndexedRow(append);
+		return null;
+	}
+
+	// Takes the index lock of the row of an increment or append changing an
+	// indexed column while the region still holds its row lock, so that the
+	// index updates of the row run in the order the region applied them.
+	// Released by updateIndexesFromResult, or as a failed batch.
+	private void lockIndexedRow(Mutation mutation) throws IOException {
+		releaseFailedBatch();
+		if (doNotRun) {
+			return;
+		}
+		RegionIndex regionIndex = RegionIndexMap.getInstance().get(regionName);
+		if (regionIndex == null) {
+			return;
+		}
+		IndexUpdatePlan plan = regionIndex.getUpdatePlan();
+		boolean indexed = false;
+		for (List<Cell> cells : mutation.getFamilyCellMap().values()) {
+			for (Cell cell : cells) {
+				indexed |= plan.findColumn(cell) >= 0;
+			}
+		}
+		if (!indexed) {
+			return;
+		}
+		PendingBatch batch = new PendingBatch();
+		batch.rowLocks = rowLocks;
+		batch.lease = rowLocks.lock(Collections.singletonList(mutation
+				.getRow()));
+		pendingBatch.set(batch);
+	}
+
+	// The lease taken by lockIndexedRow for this region, or null
+	private IndexRowLocks.Lease takeRowLease() {
+		PendingBatch batch = pendingBatch.get();
+		if (batch == null || batch.rowLocks != rowLocks
+				|| batch.batchUpdate != null) {
+			releaseFailedBatch();
+			return null;
+		}
+		pendingBatch.remove();
+		return batch.lease;
+	}
+
+	@Override
+	public Result postIncrement(ObserverContext<RegionCoprocessorEnvironment> e,
+			Increment increment, Result result) throws IOException {
+		regionDataChanged();
+		if (!doNotRun) {
+			updateIndexesFromResult(increment, result, true);
+		}
+		return result;
+	}
+
+	@Override
+	public Result postAppend(ObserverContext<RegionCoprocessorEnvironment> e,
+			Append append, Result result) throws IOException {
+		regionDataChanged();
+		if (!doNotRun) {
+			updateIndexesFromResult(append, result, false);
+		}
+		return result;
+	}
+
+	// The result of an increment or append holds the new value of each
+	// column it changed; the old value is derived from it and the
+	// increment amount or the appended bytes. The index lock of the row is
+	// held since the region applied the mutation (see lockIndexedRow), so
+	// no other mutation of the row got in between: new - amount is the old
+	// value the index holds. The region is only read for the other columns
+	// of multi-column and covering indexes, and not at all with a forward
+	// map.
+	private void updateIndexesFromResult(Mutation mutation, Result result,
+			boolean increment) throws IOException {
+		IndexRowLocks.Lease lease = takeRowLease();
+		try {
+			if (result == null || result.isEmpty()) {
+				return;
+			}
+			RegionIndex regionIndex = RegionIndexMap.getInstance().get(
+					regionName);
+			if (regionIndex == null) {
+				return;
+			}
+			IndexUpdatePlan plan = regionIndex.getUpdatePlan();
+			if (plan.getIndexCount() == 0) {
+				return;
+			}
+			if (lease == null) {
+				// the index was added after the region applied the
+				// mutation
+				lease = rowLocks.lock(Collections.singletonList(result
+						.getRow()));
+			}
+			updateIndexesFromResult(mutation, result, increment,
+					regionIndex, plan);
+		} finally {
+			if (lease != null) {
+				rowLocks.unlock(lease);
+			}
+		}
+	}
+
+	private void updateIndexesFromResult(Mutation mutation, Result result,
+			boolean increment, RegionIndex regionIndex, IndexUpdatePlan plan)
+			throws IOException {
+		byte[] row = result.getRow();
+		// values of the changed columns after and before the mutation
+		IndexedRowState valuesAfter = new IndexedRowState(plan);
+		IndexedRowState valuesBefore = new IndexedRowState(plan);
+		boolean[] changedColumns = new boolean[plan.getColumnCount()];
+		boolean[] affectedIndexes = new boolean[plan.getIndexCount()];
+		boolean affected = false;
+		for (Cell cell : result.rawCells()) {
+			int ordinal = plan.findColumn(cell);
+			if (ordinal < 0) {
+				continue;
+			}
+			byte[] newValue = CellUtil.cloneValue(cell);
+			Cell change = findMutationCell(mutation, cell);
+			valuesAfter.put(ordinal, newValue);
+			valuesBefore.put(ordinal, change == null ? newValue
+					: increment ? getValueBeforeIncrement(newValue, change)
+							: getValueBeforeAppend(newValue, change));
+			changedColumns[ordinal] = true;
+			for (int slot : plan.getDependentIndexes(ordinal)) {
+				affectedIndexes[slot] = true;
+			}
+			affected = true;
+		}
+		if (!affected) {
+			return;
+		}
+
+		IndexedRowState oldState;
+		if (useForwardMap) {
+			ensureForwardMap(regionIndex);
+			oldState = regionIndex.getForwardState(row, plan);
+		} else {
+			// only the other columns of multi-column and covering indexes
+			// are read; single-column indexes have all they need
+			boolean[] readIndexes = new boolean[affectedIndexes.length];
+			boolean read = false;
+			for (int slot = 0; slot < affectedIndexes.length; slot++) {
+				readIndexes[slot] = affectedIndexes[slot]
+						&& plan.getSlotColumns(slot).length > 1;
+				read |= readIndexes[slot];
+			}
+			oldState = read ? readAffectedColumns(row, plan, readIndexes)
+					: new IndexedRowState(plan);
+			for (int ordinal = 0; ordinal < changedColumns.length; ordinal++) {
+				if (changedColumns[ordinal]) {
+					oldState.put(ordinal, valuesBefore.get(ordinal));
 				}
-				
+			}
+		}
+		IndexedRowState newState = new IndexedRowState(oldState);
+		for (int ordinal = 0; ordinal < changedColumns.length; ordinal++) {
+			if (changedColumns[ordinal]) {
+				newState.put(ordinal, valuesAfter.get(ordinal));
 			}
 		}
 
+		BatchIndexUpdate batchUpdate = new BatchIndexUpdate(plan);
+		batchUpdate.addStateChange(row, oldState, newState, affectedIndexes);
+		if (useForwardMap) {
+			regionIndex.putForwardState(row, newState);
+		}
+		if (!batchUpdate.isEmpty()) {
+			applyIndexDeltas(batchUpdate.getDeltas());
+		}
 	}
 
-	private void addNewValueRef(KeyValue newValue, RegionIndex regionIndex)
-			throws IOException, ClassNotFoundException {
-		// Changed by Cong
-		Column column = new Column(newValue.getFamily(),
-				newValue.getQualifier());
-		AbstractPluggableIndex rci = regionIndex.get(column.toString());
-		rci.add(newValue.getValue(), newValue.getRow());
+	private static Cell findMutationCell(Mutation mutation, Cell cell) {
+		List<Cell> cells = mutation.getFamilyCellMap().get(
+				CellUtil.cloneFamily(cell));
+		if (cells != null) {
+			for (Cell change : cells) {
+				if (CellUtil.matchingQualifier(change, cell)) {
+					return change;
+				}
+			}
+		}
+		return null;
 	}
 
-	private void addNewValueRefToIndex(byte[] row, String abstractIndexKey,
-			byte[] currentValue, RegionIndex regionIndex) throws IOException,
-			ClassNotFoundException {
-		// Changed by Cong
-		AbstractPluggableIndex rci = regionIndex.get(abstractIndexKey);
-		rci.add(currentValue, row);
+	// new = old + amount; a counter that did not exist is indexed as if it
+	// was 0, whose removal from the index is then a no-op
+	private static byte[] getValueBeforeIncrement(byte[] newValue, Cell amount) {
+		if (newValue.length != Bytes.SIZEOF_LONG) {
+			return null;
+		}
+		return Bytes.toBytes(Bytes.toLong(newValue)
+				- Bytes.toLong(amount.getValueArray(), amount.getValueOffset(),
+						amount.getValueLength()));
 	}
 
-	private void removeCurrentValueRef(byte[] row, KeyValue currentValue,
-			RegionIndex regionIndex) throws IOException, ClassNotFoundException {
-		// Changed by Cong
-		Column column = new Column(currentValue.getFamily(),
-				currentValue.getQualifier());
-		AbstractPluggableIndex rci = regionIndex.get(column.toString());
-		rci.remove(currentValue.getValue(), row);
+	// new = old + appended bytes
+	private static byte[] getValueBeforeAppend(byte[] newValue, Cell appended) {
+		int oldLength = newValue.length - appended.getValueLength();
+		return oldLength <= 0 ? null : Arrays.copyOf(newValue, oldLength);
 	}
 
-	private void removeCurrentValueRefFromIndex(byte[] row,
-			String abstractIndexKey, byte[] currentValue,
-			RegionIndex regionIndex) throws IOException, ClassNotFoundException {
-		// Changed by Cong
-		AbstractPluggableIndex rci = regionIndex.get(abstractIndexKey);
-		rci.remove(currentValue, row);
+	// The current value of the columns of the affected indexes of the row
+	private IndexedRowState readAffectedColumns(byte[] row,
+			IndexUpdatePlan plan, boolean[] affectedIndexes) throws IOException {
+		Get get = new Get(row);
+		for (int slot = 0; slot < affectedIndexes.length; slot++) {
+			if (affectedIndexes[slot]) {
+				for (int ordinal : plan.getSlotColumns(slot)) {
+					Column column = plan.getColumn(ordinal);
+					get.addColumn(column.getFamily(), column.getQualifier());
+				}
+			}
+		}
+		Result current = region.get(get);
+		return new IndexedRowState(plan, current.isEmpty() ? null : Arrays
+				.asList(current.rawCells()));
+	}
+
+	// State captured in preBulkLoadHFile for postBulkLoadHFile
+	private static class PendingBulkLoad {
+		IndexUpdatePlan plan;
+		boolean[] affectedIndexes;
+		TreeMap<byte[], IndexedRowState> oldStates;
+	}
+
+	private final ThreadLocal<PendingBulkLoad> pendingBulkLoad = new ThreadLocal<PendingBulkLoad>();
+
+	@Override
+	public void preBulkLoadHFile(
+			ObserverContext<RegionCoprocessorEnvironment> ctx,
+			List<Pair<byte[], String>> familyPaths) throws IOException {
+		pendingBulkLoad.remove();
+		if (doNotRun) {
+			return;
+		}
+		RegionIndex regionIndex = RegionIndexMap.getInstance().get(regionName);
+		if (regionIndex == null) {
+			return;
+		}
+		IndexUpdatePlan plan = regionIndex.getUpdatePlan();
+		if (plan.getIndexCount() == 0) {
+			return;
+		}
+
+		// Only the rows of the new store files that hold an indexed column
+		// need to be reindexed
+		boolean[] affectedIndexes = new boolean[plan.getIndexCount()];
+		TreeSet<byte[]> rows = new TreeSet<byte[]>(Bytes.BYTES_COMPARATOR);
+		for (Pair<byte[], String> familyPath : familyPaths) {
+			int familyPos = plan.findFamily(familyPath.getFirst());
+			if (familyPos >= 0) {
+				readIndexedRows(new Path(familyPath.getSecond()), plan,
+						familyPos, affectedIndexes, rows);
+			}
+		}
+		if (rows.isEmpty()) {
+			return;
+		}
+		if (useForwardMap) {
+			// forward map states hold every indexed column
+			Arrays.fill(affectedIndexes, true);
+		}
+
+		PendingBulkLoad bulkLoad = new PendingBulkLoad();
+		bulkLoad.plan = plan;
+		bulkLoad.affectedIndexes = affectedIndexes;
+		bulkLoad.oldStates = readCurrentRows(rows, plan, affectedIndexes);
+		pendingBulkLoad.set(bulkLoad);
+	}
+
+	private void readIndexedRows(Path path, IndexUpdatePlan plan,
+			int familyPos, boolean[] affectedIndexes, TreeSet<byte[]> rows)
+			throws IOException {
+		FileSystem fs = path.getFileSystem(configuration);
+		HFile.Reader reader = HFile.createReader(fs, path, new CacheConfig(
+				configuration), configuration);
+		try {
+			reader.loadFileInfo();
+			HFileScanner scanner = reader.getScanner(false, false);
+			if (scanner.seekTo()) {
+				do {
+					KeyValue kv = scanner.getKeyValue();
+					int[] ordinals;
+					if (kv.getQualifierLength() == 0) {
+						// family delete marker
+						ordinals = plan.getFamilyColumns(familyPos);
+					} else {
+						int ordinal = plan.findColumn(familyPos, kv.getBuffer(),
+								kv.getQualifierOffset(), kv.getQualifierLength());
+						ordinals = ordinal < 0 ? null : new int[] { ordinal };
+					}
+					if (ordinals != null) {
+						for (int ordinal : ordinals) {
+							for (int slot : plan.getDependentIndexes(ordinal)) {
+								affectedIndexes[slot] = true;
+							}
+						}
+						rows.add(kv.getRow());
+					}
+				} while (scanner.next());
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	@Override
+	public boolean postBulkLoadHFile(
+			ObserverContext<RegionCoprocessorEnvironment> ctx,
+			List<Pair<byte[], String>> familyPaths, boolean hasLoaded)
+			throws IOException {
+		PendingBulkLoad bulkLoad = pendingBulkLoad.get();
+		pendingBulkLoad.remove();
+		if (hasLoaded) {
+			regionDataChanged();
+		}
+		if (bulkLoad == null || !hasLoaded) {
+			return hasLoaded;
+		}
+
+		TreeSet<byte[]> rows = new TreeSet<byte[]>(Bytes.BYTES_COMPARATOR);
+		rows.addAll(bulkLoad.oldStates.keySet());
+		TreeMap<byte[], IndexedRowState> newStates = readCurrentRows(rows,
+				bulkLoad.plan, bulkLoad.affectedIndexes);
+
+		BatchIndexUpdate batchUpdate = new BatchIndexUpdate(bulkLoad.plan);
+		RegionIndex regionIndex = RegionIndexMap.getInstance().get(regionName);
+		for (Map.Entry<byte[], IndexedRowState> entry : newStates.entrySet()) {
+			batchUpdate.addStateChange(entry.getKey(),
+					bulkLoad.oldStates.get(entry.getKey()), entry.getValue(),
+					bulkLoad.affectedIndexes);
+			if (useForwardMap && regionIndex != null) {
+				regionIndex.putForwardState(entry.getKey(), entry.getValue());
+			}
+		}
+
+		if (!batchUpdate.isEmpty()) {
+			LOG.info("INDEX: Reindexing rows of region [" + regionName
+					+ "] changed by a bulk load.");
+			applyIndexDeltas(batchUpdate.getDeltas());
+		}
+		return hasLoaded;
+	}
+
+	private TreeMap<byte[], IndexedRowState> readCurrentRows(
+			TreeSet<byte[]> rows, IndexUpdatePlan plan,
+			boolean[] affectedIndexes) throws IOException {
+		TreeMap<byte[], IndexedRowState> rowStates = new TreeMap<byte[], IndexedRowState>(
+				Bytes.BYTES_COMPARATOR);
+		Scan scan = SortedRowScanner.newScan(rows.first(), rows.last());
+		for (int slot = 0; slot < affectedIndexes.length; slot++) {
+			if (affectedIndexes[slot]) {
+				for (int ordinal : plan.getSlotColumns(slot)) {
+					Column column = plan.getColumn(ordinal);
+					scan.addColumn(column.getFamily(), column.getQualifier());
+				}
+			}
+		}
+		scan.setMaxVersions(1);
+
+		SortedRowScanner scanner = null;
+		try {
+			scanner = new SortedRowScanner(region, scan);
+			for (byte[] row : rows) {
+				rowStates.put(row,
+						new IndexedRowState(plan, scanner.get(row)));
+			}
+		} catch (IOException IOe) {
+			LOG.error("INDEX: BATCH: Failed to retrieve the current rows. "
+					+ "This is required for index update. The index may be in an "
+					+ "invalid state if the batch succeeds and affects an already "
+					+ "indexed column value.", IOe);
+			throw IOe;
+		} finally {
+			if (scanner != null) {
+				scanner.close();
+			}
+		}
+		return rowStates;
 	}
 
 	// @SuppressWarnings("unchecked")
@@ -735,23 +1249,13 @@ public class HTableIndexCoprocessor extends BaseRegionObserver {
 	// }
 	// }
 
-	@SuppressWarnings("unchecked")
-	private void getValueToIndex(Put put, List<KeyValue> kVListToIndex,
-			Set<String> indexedColumns) {
-		for (byte[] family : put.getFamilyMap().keySet()) {
-			for (KeyValue kv : (List<KeyValue>) put.getFamilyMap().get(family)) {
-				Column column = new Column(family, kv.getQualifier());
-				if (indexedColumns.contains(column.toString())) {
-					kVListToIndex.add(kv);
-				}
-			}
-		}
-	}
-
 	@Override
 	public void stop(CoprocessorEnvironment e) throws IOException {
 		LOG.info("INDEX: HTableIndexCoprocessor stop for region " + "["
 				+ regionName + "] postOpen; initializing indexes.");
+		if (updatePipeline != null) {
+			updatePipeline.close();
+		}
 	}
 
 	private void persistIndexToFS() throws IOException {
@@ -800,6 +1304,10 @@ public class HTableIndexCoprocessor extends BaseRegionObserver {
 			try {
 				LOG.info("INDEX: Region [" + regionName + "] postClose; "
 						+ "persisting region indexes.");
+				if (updatePipeline != null) {
+					// apply the pending updates before the index is saved
+					updatePipeline.close();
+				}
 				persistIndexToFS();
 			} catch (IOException e1) {
 				LOG.error(
@@ -818,6 +1326,9 @@ public class HTableIndexCoprocessor extends BaseRegionObserver {
 		// the index will be rebuilt when the new regions open.
 		LOG.info("INDEX: Region [" + regionName + "] preSplit; "
 				+ "removing in memory indexes.");
+		if (updatePipeline != null) {
+			updatePipeline.waitForCurrent();
+		}
 		splitAndPersistIndex(splitRow);
 		RegionIndexMap.getInstance().remove(regionName);
 	}
@@ -922,60 +1433,6 @@ public class HTableIndexCoprocessor extends BaseRegionObserver {
 	// }
 	// }
 
-	// changed
-	@Override
-	public void prePut(ObserverContext<RegionCoprocessorEnvironment> env,
-			Put put, WALEdit edit, Durability durability) throws IOException {
-		if (!doNotRun) {
-			RegionIndex regionIndex = RegionIndexMap.getInstance().get(
-					regionName);
-
-			if (regionIndex != null) {
-
-				// added
-				HashMap<String, Set<IndexedColumn>> singleMappedIndex = regionIndex
-						.getSingleMappedIndex();
-				Set<String> singleMappedIndexKeySet = singleMappedIndex
-						.keySet();
-
-				// Set<String> indexedColumns = regionIndex.getIndexedColumns();
-
-				if (!singleMappedIndexKeySet.isEmpty()) {
-					// Contains cf:qualifier=value from put request
-					List<KeyValue> kVListToIndex = new ArrayList<KeyValue>();
-					// Contains all the singleMapped key: Set<cf:a,cf:b>
-					getValueToIndex(put, kVListToIndex, singleMappedIndexKeySet);
-
-					if (!kVListToIndex.isEmpty()) {
-						Get get = new Get(put.getRow());
-						Result result = null;
-
-						try {
-							result = env.getEnvironment().getRegion().get(get);
-						} catch (IOException IOe) {
-							LOG.error(
-									"INDEX: PUT: Failed to retrieve the current row. "
-											+ "This is required for index update. The index may be in an "
-											+ "invalid state if the put succeeds and affects an already "
-											+ "indexed column value.", IOe);
-							throw IOe;
-						}
-
-						// changed
-						if( result != null) {
-							updateTableIndexes(kVListToIndex, singleMappedIndex,
-									result, regionIndex, put.getRow());
-						}
-						
-
-						// updateTableIndexes(kVListToIndex, result,
-						// regionIndex);
-					}
-				}
-			}
-		}
-	}
-
 	// @Override
 	// public void preDelete(ObserverContext<RegionCoprocessorEnvironment> env,
 	// Delete delete, WALEdit edit, Durability durability)
@@ -1011,244 +1468,4 @@ public class HTableIndexCoprocessor extends BaseRegionObserver {
 	// }
 	// }
 	// }
-
-	// changed
-	@Override
-	public void preDelete(ObserverContext<RegionCoprocessorEnvironment> env,
-			Delete delete, WALEdit edit, Durability durability)
-			throws IOException {
-		if (!doNotRun) {
-			RegionIndex regionIndex = RegionIndexMap.getInstance().get(
-					regionName);
-
-			if (regionIndex != null) {
-
-				// added
-				HashMap<String, Set<IndexedColumn>> singleMappedIndex = regionIndex
-						.getSingleMappedIndex();
-				Set<String> indexedColumns = regionIndex.getIndexedColumns();
-
-				if (!indexedColumns.isEmpty()) {
-
-					Get get = new Get(delete.getRow());
-					Result result = null;
-
-					try {
-						result = env.getEnvironment().getRegion().get(get);
-					} catch (IOException IOe) {
-						LOG.error(
-								"INDEX: PUT: Failed to retrieve the current row. "
-										+ "This is required for index update. The index may be in an "
-										+ "invalid state if the put succeeds and affects an already "
-										+ "indexed column value.", IOe);
-						throw IOe;
-					}
-					if(result != null) {
-						updateTableIndexesForDelete(result, singleMappedIndex,
-								regionIndex, indexedColumns, delete);
-					}
-					
-				}
-			}
-		}
-	}
-
-	private void updateTableIndexesForDelete(Result currentRow,
-			RegionIndex regionIndex, Set<String> indexedColumns, Delete delete)
-			throws IOException {
-
-		List<KeyValue> kVListToDelete = makeKVListForDeletion(delete,
-				indexedColumns, currentRow);
-
-		for (KeyValue kv : kVListToDelete) {
-			try {
-				KeyValue currentValue = currentRow.getColumnLatest(
-						kv.getFamily(), kv.getQualifier());
-
-				if (currentValue != null) {
-					// There is a current value for the column but it is
-					// different from the one to be added
-					// => update current value's index to remove the reference
-					removeCurrentValueRef(kv.getRow(), currentValue,
-							regionIndex);
-				} else if (currentValue == null) {
-					// Nothing to do, there is nothing to delete in that cell
-				}
-			} catch (IOException IOe) {
-				LOG.error(
-						"INDEX: DELETE: Failed to remove from index for "
-								+ "table [" + tableName.toString() + "], "
-								+ "column [" + Bytes.toString(kv.getFamily())
-								+ ":" + Bytes.toString(kv.getQualifier()) + "]",
-						IOe);
-				throw IOe;
-			} catch (ClassNotFoundException CNFe) {
-				LOG.error(
-						"INDEX: DELETE: Failed to remove from index for "
-								+ "table [" + tableName.toString() + "], "
-								+ "column [" + Bytes.toString(kv.getFamily())
-								+ ":" + Bytes.toString(kv.getQualifier()) + "]",
-						CNFe);
-				throw new IOException(CNFe);
-			}
-		}
-	}
-
-	// changed
-	private void updateTableIndexesForDelete(Result currentRow,
-			HashMap<String, Set<IndexedColumn>> singleMappedIndex,
-			RegionIndex regionIndex, Set<String> indexedColumns, Delete delete)
-			throws IOException {
-
-		// changed
-		List<KeyValue> kVListToDelete = makeKVListForDeletion(delete,
-				singleMappedIndex.keySet(), currentRow);
-
-		Set<IndexedColumn> changedIndexColumnSet;
-		Set<IndexedColumn> alreadyChangedIndexColumnSet = new HashSet<IndexedColumn>();
-		KeyValue nextColumn = null;
-		boolean isIndexed = false;
-		byte[] concatValue;
-
-		for (KeyValue kv : kVListToDelete) {
-			try {
-				KeyValue currentValue = currentRow.getColumnLatest(
-						kv.getFamily(), kv.getQualifier());
-
-				if (currentValue != null) {
-					// There is a current value for the column
-
-					// removeCurrentValueRef(kv.getRow(), currentValue,
-					// regionIndex);
-
-					changedIndexColumnSet = singleMappedIndex.get(new Column(kv
-							.getFamily()).setQualifier(kv.getQualifier())
-							.toString());
-					for (IndexedColumn changedIndexColumn : changedIndexColumnSet) {
-						if (alreadyChangedIndexColumnSet
-								.contains(changedIndexColumn)) {
-							continue;
-						} else {
-							alreadyChangedIndexColumnSet
-									.add(changedIndexColumn);
-							isIndexed = true;
-							concatValue = null;
-							for (Column column : changedIndexColumn
-									.getColumnList()) {
-
-								nextColumn = currentRow.getColumnLatest(
-										column.getFamily(),
-										column.getQualifier());
-								if (nextColumn != null) {
-									concatValue = Util.concatByteArray(
-											concatValue, nextColumn.getValue());
-								} else {
-									// the column doesn't exist
-									isIndexed = false;
-									break;
-								}
-
-							}
-							if (isIndexed) {
-								// <1>: remove the current value
-								removeCurrentValueRefFromIndex(kv.getRow(),
-										changedIndexColumn.toString(),
-										concatValue, regionIndex);
-							}
-
-						}
-
-					}
-
-				} else if (currentValue == null) {
-					// Nothing to do, there is nothing to delete in that cell
-				}
-			} catch (IOException IOe) {
-				LOG.error(
-						"INDEX: DELETE: Failed to remove from index for "
-								+ "table [" + tableName.toString() + "], "
-								+ "column [" + Bytes.toString(kv.getFamily())
-								+ ":" + Bytes.toString(kv.getQualifier()) + "]",
-						IOe);
-				throw IOe;
-			} catch (ClassNotFoundException CNFe) {
-				LOG.error(
-						"INDEX: DELETE: Failed to remove from index for "
-								+ "table [" + tableName.toString() + "], "
-								+ "column [" + Bytes.toString(kv.getFamily())
-								+ ":" + Bytes.toString(kv.getQualifier()) + "]",
-						CNFe);
-				throw new IOException(CNFe);
-			}
-		}
-	}
-
-	// changed the indexedColumns to singleMappedIndexKeySet
-	private List<KeyValue> makeKVListForDeletion(Delete delete,
-			Set<String> singleMappedIndexKeySet, Result result) {
-		List<KeyValue> indexedKVList = new ArrayList<KeyValue>();
-		// method to check if the familyMap is empty
-		if (delete.isEmpty()) {
-			// DELETE ROW
-			indexedKVList.addAll(getIndexedKV(Arrays.asList(result.raw()),
-					singleMappedIndexKeySet));
-		} else {
-			for (byte[] family : delete.getFamilyMap().keySet()) {
-				List<KeyValue> columnsToDelete = getColumsToDeleteForFamily(
-						delete, family);
-				// if no qualifier is found, DELETING ENTIRE COLUMN FAMILY
-				if (columnsToDelete.isEmpty()) {
-					List<KeyValue> columnsToDeleteCurrentValueList = new ArrayList<KeyValue>();
-					for (KeyValue kv : result.raw()) {
-						if (Arrays.equals(kv.getFamily(), family)) {
-							columnsToDeleteCurrentValueList.add(kv);
-							indexedKVList.addAll(getIndexedKV(
-									columnsToDeleteCurrentValueList,
-									singleMappedIndexKeySet));
-						}
-					}
-					// DELETE FOUND QUALIFIER OF COLUMN FAMILY
-				} else {
-					List<KeyValue> columnsToDeleteCurrentValueList = new ArrayList<KeyValue>();
-					for (KeyValue ctd : columnsToDelete) {
-						for (KeyValue kv : result.raw()) {
-							if (Arrays.equals(ctd.getQualifier(),
-									kv.getQualifier())) {
-								columnsToDeleteCurrentValueList.add(kv);
-								break;
-							}
-						}
-					}
-					indexedKVList.addAll(getIndexedKV(
-							columnsToDeleteCurrentValueList,
-							singleMappedIndexKeySet));
-				}
-
-			}
-		}
-		return indexedKVList;
-	}
-
-	private List<KeyValue> getIndexedKV(List<KeyValue> columnsToDelete,
-			Set<String> indexedColumns) {
-		List<KeyValue> result = new ArrayList<KeyValue>();
-		for (KeyValue kv : columnsToDelete) {
-			Column column = new Column(kv.getFamily(), kv.getQualifier());
-			if (indexedColumns.contains(column.toString())) {
-				result.add(kv);
-			}
-		}
-		return result;
-	}
-
-	@SuppressWarnings("unchecked")
-	private List<KeyValue> getColumsToDeleteForFamily(Delete del, byte[] family) {
-		List<KeyValue> result = new ArrayList<KeyValue>();
-		for (KeyValue kv : (List<KeyValue>) del.getFamilyMap().get(family)) {
-			if (kv.getQualifierLength() > 0) {
-				result.add(kv);
-			}
-		}
-		return result;
-	}
 }
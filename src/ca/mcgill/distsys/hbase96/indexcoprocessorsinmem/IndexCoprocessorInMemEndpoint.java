@@ -9,10 +9,18 @@ import ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.protobuf.generated.Index
 import ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.protobuf.generated.IndexCoprocessorInMem.IndexCoprocessorCreateResponse;
 import ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.protobuf.generated.IndexCoprocessorInMem.IndexCoprocessorDeleteRequest;
 import ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.protobuf.generated.IndexCoprocessorInMem.IndexCoprocessorDeleteResponse;
+import ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.protobuf.generated.IndexCoprocessorInMem.AggregateType;
+import ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.protobuf.generated.IndexCoprocessorInMem.BatchedIndexedQueryRequest;
+import ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.protobuf.generated.IndexCoprocessorInMem.BatchedIndexedQueryResponse;
 import ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.protobuf.generated.IndexCoprocessorInMem.IndexCoprocessorInMemService;
+import ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.protobuf.generated.IndexCoprocessorInMem.IndexedAggregateRequest;
+import ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.protobuf.generated.IndexCoprocessorInMem.IndexedAggregateResponse;
 import ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.protobuf.generated.IndexCoprocessorInMem.IndexedQueryRequest;
 import ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.protobuf.generated.IndexCoprocessorInMem.IndexedQueryResponse;
 import ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.protobuf.generated.IndexCoprocessorInMem.ProtoResult;
+import ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.protobuf.generated.IndexCoprocessorInMem.QueryStrategy;
+import ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.protobuf.generated.IndexCoprocessorInMem.SortOrder;
+import ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.protobuf.generated.IndexCoprocessorInMem.ValueCount;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.RpcCallback;
 import com.google.protobuf.RpcController;
@@ -32,8 +40,14 @@ import org.apache.hadoop.hbase.util.Bytes;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.SortedMap;
 
 public class IndexCoprocessorInMemEndpoint extends IndexCoprocessorInMemService
 		implements CoprocessorService, Coprocessor {
@@ -44,6 +58,7 @@ public class IndexCoprocessorInMemEndpoint extends IndexCoprocessorInMemService
 	private boolean doNotRun = false;
 	private Configuration configuration;
 	private HRegion region;
+	private ParallelRowFetcher rowFetcher;
 
 	@Override
 	public void createIndex(RpcController controller,
@@ -92,7 +107,12 @@ public class IndexCoprocessorInMemEndpoint extends IndexCoprocessorInMemService
 						}
 					}
 
-					regionIndex.add(colList, region, indexType, objectArguments);
+					// Columns whose values the index keeps to answer
+					// queries projecting only them (covering index)
+					List<Column> includedColumns = Util.buildColumnList(request
+							.getIncludedColumnList());
+					regionIndex.add(colList, includedColumns, region,
+							indexType, objectArguments);
 
 				} else {
 					LOG.info("INDEX: requested index already exists.");
@@ -157,6 +177,7 @@ public class IndexCoprocessorInMemEndpoint extends IndexCoprocessorInMemService
 			doNotRun = true;
 		} else {
 			configuration = HBaseConfiguration.create();
+			rowFetcher = ParallelRowFetcher.acquire(env);
 		}
 
 	}
@@ -180,16 +201,110 @@ public class IndexCoprocessorInMemEndpoint extends IndexCoprocessorInMemService
 			return;
 		}
 
+		regionIndex.setRowFetcher(rowFetcher);
+		if (!waitForIndexUpdates(regionIndex, controller)) {
+			done.run(builder.build());
+			return;
+		}
+
+		try {
+			runIndexedQuery(request, regionIndex, builder);
+		} catch (IOException e) {
+			ResponseConverter.setControllerException(controller, e);
+		}
+		done.run(builder.build());
+	}
+
+	/**
+	 * Several indexed queries in one call, e.g. the lookups of a join. They
+	 * run on the same indexes, under one hold of the region index read lock;
+	 * identical queries of the batch run once. The candidate rows of the
+	 * distinct queries are read from the region once for all of them: a
+	 * first pass of the queries collects them, they are fetched in a single
+	 * pass over the region, and the queries then run on them. Responses are
+	 * in the order of the queries. A failing query fails the whole batch.
+	 */
+	@Override
+	public void execBatchedIndexedQuery(RpcController controller,
+			BatchedIndexedQueryRequest request,
+			RpcCallback<BatchedIndexedQueryResponse> done) {
+
+		RegionIndexMap rim = RegionIndexMap.getInstance();
+		RegionIndex regionIndex = rim.get(region.getRegionNameAsString());
+
+		BatchedIndexedQueryResponse.Builder builder = BatchedIndexedQueryResponse
+				.newBuilder();
+
+		if (doNotRun || regionIndex == null) {
+			// No index exists for this region, exception
+			ResponseConverter.setControllerException(controller,
+					new IOException("No index exists for table ["
+							+ region.getTableDesc().getNameAsString() + "]."));
+			done.run(builder.build());
+			return;
+		}
+
+		regionIndex.setRowFetcher(rowFetcher);
+		if (!waitForIndexUpdates(regionIndex, controller)) {
+			done.run(builder.build());
+			return;
+		}
+
+		Map<IndexedQueryRequest, IndexedQueryResponse> responses = new HashMap<IndexedQueryRequest, IndexedQueryResponse>();
+		regionIndex.beginBatch();
+		try {
+			Set<IndexedQueryRequest> distinctQueries = new LinkedHashSet<IndexedQueryRequest>(
+					request.getQueriesList());
+			if (distinctQueries.size() > 1) {
+				regionIndex.collectBatchRows();
+				for (IndexedQueryRequest query : distinctQueries) {
+					runIndexedQuery(query, regionIndex,
+							IndexedQueryResponse.newBuilder());
+				}
+				regionIndex.fetchBatchRows(region);
+			}
+			for (IndexedQueryRequest query : request.getQueriesList()) {
+				IndexedQueryResponse response = responses.get(query);
+				if (response == null) {
+					IndexedQueryResponse.Builder queryBuilder = IndexedQueryResponse
+							.newBuilder();
+					runIndexedQuery(query, regionIndex, queryBuilder);
+					response = queryBuilder.build();
+					responses.put(query, response);
+				}
+				builder.addResponses(response);
+			}
+		} catch (IOException e) {
+			ResponseConverter.setControllerException(controller, e);
+			builder.clearResponses();
+		} finally {
+			regionIndex.endBatch();
+		}
+		done.run(builder.build());
+	}
+
+	// Run one indexed query on the region index, adding its results to the
+	// builder
+	private void runIndexedQuery(IndexedQueryRequest request,
+			RegionIndex regionIndex, IndexedQueryResponse.Builder builder)
+			throws IOException {
+
 		IndexedColumnQuery query = Util.buildQuery(request);
+		// Bounded page of the results: at most limit rows, after the row
+		// returned as continuation of the previous page
+		IndexedQueryPage page = new IndexedQueryPage(
+				request.hasStartAfterRow() ? request.getStartAfterRow()
+						.toByteArray() : null,
+				request.hasLimit() ? request.getLimit() : 0);
+		// Only return the row keys of the matching rows
+		boolean keysOnly = request.hasKeysOnly() && request.getKeysOnly();
 
 		if (query.getCriteria().isEmpty()) {
 			// The query must contain at least one criterion
 			IOException e = new IOException("An indexed query must contain " +
 					"at least one criterion.");
-			ResponseConverter.setControllerException(controller, e);
 			LOG.error(e);
-			done.run(builder.build());
-			return;
+			throw e;
 		}
 
 		// Yousuf
@@ -231,20 +346,43 @@ public class IndexCoprocessorInMemEndpoint extends IndexCoprocessorInMemService
 			// If yes, then use this index.
 
 			try {
-				List<ProtoResult> filteredRows = regionIndex.
-						filterRowsFromCriteria(idxColKey, selectCriteria,
-								projectColumns, region);
-				builder.addAllResult(filteredRows);
+				if (request.hasOrder()) {
+					// Top-N: ordered by the indexed value, the limit being the
+					// N of each region
+					if (request.hasStartAfterRow()) {
+						throw new IOException("Queries ordered by the indexed "
+								+ "value cannot be paged.");
+					}
+					builder.addAllResult(regionIndex.filterRowsInValueOrder(
+							idxColKey, selectCriteria, projectColumns, region,
+							request.getOrder() == SortOrder.DESC,
+							page.getLimit(), keysOnly));
+				} else {
+					List<ProtoResult> filteredRows = regionIndex.
+							filterRowsFromCriteria(idxColKey, selectCriteria,
+									projectColumns, region, page, keysOnly);
+					builder.addAllResult(filteredRows);
+					setContinuation(builder, page);
+				}
 
 			} catch (IOException e) {
-				ResponseConverter.setControllerException(controller,
-						new IOException(e));
 				LOG.error("Couldn't fetch results", e);
+				throw new IOException(e);
+			} catch (UnsupportedOperationException e) {
+				LOG.error("Couldn't fetch results", e);
+				throw new IOException(e);
 			}
-			done.run(builder.build());
 			return;
 		}
 
+		if (request.hasOrder()) {
+			// Rows combined from several indexes have no value order
+			IOException e = new IOException("Queries ordered by the indexed " +
+					"value require an index on exactly the criteria columns.");
+			LOG.error(e);
+			throw e;
+		}
+
 		// Case 2:
 		// Otherwise, check which criteria columns have corresponding
 		// single-column indices available, and separate them from
@@ -261,10 +399,8 @@ public class IndexCoprocessorInMemEndpoint extends IndexCoprocessorInMemService
 			// At least one criterion must apply to an indexed column
 			IOException e = new IOException("An indexed query must contain " +
 					"at least one criterion that applies to an indexed column.");
-			ResponseConverter.setControllerException(controller, e);
 			LOG.error(e);
-			done.run(builder.build());
-			return;
+			throw e;
 		}
 
 		// Step 2:
@@ -278,16 +414,211 @@ public class IndexCoprocessorInMemEndpoint extends IndexCoprocessorInMemService
 		try {
 			List<ProtoResult> filteredRows = regionIndex.
 					filterRowsFromCriteria(criteriaOnIndexedColumns,
-							criteriaOnNonIndexedColumns, query, region);
+							criteriaOnNonIndexedColumns, query, region, page,
+							keysOnly);
 			builder.addAllResult(filteredRows);
+			setContinuation(builder, page);
 
 		} catch (Exception e) {
+			LOG.error("Couldn't fetch results", e);
+			throw new IOException(e);
+		}
+	}
+
+	// Read-your-writes: see every update acknowledged before the query
+	private static boolean waitForIndexUpdates(RegionIndex regionIndex,
+			RpcController controller) {
+		IndexUpdatePipeline updatePipeline = regionIndex.getUpdatePipeline();
+		if (updatePipeline != null) {
+			try {
+				updatePipeline.waitForCurrent();
+			} catch (IOException e) {
+				ResponseConverter.setControllerException(controller, e);
+				LOG.error(e);
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Aggregates over the rows selected by an indexed query, computed from
+	 * the index postings without reading the region: COUNT for criteria that
+	 * are all on indexed columns, and COUNT_DISTINCT and FACET (rows per
+	 * distinct value, the topN largest) for criteria matching one index.
+	 * SUM, MIN and MAX reduce a typed column of the selected rows on the
+	 * region server, reading the region only for the rows the index selects.
+	 * Each region returns its partial aggregate; facets of different regions
+	 * are merged by the client, so topN is applied per region.
+	 */
+	@Override
+	public void aggregateIndexedQuery(RpcController controller,
+			IndexedAggregateRequest request,
+			RpcCallback<IndexedAggregateResponse> done) {
+
+		RegionIndexMap rim = RegionIndexMap.getInstance();
+		RegionIndex regionIndex = rim.get(region.getRegionNameAsString());
+
+		IndexedAggregateResponse.Builder builder = IndexedAggregateResponse
+				.newBuilder();
+
+		if (doNotRun || regionIndex == null) {
+			ResponseConverter.setControllerException(controller,
+					new IOException("No index exists for table ["
+							+ region.getTableDesc().getNameAsString() + "]."));
+			done.run(builder.build());
+			return;
+		}
+
+		regionIndex.setRowFetcher(rowFetcher);
+		if (!waitForIndexUpdates(regionIndex, controller)) {
+			done.run(builder.build());
+			return;
+		}
+
+		IndexedColumnQuery query = Util.buildQuery(request.getQuery());
+		List<Criterion<?>> criteria = query.getCriteria();
+
+		try {
+			if (criteria.isEmpty()) {
+				throw new IOException("An indexed aggregate must contain at "
+						+ "least one criterion.");
+			}
+
+			if (request.getType() == AggregateType.COUNT) {
+				List<Column> criteriaColumns = new ArrayList<Column>();
+				for (Criterion<?> criterion : criteria) {
+					criteriaColumns.add(criterion.getCompareColumn());
+				}
+				if (!regionIndex.getIndexedColumns().contains(
+						Util.concatColumnsToString(criteriaColumns))) {
+					// No index on all the columns: each criterion needs its own
+					List<Criterion<?>> criteriaOnNonIndexedColumns = new ArrayList<Criterion<?>>();
+					List<Criterion<?>> criteriaOnIndexedColumns = new ArrayList<Criterion<?>>();
+					splitCriteriaByTarget(criteriaOnNonIndexedColumns,
+							criteriaOnIndexedColumns, criteria, regionIndex);
+					if (!criteriaOnNonIndexedColumns.isEmpty()) {
+						throw new IOException("COUNT can only be answered from "
+								+ "the index when all the criteria apply to "
+								+ "indexed columns.");
+					}
+				}
+				builder.setCount(regionIndex.countRowsFromCriteria(criteria,
+						query.isMustPassAllCriteria()));
+			} else if (request.getType() == AggregateType.SUM
+					|| request.getType() == AggregateType.MIN
+					|| request.getType() == AggregateType.MAX) {
+				aggregateColumn(builder, request, query, regionIndex);
+			} else {
+				SortedMap<byte[], Integer> counts = regionIndex
+						.countByValue(criteria);
+				if (counts == null) {
+					throw new IOException(request.getType() + " requires an "
+							+ "index on exactly the criteria columns.");
+				}
+				long count = 0;
+				for (int rows : counts.values()) {
+					count += rows;
+				}
+				builder.setCount(count);
+				builder.setDistinctCount(counts.size());
+				if (request.getType() == AggregateType.FACET) {
+					addTopFacets(builder, counts, request.hasTopN() ? request
+							.getTopN() : 0);
+				}
+			}
+		} catch (IOException e) {
+			ResponseConverter.setControllerException(controller, e);
+			LOG.error("Couldn't compute aggregate", e);
+		} catch (UnsupportedOperationException e) {
 			ResponseConverter.setControllerException(controller,
 					new IOException(e));
-			LOG.error("Couldn't fetch results", e);
+			LOG.error("Couldn't compute aggregate", e);
+		} catch (IllegalArgumentException e) {
+			ResponseConverter.setControllerException(controller,
+					new IOException(e));
+			LOG.error("Couldn't compute aggregate", e);
 		}
 		done.run(builder.build());
-		return;
+	}
+
+	// SUM, MIN or MAX of the aggregate column over the rows selected by the
+	// query: the partial aggregate of the region and the number of values it
+	// is computed from
+	private void aggregateColumn(IndexedAggregateResponse.Builder builder,
+			IndexedAggregateRequest request, IndexedColumnQuery query,
+			RegionIndex regionIndex) throws IOException {
+		if (!request.hasAggregateColumn()) {
+			throw new IOException(request.getType() + " requires an "
+					+ "aggregate column.");
+		}
+		Column aggregateColumn = Util.buildColumnList(
+				Collections.singletonList(request.getAggregateColumn())).get(0);
+		ColumnAggregator aggregator = new ColumnAggregator(
+				ColumnAggregator.Function.valueOf(request.getType().name()),
+				ColumnAggregator.ValueType.valueOf(request.getValueType()
+						.name()));
+
+		List<Criterion<?>> criteria = query.getCriteria();
+		List<Criterion<?>> criteriaOnNonIndexedColumns = new ArrayList<Criterion<?>>();
+		List<Criterion<?>> criteriaOnIndexedColumns = new ArrayList<Criterion<?>>();
+		List<Column> criteriaColumns = new ArrayList<Column>();
+		for (Criterion<?> criterion : criteria) {
+			criteriaColumns.add(criterion.getCompareColumn());
+		}
+		if (regionIndex.getIndexedColumns().contains(
+				Util.concatColumnsToString(criteriaColumns))) {
+			// Case 1: an index on all the criteria columns
+			criteriaOnIndexedColumns.addAll(criteria);
+		} else {
+			// Case 2: single-column indexes, and a filter on the others
+			splitCriteriaByTarget(criteriaOnNonIndexedColumns,
+					criteriaOnIndexedColumns, criteria, regionIndex);
+			if (criteriaOnIndexedColumns.isEmpty()) {
+				throw new IOException("An indexed aggregate must contain at "
+						+ "least one criterion that applies to an indexed "
+						+ "column.");
+			}
+		}
+
+		regionIndex.aggregateRowsFromCriteria(criteriaOnIndexedColumns,
+				criteriaOnNonIndexedColumns, query.isMustPassAllCriteria(),
+				aggregateColumn, region, aggregator);
+		builder.setCount(aggregator.getCount());
+		if (aggregator.getValue() != null) {
+			builder.setValue(ByteString.copyFrom(aggregator.getValue()));
+		}
+	}
+
+	// The values with the most rows first; topN <= 0 returns all of them
+	private static void addTopFacets(IndexedAggregateResponse.Builder builder,
+			SortedMap<byte[], Integer> counts, int topN) {
+		List<Map.Entry<byte[], Integer>> facets = new ArrayList<Map.Entry<byte[], Integer>>(
+				counts.entrySet());
+		// stable: equal counts stay in value order
+		Collections.sort(facets, new Comparator<Map.Entry<byte[], Integer>>() {
+			@Override
+			public int compare(Map.Entry<byte[], Integer> a,
+					Map.Entry<byte[], Integer> b) {
+				return b.getValue().compareTo(a.getValue());
+			}
+		});
+		int limit = topN > 0 ? Math.min(topN, facets.size()) : facets.size();
+		for (int i = 0; i < limit; i++) {
+			builder.addFacet(ValueCount.newBuilder()
+					.setValue(ByteString.copyFrom(facets.get(i).getKey()))
+					.setCount(facets.get(i).getValue()));
+		}
+	}
+
+	// The continuation row of the next page, and how the rows were found
+	private static void setContinuation(IndexedQueryResponse.Builder builder,
+			IndexedQueryPage page) {
+		if (page.getContinuationRow() != null) {
+			builder.setContinuationRow(ByteString.copyFrom(page
+					.getContinuationRow()));
+		}
+		builder.setStrategy(QueryStrategy.valueOf(page.getStrategy().name()));
 	}
 
 	private void splitCriteriaByTarget(
@@ -308,7 +639,10 @@ public class IndexCoprocessorInMemEndpoint extends IndexCoprocessorInMemService
 	}
 
 	public void stop(CoprocessorEnvironment env) throws IOException {
-		// TODO Auto-generated method stub
+		if (rowFetcher != null) {
+			ParallelRowFetcher.release(rowFetcher);
+			rowFetcher = null;
+		}
 	}
 
 	public Service getService() {
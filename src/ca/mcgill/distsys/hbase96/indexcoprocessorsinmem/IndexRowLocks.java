@@ -0,0 +1,187 @@
+package ca.mcgill.distsys.hbase96.indexcoprocessorsinmem;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.Collection;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Striped locks ordering the index updates of the rows of a region. A
+ * mutation takes the locks of its rows before it reads their old values and
+ * releases them once its deltas have reached the indexes, so that the index
+ * updates of a row are applied in the order its mutations were written, even
+ * though the region releases its own row locks before postBatchMutate.
+ * Stripes are always taken in ascending order.
+ *
+ * A batch that fails after preBatchMutate never gets its postBatchMutate, so
+ * the locks of a batch are a lease: each stripe records the lease holding
+ * it, and a mutation waiting for a stripe of a lease held for longer than
+ * index.coprocessor.row.lock.lease reclaims all the stripes of that lease.
+ * Unlocking a lease only releases the stripes it still holds.
+ */
+public class IndexRowLocks {
+
+	private static final Log LOG = LogFactory.getLog(IndexRowLocks.class);
+
+	// Number of lock stripes per region
+	public static final String STRIPES = "index.coprocessor.row.lock.stripes";
+	public static final int STRIPES_DEFAULT = 1024;
+	// Time after which the locks of a batch may be reclaimed by a waiter
+	public static final String LEASE_DURATION = "index.coprocessor.row.lock.lease";
+	public static final int LEASE_DURATION_DEFAULT = 10000;
+	// Same wait as for the row locks of the region
+	private static final String WAIT_DURATION = "hbase.rowlock.wait.duration";
+	private static final int WAIT_DURATION_DEFAULT = 30000;
+
+	/**
+	 * The stripes locked by one mutation or batch, for unlock().
+	 */
+	public static final class Lease {
+		private final int[] stripes;
+		// when all the stripes were taken; a lease still taking its stripes
+		// is live and does not expire
+		private volatile long lockedAt = Long.MAX_VALUE;
+		private volatile boolean reclaimed = false;
+
+		private Lease(int[] stripes) {
+			this.stripes = stripes;
+		}
+
+		// Whether waiters took the stripes back before the lease was unlocked
+		public boolean isReclaimed() {
+			return reclaimed;
+		}
+	}
+
+	private static final class Stripe {
+		Lease owner;
+	}
+
+	private final String regionName;
+	private final Stripe[] stripes;
+	private final long leaseDuration;
+	private final long waitDuration;
+
+	public IndexRowLocks(String regionName, Configuration conf) {
+		this.regionName = regionName;
+		this.stripes = new Stripe[Math.max(1,
+				conf.getInt(STRIPES, STRIPES_DEFAULT))];
+		for (int i = 0; i < stripes.length; i++) {
+			stripes[i] = new Stripe();
+		}
+		this.leaseDuration = conf.getInt(LEASE_DURATION, LEASE_DURATION_DEFAULT);
+		this.waitDuration = conf.getInt(WAIT_DURATION, WAIT_DURATION_DEFAULT);
+	}
+
+	/**
+	 * Takes the locks of the rows, all or none. Fails after waiting
+	 * hbase.rowlock.wait.duration for a stripe held by a live lease.
+	 */
+	public Lease lock(Collection<byte[]> rows) throws IOException {
+		Lease lease = new Lease(getStripes(rows));
+		long deadline = System.currentTimeMillis() + waitDuration;
+		int locked = 0;
+		try {
+			for (; locked < lease.stripes.length; locked++) {
+				acquire(lease, stripes[lease.stripes[locked]], deadline);
+			}
+		} catch (InterruptedException e) {
+			release(lease, locked);
+			throw new InterruptedIOException(
+					"INDEX: Interrupted while waiting for an index row lock.");
+		} catch (IOException e) {
+			release(lease, locked);
+			throw e;
+		}
+		lease.lockedAt = System.currentTimeMillis();
+		return lease;
+	}
+
+	private void acquire(Lease lease, Stripe stripe, long deadline)
+			throws IOException, InterruptedException {
+		while (true) {
+			Lease expired = null;
+			synchronized (stripe) {
+				if (stripe.owner == null) {
+					stripe.owner = lease;
+					return;
+				}
+				long now = System.currentTimeMillis();
+				long lockedAt = stripe.owner.lockedAt;
+				long expiry = lockedAt == Long.MAX_VALUE ? Long.MAX_VALUE
+						: lockedAt + leaseDuration;
+				if (now >= expiry) {
+					expired = stripe.owner;
+				} else if (now >= deadline) {
+					throw new IOException("INDEX: Timed out waiting for the "
+							+ "index lock of rows of region [" + regionName
+							+ "].");
+				} else {
+					// checked again at least once per lease duration, as the
+					// lease may only start once its holder has all its stripes
+					long wakeUp = Math.min(Math.min(deadline, expiry), now
+							+ leaseDuration);
+					stripe.wait(Math.max(1, wakeUp - now));
+					continue;
+				}
+			}
+			// Outside of the stripe monitor: reclaiming takes the monitors of
+			// the other stripes of the lease
+			reclaim(expired);
+		}
+	}
+
+	// Release the stripes of a lease that outlived its duration, e.g. of a
+	// batch that failed after preBatchMutate
+	private void reclaim(Lease lease) {
+		synchronized (lease) {
+			if (lease.reclaimed) {
+				return;
+			}
+			lease.reclaimed = true;
+		}
+		LOG.warn("INDEX: Reclaiming the index row locks of region ["
+				+ regionName + "] held for more than " + leaseDuration
+				+ " ms, e.g. by a batch that failed after preBatchMutate.");
+		release(lease, lease.stripes.length);
+	}
+
+	public void unlock(Lease lease) {
+		release(lease, lease.stripes.length);
+	}
+
+	private void release(Lease lease, int count) {
+		for (int i = count - 1; i >= 0; i--) {
+			Stripe stripe = stripes[lease.stripes[i]];
+			synchronized (stripe) {
+				if (stripe.owner == lease) {
+					stripe.owner = null;
+					stripe.notifyAll();
+				}
+			}
+		}
+	}
+
+	// The distinct stripes of the rows, in ascending order
+	private int[] getStripes(Collection<byte[]> rows) {
+		int[] rowStripes = new int[rows.size()];
+		int count = 0;
+		for (byte[] row : rows) {
+			rowStripes[count++] = (Bytes.hashCode(row) & Integer.MAX_VALUE)
+					% stripes.length;
+		}
+		Arrays.sort(rowStripes);
+		int distinct = 0;
+		for (int i = 0; i < count; i++) {
+			if (distinct == 0 || rowStripes[distinct - 1] != rowStripes[i]) {
+				rowStripes[distinct++] = rowStripes[i];
+			}
+		}
+		return Arrays.copyOf(rowStripes, distinct);
+	}
+}
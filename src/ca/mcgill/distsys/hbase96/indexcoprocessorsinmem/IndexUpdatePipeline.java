@@ -0,0 +1,268 @@
+package ca.mcgill.distsys.hbase96.indexcoprocessorsinmem;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.regionserver.HRegion;
+
+import ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.pluggableIndex.IndexDelta;
+
+/**
+ * Applies the index updates of a region asynchronously. The mutation path
+ * only enqueues the deltas of a batch; worker threads drain them into the
+ * indexes. The deltas of a given index always go to the same worker, so they
+ * are applied in the order they were enqueued. Every enqueued batch gets a
+ * sequence id, and readers that need to see their own writes can wait until
+ * the indexes have caught up to the current one.
+ *
+ * An index whose updates fail to apply is rebuilt from the region before the
+ * worker moves on: the updates enqueued after the failed ones then bring it
+ * up to date. If the rebuild fails too, the indexes of the region are
+ * invalid and every barrier fails until the region is reopened.
+ */
+public class IndexUpdatePipeline {
+
+	private static final Log LOG = LogFactory.getLog(IndexUpdatePipeline.class);
+
+	// Table descriptor value or configuration property enabling async mode
+	public static final String ASYNC_INDEX_UPDATES = "index.coprocessor.async.updates";
+	// Capacity of the ring of each worker
+	public static final String QUEUE_SIZE = "index.coprocessor.async.queue.size";
+	public static final int QUEUE_SIZE_DEFAULT = 10000;
+	// Number of worker threads per region
+	public static final String WORKER_COUNT = "index.coprocessor.async.workers";
+	public static final int WORKER_COUNT_DEFAULT = 2;
+	// Maximum time a query waits for the indexes to catch up
+	public static final String BARRIER_TIMEOUT = "index.coprocessor.async.barrier.timeout.ms";
+	public static final long BARRIER_TIMEOUT_DEFAULT = 60000;
+
+	private final HRegion region;
+	private final String regionName;
+	private final Worker[] workers;
+	private final long barrierTimeout;
+	private volatile long lastSeqId = 0;
+	private volatile boolean closed = false;
+
+	public static boolean isEnabled(HTableDescriptor desc, Configuration conf) {
+		String value = desc.getValue(ASYNC_INDEX_UPDATES);
+		if (value != null) {
+			return Boolean.parseBoolean(value);
+		}
+		return conf.getBoolean(ASYNC_INDEX_UPDATES, false);
+	}
+
+	public IndexUpdatePipeline(HRegion region, Configuration conf) {
+		this.region = region;
+		this.regionName = region.getRegionNameAsString();
+		this.barrierTimeout = conf.getLong(BARRIER_TIMEOUT,
+				BARRIER_TIMEOUT_DEFAULT);
+		int workerCount = Math.max(1,
+				conf.getInt(WORKER_COUNT, WORKER_COUNT_DEFAULT));
+		int queueSize = Math.max(1, conf.getInt(QUEUE_SIZE, QUEUE_SIZE_DEFAULT));
+		workers = new Worker[workerCount];
+		for (int i = 0; i < workerCount; i++) {
+			workers[i] = new Worker(queueSize);
+			workers[i].setName("IndexUpdater-" + regionName + "-" + i);
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+	}
+
+	/**
+	 * Enqueues the deltas of a batch, keyed by indexed column, and returns the
+	 * sequence id of the batch. Blocks while the ring of a worker is full.
+	 */
+	public synchronized long enqueue(Map<String, List<IndexDelta>> deltas)
+			throws IOException {
+		if (closed) {
+			throw new IOException("INDEX: The index update pipeline of region ["
+					+ regionName + "] is closed.");
+		}
+		// One entry per worker, so that a worker is done with a batch once
+		// it has applied its entry
+		HashMap<Worker, Map<String, List<IndexDelta>>> workerDeltas = new HashMap<Worker, Map<String, List<IndexDelta>>>();
+		for (Map.Entry<String, List<IndexDelta>> entry : deltas.entrySet()) {
+			Worker worker = workers[(entry.getKey().hashCode() & Integer.MAX_VALUE)
+					% workers.length];
+			Map<String, List<IndexDelta>> indexDeltas = workerDeltas.get(worker);
+			if (indexDeltas == null) {
+				indexDeltas = new HashMap<String, List<IndexDelta>>();
+				workerDeltas.put(worker, indexDeltas);
+			}
+			indexDeltas.put(entry.getKey(), entry.getValue());
+		}
+
+		long seqId = ++lastSeqId;
+		for (Map.Entry<Worker, Map<String, List<IndexDelta>>> entry : workerDeltas
+				.entrySet()) {
+			Worker worker = entry.getKey();
+			try {
+				worker.queue.put(new Entry(entry.getValue(), seqId));
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException(
+						"INDEX: Interrupted while enqueuing index updates.");
+			}
+			worker.enqueuedSeqId = seqId;
+		}
+		return seqId;
+	}
+
+	// Batches still being enqueued have not been acknowledged to their
+	// clients yet, so they need not be covered by a barrier on this id
+	public long getCurrentSeqId() {
+		return lastSeqId;
+	}
+
+	/**
+	 * Waits until every batch enqueued up to the given sequence id has been
+	 * applied to the indexes. Fails if the indexes are invalid.
+	 */
+	public void waitFor(long seqId) throws IOException {
+		long deadline = System.currentTimeMillis() + barrierTimeout;
+		for (Worker worker : workers) {
+			synchronized (worker) {
+				// The ring of a worker is ordered by sequence id
+				while (worker.appliedSeqId < Math.min(seqId,
+						worker.enqueuedSeqId)) {
+					checkFailure(worker);
+					long remaining = deadline - System.currentTimeMillis();
+					if (remaining <= 0 || !worker.isAlive()) {
+						throw new IOException("INDEX: Timed out waiting for the "
+								+ "indexes of region [" + regionName
+								+ "] to catch up to update " + seqId + ".");
+					}
+					try {
+						worker.wait(remaining);
+					} catch (InterruptedException e) {
+						throw new InterruptedIOException(
+								"INDEX: Interrupted while waiting for index updates.");
+					}
+				}
+				checkFailure(worker);
+			}
+		}
+	}
+
+	private void checkFailure(Worker worker) throws IOException {
+		if (worker.failure != null) {
+			throw new IOException("INDEX: The indexes of region [" + regionName
+					+ "] are invalid: updates failed to apply and the indexes "
+					+ "could not be rebuilt.", worker.failure);
+		}
+	}
+
+	// Read-your-writes barrier for the batches enqueued so far
+	public void waitForCurrent() throws IOException {
+		waitFor(getCurrentSeqId());
+	}
+
+	/**
+	 * Stops accepting updates, applies the ones already enqueued and stops the
+	 * workers.
+	 */
+	public void close() {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			for (Worker worker : workers) {
+				try {
+					worker.queue.put(Entry.POISON);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					worker.interrupt();
+				}
+			}
+		}
+		for (Worker worker : workers) {
+			try {
+				worker.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				LOG.warn("INDEX: Interrupted while draining the index updates "
+						+ "of region [" + regionName + "].");
+				return;
+			}
+		}
+	}
+
+	private static class Entry {
+		static final Entry POISON = new Entry(null, -1);
+
+		final Map<String, List<IndexDelta>> deltas;
+		final long seqId;
+
+		Entry(Map<String, List<IndexDelta>> deltas, long seqId) {
+			this.deltas = deltas;
+			this.seqId = seqId;
+		}
+	}
+
+	private class Worker extends Thread {
+		final BlockingQueue<Entry> queue;
+		// Both only move forward; guarded by the pipeline (enqueued) and the
+		// worker itself (applied)
+		volatile long enqueuedSeqId = 0;
+		volatile long appliedSeqId = 0;
+		// Set when the indexes of a failed update could not be rebuilt
+		volatile Exception failure = null;
+
+		Worker(int queueSize) {
+			queue = new ArrayBlockingQueue<Entry>(queueSize);
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				Entry entry;
+				try {
+					entry = queue.take();
+				} catch (InterruptedException e) {
+					return;
+				}
+				if (entry == Entry.POISON) {
+					return;
+				}
+				RegionIndex regionIndex = RegionIndexMap.getInstance().get(
+						regionName);
+				if (regionIndex != null) {
+					try {
+						regionIndex.applyDeltas(entry.deltas);
+					} catch (Exception e) {
+						LOG.error("INDEX: ASYNC: Failed to update indexes "
+								+ entry.deltas.keySet() + " of region [" + regionName
+								+ "]; rebuilding them.", e);
+						rebuild(regionIndex, entry);
+					}
+				}
+				// Only past the entry once its indexes are up to date or
+				// marked invalid
+				synchronized (this) {
+					appliedSeqId = entry.seqId;
+					notifyAll();
+				}
+			}
+		}
+
+		private void rebuild(RegionIndex regionIndex, Entry entry) {
+			try {
+				regionIndex.rebuildIndexes(entry.deltas.keySet(), region);
+			} catch (Exception e) {
+				LOG.error("INDEX: ASYNC: Failed to rebuild indexes "
+						+ entry.deltas.keySet() + " of region [" + regionName
+						+ "]; queries on the region will fail.", e);
+				failure = e;
+			}
+		}
+	}
+}
@@ -0,0 +1,302 @@
+package ca.mcgill.distsys.hbase96.indexcoprocessorsinmem;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import ca.mcgill.distsys.hbase96.indexcommonsinmem.IndexedColumn;
+import ca.mcgill.distsys.hbase96.indexcommonsinmem.proto.Column;
+import ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.pluggableIndex.commons.CompositeKeyBuilder;
+
+/**
+ * The indexed columns of a region compiled for the mutation path. Every
+ * distinct indexed column gets an integer ordinal and every index a slot;
+ * cells are mapped to ordinals by binary search on their family and
+ * qualifier bytes, without building column names or copying the cells.
+ * The included columns of covering indexes get ordinals too, and changing
+ * them affects the index like changing an index column. Plans are immutable:
+ * the region index compiles a new one whenever an index is added or removed.
+ */
+public class IndexUpdatePlan {
+
+	public static final IndexUpdatePlan EMPTY = compile(new ArrayList<IndexedColumn>());
+
+	// Sorted families, and for each the sorted qualifiers with their ordinals
+	private final byte[][] families;
+	private final byte[][][] qualifiers;
+	private final int[][] qualifierOrdinals;
+
+	private final Column[] columns;
+	// ordinal -> slots of the indexes containing the column
+	private final int[][] dependentIndexes;
+
+	private final IndexedColumn[] indexes;
+	private final String[] indexKeys;
+	// slot -> ordinals of the index columns, in index order
+	private final int[][] indexColumns;
+	// slot -> ordinals of the included columns, in declaration order
+	private final int[][] includedColumns;
+	// slot -> ordinals of all the columns the index depends on
+	private final int[][] slotColumns;
+
+	private IndexUpdatePlan(byte[][] families, byte[][][] qualifiers,
+			int[][] qualifierOrdinals, Column[] columns,
+			int[][] dependentIndexes, IndexedColumn[] indexes,
+			String[] indexKeys, int[][] indexColumns, int[][] includedColumns) {
+		this.families = families;
+		this.qualifiers = qualifiers;
+		this.qualifierOrdinals = qualifierOrdinals;
+		this.columns = columns;
+		this.dependentIndexes = dependentIndexes;
+		this.indexes = indexes;
+		this.indexKeys = indexKeys;
+		this.indexColumns = indexColumns;
+		this.includedColumns = includedColumns;
+		this.slotColumns = new int[indexColumns.length][];
+		for (int slot = 0; slot < indexColumns.length; slot++) {
+			slotColumns[slot] = Arrays.copyOf(indexColumns[slot],
+					indexColumns[slot].length + includedColumns[slot].length);
+			System.arraycopy(includedColumns[slot], 0, slotColumns[slot],
+					indexColumns[slot].length, includedColumns[slot].length);
+		}
+	}
+
+	public static IndexUpdatePlan compile(Collection<IndexedColumn> indexedColumns) {
+		return compile(indexedColumns,
+				Collections.<String, List<Column>> emptyMap());
+	}
+
+	// included: index key -> included columns of the covering indexes
+	public static IndexUpdatePlan compile(
+			Collection<IndexedColumn> indexedColumns,
+			Map<String, List<Column>> included) {
+		// family -> qualifier -> ordinal
+		TreeMap<byte[], TreeMap<byte[], Integer>> columnMap = new TreeMap<byte[], TreeMap<byte[], Integer>>(
+				Bytes.BYTES_COMPARATOR);
+		List<Column> columnList = new ArrayList<Column>();
+		List<List<Integer>> dependentList = new ArrayList<List<Integer>>();
+
+		IndexedColumn[] indexes = indexedColumns
+				.toArray(new IndexedColumn[indexedColumns.size()]);
+		String[] indexKeys = new String[indexes.length];
+		int[][] indexColumns = new int[indexes.length][];
+		int[][] includedColumns = new int[indexes.length][];
+
+		for (int slot = 0; slot < indexes.length; slot++) {
+			indexKeys[slot] = indexes[slot].toString();
+			List<Column> colList = indexes[slot].getColumnList();
+			indexColumns[slot] = new int[colList.size()];
+			for (int i = 0; i < colList.size(); i++) {
+				indexColumns[slot][i] = addColumn(colList.get(i), slot,
+						columnMap, columnList, dependentList);
+			}
+			List<Column> includedList = included.get(indexKeys[slot]);
+			if (includedList == null) {
+				includedList = Collections.emptyList();
+			}
+			includedColumns[slot] = new int[includedList.size()];
+			for (int i = 0; i < includedList.size(); i++) {
+				includedColumns[slot][i] = addColumn(includedList.get(i),
+						slot, columnMap, columnList, dependentList);
+			}
+		}
+
+		byte[][] families = new byte[columnMap.size()][];
+		byte[][][] qualifiers = new byte[columnMap.size()][][];
+		int[][] qualifierOrdinals = new int[columnMap.size()][];
+		int f = 0;
+		for (Map.Entry<byte[], TreeMap<byte[], Integer>> familyEntry : columnMap
+				.entrySet()) {
+			families[f] = familyEntry.getKey();
+			qualifiers[f] = new byte[familyEntry.getValue().size()][];
+			qualifierOrdinals[f] = new int[familyEntry.getValue().size()];
+			int q = 0;
+			for (Map.Entry<byte[], Integer> qualifierEntry : familyEntry
+					.getValue().entrySet()) {
+				qualifiers[f][q] = qualifierEntry.getKey();
+				qualifierOrdinals[f][q] = qualifierEntry.getValue();
+				q++;
+			}
+			f++;
+		}
+
+		int[][] dependentIndexes = new int[columnList.size()][];
+		for (int ordinal = 0; ordinal < columnList.size(); ordinal++) {
+			List<Integer> slots = dependentList.get(ordinal);
+			dependentIndexes[ordinal] = new int[slots.size()];
+			for (int i = 0; i < slots.size(); i++) {
+				dependentIndexes[ordinal][i] = slots.get(i);
+			}
+		}
+
+		return new IndexUpdatePlan(families, qualifiers, qualifierOrdinals,
+				columnList.toArray(new Column[columnList.size()]),
+				dependentIndexes, indexes, indexKeys, indexColumns,
+				includedColumns);
+	}
+
+	// Ordinal of the column, registered as a dependency of the index slot
+	private static int addColumn(Column column, int slot,
+			TreeMap<byte[], TreeMap<byte[], Integer>> columnMap,
+			List<Column> columnList, List<List<Integer>> dependentList) {
+		TreeMap<byte[], Integer> familyMap = columnMap.get(column.getFamily());
+		if (familyMap == null) {
+			familyMap = new TreeMap<byte[], Integer>(Bytes.BYTES_COMPARATOR);
+			columnMap.put(column.getFamily(), familyMap);
+		}
+		Integer ordinal = familyMap.get(column.getQualifier());
+		if (ordinal == null) {
+			ordinal = columnList.size();
+			familyMap.put(column.getQualifier(), ordinal);
+			columnList.add(column);
+			dependentList.add(new ArrayList<Integer>());
+		}
+		if (!dependentList.get(ordinal).contains(slot)) {
+			dependentList.get(ordinal).add(slot);
+		}
+		return ordinal;
+	}
+
+	public int getColumnCount() {
+		return columns.length;
+	}
+
+	public Column getColumn(int ordinal) {
+		return columns[ordinal];
+	}
+
+	public int getIndexCount() {
+		return indexes.length;
+	}
+
+	public IndexedColumn getIndex(int slot) {
+		return indexes[slot];
+	}
+
+	public String getIndexKey(int slot) {
+		return indexKeys[slot];
+	}
+
+	public int[] getIndexColumns(int slot) {
+		return indexColumns[slot];
+	}
+
+	public int[] getIncludedColumns(int slot) {
+		return includedColumns[slot];
+	}
+
+	public boolean hasIncludedColumns(int slot) {
+		return includedColumns[slot].length > 0;
+	}
+
+	// Index columns followed by included columns
+	public int[] getSlotColumns(int slot) {
+		return slotColumns[slot];
+	}
+
+	public int[] getDependentIndexes(int ordinal) {
+		return dependentIndexes[ordinal];
+	}
+
+	// Position of the family in the plan, or -1 if no column of the family is
+	// indexed
+	public int findFamily(byte[] buffer, int offset, int length) {
+		return find(families, buffer, offset, length);
+	}
+
+	public int findFamily(byte[] family) {
+		return findFamily(family, 0, family.length);
+	}
+
+	// Ordinal of the column of the family at the given position, or -1 if it
+	// is not indexed
+	public int findColumn(int familyPos, byte[] buffer, int offset, int length) {
+		int pos = find(qualifiers[familyPos], buffer, offset, length);
+		return pos < 0 ? -1 : qualifierOrdinals[familyPos][pos];
+	}
+
+	public int findColumn(Cell cell) {
+		int familyPos = findFamily(cell.getFamilyArray(),
+				cell.getFamilyOffset(), cell.getFamilyLength());
+		if (familyPos < 0) {
+			return -1;
+		}
+		return findColumn(familyPos, cell.getQualifierArray(),
+				cell.getQualifierOffset(), cell.getQualifierLength());
+	}
+
+	public int findColumn(Column column) {
+		int familyPos = findFamily(column.getFamily());
+		if (familyPos < 0) {
+			return -1;
+		}
+		byte[] qualifier = column.getQualifier();
+		return findColumn(familyPos, qualifier, 0, qualifier.length);
+	}
+
+	// Ordinals of all the indexed columns of the family at the given position
+	public int[] getFamilyColumns(int familyPos) {
+		return qualifierOrdinals[familyPos];
+	}
+
+	/**
+	 * The value a row has in the index of the given slot, given the values of
+	 * its columns by ordinal, or null if one of the index columns is missing.
+	 * Single column indexes return the column value itself, multi-column
+	 * indexes the composite key of the column values.
+	 */
+	public byte[] getIndexedValue(int slot, byte[][] values) {
+		int[] ordinals = indexColumns[slot];
+		if (ordinals.length == 1) {
+			return values[ordinals[0]];
+		}
+		CompositeKeyBuilder builder = CompositeKeyBuilder.get();
+		for (int ordinal : ordinals) {
+			if (values[ordinal] == null) {
+				return null;
+			}
+			builder.add(values[ordinal]);
+		}
+		return builder.toBytes();
+	}
+
+	// The values of the included columns of the index of the given slot, or
+	// null if it has none
+	public byte[][] getIncludedValues(int slot, byte[][] values) {
+		int[] ordinals = includedColumns[slot];
+		if (ordinals.length == 0) {
+			return null;
+		}
+		byte[][] includedValues = new byte[ordinals.length][];
+		for (int i = 0; i < ordinals.length; i++) {
+			includedValues[i] = values[ordinals[i]];
+		}
+		return includedValues;
+	}
+
+	private static int find(byte[][] sorted, byte[] buffer, int offset,
+			int length) {
+		int low = 0;
+		int high = sorted.length - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int cmp = Bytes.compareTo(sorted[mid], 0, sorted[mid].length,
+					buffer, offset, length);
+			if (cmp < 0) {
+				low = mid + 1;
+			} else if (cmp > 0) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+}
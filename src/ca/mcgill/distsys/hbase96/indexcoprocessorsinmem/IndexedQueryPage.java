@@ -0,0 +1,89 @@
+package ca.mcgill.distsys.hbase96.indexcoprocessorsinmem;
+
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * The page of an indexed query to return. Paged queries return the matching
+ * rows in row key order, starting after the continuation row of the previous
+ * page, and stop fetching rows from the region once the page is full. The
+ * continuation row of the next page is set by the query, and stays null on
+ * the last page.
+ */
+public class IndexedQueryPage {
+
+	// How the rows of the page were found
+	public enum Strategy {
+		// candidate rows from the index, then read from the region
+		INDEX_LOOKUP,
+		// answered from the index alone
+		INDEX_ONLY,
+		// filtered pass over the whole region
+		REGION_SCAN
+	}
+
+	private final byte[] startAfterRow;
+	private final int limit;
+	private byte[] continuationRow;
+	private Strategy strategy = Strategy.INDEX_LOOKUP;
+
+	// limit <= 0 means no limit; startAfterRow is null on the first page
+	public IndexedQueryPage(byte[] startAfterRow, int limit) {
+		this.startAfterRow = startAfterRow;
+		this.limit = limit;
+	}
+
+	// A page holding all the results
+	public static IndexedQueryPage all() {
+		return new IndexedQueryPage(null, 0);
+	}
+
+	public boolean isPaged() {
+		return startAfterRow != null || limit > 0;
+	}
+
+	public byte[] getStartAfterRow() {
+		return startAfterRow;
+	}
+
+	public int getLimit() {
+		return limit;
+	}
+
+	// The candidate rows of the page, sorted
+	public NavigableSet<byte[]> select(Set<byte[]> rows) {
+		NavigableSet<byte[]> sortedRows;
+		if (rows instanceof NavigableSet
+				&& ((NavigableSet<byte[]>) rows).comparator() == Bytes.BYTES_COMPARATOR) {
+			sortedRows = (NavigableSet<byte[]>) rows;
+		} else {
+			sortedRows = new TreeSet<byte[]>(Bytes.BYTES_COMPARATOR);
+			sortedRows.addAll(rows);
+		}
+		return startAfterRow == null ? sortedRows : sortedRows.tailSet(
+				startAfterRow, false);
+	}
+
+	public boolean isFull(int resultCount) {
+		return limit > 0 && resultCount >= limit;
+	}
+
+	public byte[] getContinuationRow() {
+		return continuationRow;
+	}
+
+	public void setContinuationRow(byte[] continuationRow) {
+		this.continuationRow = continuationRow;
+	}
+
+	public Strategy getStrategy() {
+		return strategy;
+	}
+
+	public void setStrategy(Strategy strategy) {
+		this.strategy = strategy;
+	}
+}
@@ -0,0 +1,90 @@
+package ca.mcgill.distsys.hbase96.indexcoprocessorsinmem;
+
+import java.util.List;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+
+/**
+ * The latest value of each indexed column of a row, as seen by index
+ * maintenance, stored by column ordinal of an {@link IndexUpdatePlan}. It
+ * starts from the values read from the region (or the forward map) and is
+ * updated with every mutation of a batch, so that several mutations of the
+ * same row within a batch see each other's values.
+ */
+public class IndexedRowState {
+
+	private final IndexUpdatePlan plan;
+	private final byte[][] values;
+
+	public IndexedRowState(IndexUpdatePlan plan) {
+		this.plan = plan;
+		this.values = new byte[plan.getColumnCount()][];
+	}
+
+	public IndexedRowState(IndexedRowState other) {
+		this.plan = other.plan;
+		this.values = other.values.clone();
+	}
+
+	public IndexedRowState(IndexUpdatePlan plan, List<Cell> cells) {
+		this(plan);
+		if (cells != null) {
+			for (Cell cell : cells) {
+				int ordinal = plan.findColumn(cell);
+				if (ordinal >= 0) {
+					values[ordinal] = CellUtil.cloneValue(cell);
+				}
+			}
+		}
+	}
+
+	public IndexUpdatePlan getPlan() {
+		return plan;
+	}
+
+	public byte[] get(int ordinal) {
+		return values[ordinal];
+	}
+
+	public void put(int ordinal, byte[] value) {
+		values[ordinal] = value;
+	}
+
+	public void delete(int ordinal) {
+		values[ordinal] = null;
+	}
+
+	public boolean isEmpty() {
+		for (byte[] value : values) {
+			if (value != null) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// The value the row has in the index of the given slot
+	public byte[] getIndexedValue(int slot) {
+		return plan.getIndexedValue(slot, values);
+	}
+
+	// The values of the included columns of the index of the given slot
+	public byte[][] getIncludedValues(int slot) {
+		return plan.getIncludedValues(slot, values);
+	}
+
+	// The same values, by ordinal of another plan
+	public IndexedRowState remap(IndexUpdatePlan newPlan) {
+		IndexedRowState rowState = new IndexedRowState(newPlan);
+		for (int ordinal = 0; ordinal < values.length; ordinal++) {
+			if (values[ordinal] != null) {
+				int newOrdinal = newPlan.findColumn(plan.getColumn(ordinal));
+				if (newOrdinal >= 0) {
+					rowState.values[newOrdinal] = values[ordinal];
+				}
+			}
+		}
+		return rowState;
+	}
+}
@@ -0,0 +1,172 @@
+package ca.mcgill.distsys.hbase96.indexcoprocessorsinmem;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.coprocessor.RegionCoprocessorEnvironment;
+import org.apache.hadoop.hbase.regionserver.RegionServerServices;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Fetches large sets of candidate rows in parallel, on a pool shared by all
+ * the regions of the region server, configured from the configuration of the
+ * server. Each region acquires it when its endpoint starts and releases it
+ * when it stops; the pool is shut down once no region of the server uses it.
+ * The sorted candidates are split into contiguous chunks of at least
+ * MIN_CHUNK_SIZE rows, and at most MAX_PARALLELISM chunks per query, so that
+ * one query cannot take the whole pool. The first chunk is fetched by the
+ * calling handler itself; results are merged back in chunk order, i.e. in
+ * row key order.
+ */
+public class ParallelRowFetcher {
+
+	private static final Log LOG = LogFactory.getLog(ParallelRowFetcher.class);
+
+	// Threads of the pool; 0 disables parallel fetches
+	public static final String THREADS = "index.coprocessor.fetch.threads";
+	// Maximum number of chunks a single query is split into
+	public static final String MAX_PARALLELISM = "index.coprocessor.fetch.max.parallelism";
+	public static final int MAX_PARALLELISM_DEFAULT = 4;
+	public static final String MIN_CHUNK_SIZE = "index.coprocessor.fetch.min.chunk.size";
+	public static final int MIN_CHUNK_SIZE_DEFAULT = 2000;
+
+	// Fetchers by region server, see getServer()
+	private static final Map<Object, ParallelRowFetcher> instances = new HashMap<Object, ParallelRowFetcher>();
+
+	private final Object server;
+	private final ExecutorService executor;
+	private final int maxParallelism;
+	private final int minChunkSize;
+	// Regions using the fetcher; guarded by the class
+	private int references = 0;
+
+	private ParallelRowFetcher(Object server, Configuration conf) {
+		this.server = server;
+		int threads = conf.getInt(THREADS, Runtime.getRuntime()
+				.availableProcessors());
+		this.maxParallelism = threads > 0 ? Math.max(1,
+				conf.getInt(MAX_PARALLELISM, MAX_PARALLELISM_DEFAULT)) : 1;
+		this.minChunkSize = Math.max(1,
+				conf.getInt(MIN_CHUNK_SIZE, MIN_CHUNK_SIZE_DEFAULT));
+		if (threads > 0) {
+			final AtomicInteger count = new AtomicInteger();
+			this.executor = Executors.newFixedThreadPool(threads,
+					new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r, "index-row-fetcher-"
+									+ count.incrementAndGet());
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+			LOG.info("INDEX: Fetching indexed query rows with " + threads
+					+ " threads, up to " + maxParallelism + " per query.");
+		} else {
+			this.executor = null;
+		}
+	}
+
+	public static synchronized ParallelRowFetcher acquire(
+			RegionCoprocessorEnvironment env) {
+		Object server = getServer(env);
+		ParallelRowFetcher fetcher = instances.get(server);
+		if (fetcher == null) {
+			RegionServerServices services = env.getRegionServerServices();
+			fetcher = new ParallelRowFetcher(server,
+					services != null ? services.getConfiguration() : env
+							.getConfiguration());
+			instances.put(server, fetcher);
+		}
+		fetcher.references++;
+		return fetcher;
+	}
+
+	public static synchronized void release(ParallelRowFetcher fetcher) {
+		if (--fetcher.references > 0) {
+			return;
+		}
+		instances.remove(fetcher.server);
+		if (fetcher.executor != null) {
+			LOG.info("INDEX: Stopping the index row fetch threads.");
+			fetcher.executor.shutdown();
+		}
+	}
+
+	// The region server of the region; regions opened outside of a region
+	// server share one fetcher
+	private static Object getServer(RegionCoprocessorEnvironment env) {
+		RegionServerServices services = env.getRegionServerServices();
+		return services != null ? services : ParallelRowFetcher.class;
+	}
+
+	// Contiguous chunks of the rows; a single chunk if they are too few to be
+	// worth splitting
+	public List<NavigableSet<byte[]>> split(NavigableSet<byte[]> rows) {
+		List<NavigableSet<byte[]>> chunks = new ArrayList<NavigableSet<byte[]>>();
+		int chunkCount = Math.min(maxParallelism, rows.size() / minChunkSize);
+		if (chunkCount <= 1) {
+			chunks.add(rows);
+			return chunks;
+		}
+		int chunkSize = (rows.size() + chunkCount - 1) / chunkCount;
+		NavigableSet<byte[]> chunk = null;
+		for (byte[] row : rows) {
+			if (chunk == null || chunk.size() == chunkSize) {
+				chunk = new TreeSet<byte[]>(Bytes.BYTES_COMPARATOR);
+				chunks.add(chunk);
+			}
+			chunk.add(row);
+		}
+		return chunks;
+	}
+
+	/**
+	 * Runs the fetch of every chunk and returns their results concatenated in
+	 * chunk order. If one fetch fails, the others are cancelled.
+	 */
+	public <T> List<T> fetch(List<Callable<List<T>>> chunkFetches)
+			throws IOException {
+		List<Future<List<T>>> futures = new ArrayList<Future<List<T>>>(
+				chunkFetches.size());
+		try {
+			for (int i = 1; i < chunkFetches.size(); i++) {
+				futures.add(executor.submit(chunkFetches.get(i)));
+			}
+			List<T> results = new ArrayList<T>(chunkFetches.get(0).call());
+			for (Future<List<T>> future : futures) {
+				results.addAll(future.get());
+			}
+			return results;
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof IOException ? (IOException) e
+					.getCause() : new IOException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("INDEX: Interrupted while fetching rows.", e);
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException(e);
+		} finally {
+			for (Future<List<T>> future : futures) {
+				future.cancel(true);
+			}
+		}
+	}
+}
@@ -0,0 +1,141 @@
+package ca.mcgill.distsys.hbase96.indexcoprocessorsinmem;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+
+import ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.pluggableIndex.AbstractPluggableIndex;
+import ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.protobuf.generated.IndexCoprocessorInMem.ProtoResult;
+
+/**
+ * LRU cache of the results of the indexed queries of a region, bounded in
+ * entries and in serialized result size. An entry records the version of
+ * each index it was computed from, and the data version of the region if it
+ * read rows from the region; it is dropped on lookup once any of them has
+ * moved on. Empty results are cached as well, so that repeated misses do
+ * not go back to the indexes.
+ */
+public class QueryResultCache {
+
+	// Maximum number of entries; 0 disables the cache
+	public static final String MAX_ENTRIES = "index.coprocessor.query.cache.entries";
+	public static final int MAX_ENTRIES_DEFAULT = 1000;
+	// Maximum serialized size of the cached results, in bytes
+	public static final String MAX_SIZE = "index.coprocessor.query.cache.size";
+	public static final long MAX_SIZE_DEFAULT = 16L * 1024 * 1024;
+
+	// Results larger than this part of the cache are not cached
+	private static final int MAX_ENTRY_FRACTION = 8;
+
+	static class Entry {
+		final List<ProtoResult> results;
+		final byte[] continuationRow;
+		final IndexedQueryPage.Strategy strategy;
+		final AbstractPluggableIndex[] indexes;
+		final long[] indexVersions;
+		// -1 if the results come from the indexes alone
+		final long dataVersion;
+		final long size;
+
+		Entry(List<ProtoResult> results, IndexedQueryPage page,
+				AbstractPluggableIndex[] indexes, long[] indexVersions,
+				long dataVersion, long size) {
+			this.results = Collections.unmodifiableList(results);
+			this.continuationRow = page.getContinuationRow();
+			this.strategy = page.getStrategy();
+			this.indexes = indexes;
+			this.indexVersions = indexVersions;
+			this.dataVersion = dataVersion;
+			this.size = size;
+		}
+
+		boolean isCurrent(long currentDataVersion) {
+			if (dataVersion >= 0 && dataVersion != currentDataVersion) {
+				return false;
+			}
+			for (int i = 0; i < indexes.length; i++) {
+				if (indexes[i].getVersion() != indexVersions[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	private final int maxEntries;
+	private final long maxSize;
+	private long size = 0;
+	private final LinkedHashMap<String, Entry> entries;
+
+	public QueryResultCache(Configuration conf) {
+		this.maxEntries = Math.max(0,
+				conf.getInt(MAX_ENTRIES, MAX_ENTRIES_DEFAULT));
+		this.maxSize = Math.max(0, conf.getLong(MAX_SIZE, MAX_SIZE_DEFAULT));
+		// access order, for LRU eviction
+		this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	}
+
+	public boolean isEnabled() {
+		return maxEntries > 0 && maxSize > 0;
+	}
+
+	// The results of the query, or null if they are not cached or stale.
+	// The page gets the continuation row and strategy of the cached page.
+	public synchronized List<ProtoResult> get(String key,
+			IndexedQueryPage page, long currentDataVersion) {
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			return null;
+		}
+		if (!entry.isCurrent(currentDataVersion)) {
+			remove(key);
+			return null;
+		}
+		page.setContinuationRow(entry.continuationRow);
+		page.setStrategy(entry.strategy);
+		return entry.results;
+	}
+
+	// Cache the results of the query, computed from the given indexes at the
+	// given versions (read before the query ran). dataVersion is -1 if the
+	// results were read from the indexes alone.
+	public synchronized void put(String key, List<ProtoResult> results,
+			IndexedQueryPage page, AbstractPluggableIndex[] indexes,
+			long[] indexVersions, long dataVersion) {
+		long entrySize = key.length() * 2;
+		for (ProtoResult result : results) {
+			entrySize += result.getSerializedSize();
+		}
+		if (entrySize > maxSize / MAX_ENTRY_FRACTION) {
+			return;
+		}
+		remove(key);
+		entries.put(key, new Entry(results, page, indexes, indexVersions,
+				dataVersion, entrySize));
+		size += entrySize;
+
+		Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet()
+				.iterator();
+		while ((entries.size() > maxEntries || size > maxSize)
+				&& eldest.hasNext()) {
+			size -= eldest.next().getValue().size;
+			eldest.remove();
+		}
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		size = 0;
+	}
+
+	private void remove(String key) {
+		Entry entry = entries.remove(key);
+		if (entry != null) {
+			size -= entry.size;
+		}
+	}
+}
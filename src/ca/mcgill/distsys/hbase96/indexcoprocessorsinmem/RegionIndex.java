@@ -6,16 +6,36 @@ import ca.mcgill.distsys.hbase96.indexcommonsinmem.proto.ByteArrayCriterion;
 import ca.mcgill.distsys.hbase96.indexcommonsinmem.proto.Column;
 import ca.mcgill.distsys.hbase96.indexcommonsinmem.proto.Criterion;
 import ca.mcgill.distsys.hbase96.indexcommonsinmem.proto.IndexedColumnQuery;
+import ca.mcgill.distsys.hbase96.indexcommonsinmem.proto.Range;
 import ca.mcgill.distsys.hbase96.indexcommonsinmem.proto.Criterion.CompareType;
 import ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.pluggableIndex.AbstractPluggableIndex;
+import ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.pluggableIndex.IndexDelta;
+import ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.pluggableIndex.commons.ByteArrayWrapper;
+import ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.pluggableIndex.commons.CompositeKeyBuilder;
+import ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.pluggableIndex.commons.RowBitmap;
+import ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.pluggableIndex.commons.RowKeyStream;
+import ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.pluggableIndex.commons.RowOrdinals;
 import ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.protobuf.generated.IndexCoprocessorInMem.ProtoResult;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.commons.math.util.MultidimensionalCounter.Iterator;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.client.Get;
 import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.BinaryComparator;
+import org.apache.hadoop.hbase.filter.BinaryPrefixComparator;
+import org.apache.hadoop.hbase.filter.CompareFilter.CompareOp;
+import org.apache.hadoop.hbase.filter.Filter;
 import org.apache.hadoop.hbase.filter.FilterList;
+import org.apache.hadoop.hbase.filter.SingleColumnValueFilter;
+import org.apache.hadoop.hbase.protobuf.ProtobufUtil;
 import org.apache.hadoop.hbase.regionserver.HRegion;
+import org.apache.hadoop.hbase.regionserver.MultiVersionConsistencyControl;
+import org.apache.hadoop.hbase.regionserver.RegionScanner;
 import org.apache.hadoop.hbase.util.Bytes;
 
 import java.io.IOException;
@@ -23,11 +43,22 @@ import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
 import java.util.Set;
+import java.util.SortedMap;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -42,18 +73,111 @@ public class RegionIndex implements Serializable {
 	private transient ReadWriteLock rwLock;
 	private int maxTreeSize;
 	private boolean splitting = false;
+	// Format of the keys of the multi-column indexes. Indexes written before
+	// the field existed read it as 0: their keys are the plain concatenation
+	// of the column values, not CompositeKeyBuilder keys.
+	private static final int KEY_FORMAT = 1;
+	private int keyFormat = KEY_FORMAT;
+	// Set when the region applies its index updates asynchronously
+	private transient volatile IndexUpdatePipeline updatePipeline;
+	// Parallel fetches of large candidate sets, shared by the regions of the
+	// server
+	private transient volatile ParallelRowFetcher rowFetcher;
+	// Optional row -> current values of the indexed columns, so that index
+	// updates can be computed without reading the region. Not persisted; it
+	// is rebuilt from the region when the index is opened.
+	private transient volatile ConcurrentHashMap<ByteArrayWrapper, IndexedRowState> forwardMap;
+	// putForwardState runs outside of rwLock: the read lock is taken by the
+	// writers of the forward map, the write lock to start a rebuild and to
+	// swap in the rebuilt map
+	private transient ReadWriteLock forwardMapLock;
+	// Row states put while the forward map is rebuilt, replayed into the new
+	// map once the region scan is done
+	private transient volatile ConcurrentHashMap<ByteArrayWrapper, IndexedRowState> forwardMapWrites;
+
+	// Table descriptor value or configuration property enabling the forward
+	// map
+	public static final String FORWARD_MAP = "index.coprocessor.forward.map";
+	// The indexed columns compiled for the mutation path
+	private transient volatile IndexUpdatePlan updatePlan;
+	// Row key ordinals for combining the row sets of several indexes,
+	// assigned by the indexes as they index rows and freed once no index
+	// references a row any more
+	private transient RowOrdinals rowOrdinals;
+	// Candidate rows shared by the queries of the batch of this thread, see
+	// collectBatchRows
+	private static final ThreadLocal<BatchRowFetch> batchRowFetch = new ThreadLocal<BatchRowFetch>();
+	// Results of repeated queries, created on the first query. dataVersion
+	// advances on every write to the region.
+	private transient volatile QueryResultCache queryCache;
+	private transient AtomicLong dataVersion;
+
+	// Configuration property: fraction of the indexed rows a query must be
+	// estimated to match for it to scan the whole region instead of reading
+	// the candidate rows one by one. Above 1 disables region scans.
+	public static final String SCAN_THRESHOLD = "index.coprocessor.scan.threshold";
+	public static final float SCAN_THRESHOLD_DEFAULT = 0.5f;
 
 	private void readObject(ObjectInputStream in) throws IOException,
 	ClassNotFoundException {
 		in.defaultReadObject();
 		rwLock = new ReentrantReadWriteLock(true);
+		forwardMapLock = new ReentrantReadWriteLock();
+		rowOrdinals = new RowOrdinals();
+		for (AbstractPluggableIndex rci : colIndex.values()) {
+			rci.setRowOrdinals(rowOrdinals);
+		}
+		dataVersion = new AtomicLong();
+		compileUpdatePlan();
 	}
 
 	public RegionIndex(int maxTreeSize) {
 		colIndex = new HashMap<String, AbstractPluggableIndex>();
 		singleMappedIndex = new HashMap<String, Set<IndexedColumn>>();
 		rwLock = new ReentrantReadWriteLock(true);
+		forwardMapLock = new ReentrantReadWriteLock();
 		this.maxTreeSize = maxTreeSize;
+		updatePlan = IndexUpdatePlan.EMPTY;
+		rowOrdinals = new RowOrdinals();
+		dataVersion = new AtomicLong();
+	}
+
+	// The queries of a batch run between beginBatch and endBatch, on the
+	// same thread, all see the same indexes: the read lock is held throughout
+	public void beginBatch() {
+		rwLock.readLock().lock();
+	}
+
+	public void endBatch() {
+		batchRowFetch.remove();
+		rwLock.readLock().unlock();
+	}
+
+	/**
+	 * Starts the collect pass of a batch: until fetchBatchRows, the queries
+	 * of this thread record the candidate rows they would read from the
+	 * region instead of reading them, and their responses are to be
+	 * discarded. Called between beginBatch and endBatch.
+	 */
+	public void collectBatchRows() {
+		batchRowFetch.set(new BatchRowFetch());
+	}
+
+	/**
+	 * Reads the candidate rows recorded by the collect pass in one pass over
+	 * the region. Until endBatch, the queries of this thread then take their
+	 * candidate rows from these.
+	 */
+	public void fetchBatchRows(HRegion region) throws IOException {
+		BatchRowFetch fetch = batchRowFetch.get();
+		if (fetch != null && !fetch.isFetched()) {
+			fetch.fetch(region);
+		}
+	}
+
+	private static boolean isCollectingBatchRows() {
+		BatchRowFetch fetch = batchRowFetch.get();
+		return fetch != null && !fetch.isFetched();
 	}
 
 	public boolean isEmpty() {
@@ -65,6 +189,41 @@ public class RegionIndex implements Serializable {
 		}
 	}
 
+	public IndexUpdatePipeline getUpdatePipeline() {
+		return updatePipeline;
+	}
+
+	public void setUpdatePipeline(IndexUpdatePipeline updatePipeline) {
+		this.updatePipeline = updatePipeline;
+	}
+
+	// Set by the endpoint of the region before each query; without one,
+	// rows are fetched serially
+	public void setRowFetcher(ParallelRowFetcher rowFetcher) {
+		this.rowFetcher = rowFetcher;
+	}
+
+	public IndexUpdatePlan getUpdatePlan() {
+		return updatePlan;
+	}
+
+	// Called whenever singleMappedIndex changes
+	private void compileUpdatePlan() {
+		Set<IndexedColumn> indexedColumns = new LinkedHashSet<IndexedColumn>();
+		for (Set<IndexedColumn> set : singleMappedIndex.values()) {
+			indexedColumns.addAll(set);
+		}
+		Map<String, List<Column>> includedColumns = new HashMap<String, List<Column>>();
+		for (Map.Entry<String, AbstractPluggableIndex> entry : colIndex
+				.entrySet()) {
+			if (entry.getValue().getIncludedColumns() != null) {
+				includedColumns.put(entry.getKey(), entry.getValue()
+						.getIncludedColumns());
+			}
+		}
+		updatePlan = IndexUpdatePlan.compile(indexedColumns, includedColumns);
+	}
+
 	public HashMap<String, Set<IndexedColumn>> getSingleMappedIndex() {
 		return singleMappedIndex;
 	}
@@ -164,18 +323,39 @@ public class RegionIndex implements Serializable {
 	public void add (List<Column> colList, HRegion region, String indexType,
 			Object[]arguments)
 			throws IOException, ClassNotFoundException, NoSuchMethodException {
+		add(colList, null, region, indexType, arguments);
+	}
+
+	// Covering index: the latest values of the included columns are kept in
+	// the index too
+	public void add (List<Column> colList, List<Column> includedColumns,
+			HRegion region, String indexType, Object[]arguments)
+			throws IOException, ClassNotFoundException, NoSuchMethodException {
 		rwLock.writeLock().lock();
 		try {
 			// Modified by Cong
 			AbstractPluggableIndex newColIdx = AbstractPluggableIndex
 					.getInstance(indexType, arguments);
+			newColIdx.setIncludedColumns(includedColumns);
+			newColIdx.setRowOrdinals(rowOrdinals);
 			String idxColKey = Util.concatColumnsToString(colList);
-			colIndex.put(idxColKey, newColIdx);
+			AbstractPluggableIndex oldColIdx = colIndex.put(idxColKey,
+					newColIdx);
+			if (oldColIdx != null) {
+				oldColIdx.setRowOrdinals(null);
+			}
 			// added by July 7th
 			singleMappedPut(colList);
+			compileUpdatePlan();
+			clearQueryCache();
 			// Modified by Cong
 			if (region != null) {
 				newColIdx.fullBuild(region);
+				newColIdx.buildIncludedValues(region, colList);
+				if (forwardMap != null) {
+					// pick up the values of the new indexed columns
+					rebuildForwardMap(region);
+				}
 			}
 		} finally {
 			rwLock.writeLock().unlock();
@@ -202,27 +382,99 @@ public class RegionIndex implements Serializable {
 		rwLock.writeLock().lock();
 		try {
 			String idxColKey = Util.concatColumnsToString(colList);
-			colIndex.remove(idxColKey);
+			detach(colIndex.remove(idxColKey));
 			removeFromSingleMappedIndex(colList);
+			compileUpdatePlan();
+			clearQueryCache();
+		} finally {
+			rwLock.writeLock().unlock();
+		}
+	}
+
+	// Rebuilds the multi-column indexes of an index read from an older
+	// format, whose keys no longer match the deltas and criteria. Used by
+	// HTableIndexCoprocessor.loadIndexFromFS()
+	public void upgradeKeyFormat(HRegion region) throws IOException,
+			ClassNotFoundException, NoSuchMethodException {
+		rwLock.writeLock().lock();
+		try {
+			if (keyFormat >= KEY_FORMAT) {
+				return;
+			}
+			for (Map.Entry<String, AbstractPluggableIndex> entry : colIndex
+					.entrySet()) {
+				if (Util.buildColumnList(entry.getKey()).size() < 2) {
+					continue;
+				}
+				LOG.info("INDEX: Rebuilding multi-column index ["
+						+ entry.getKey() + "] written with an older key format.");
+				entry.setValue(rebuild(entry.getKey(), entry.getValue(), region));
+			}
+			clearQueryCache();
+			keyFormat = KEY_FORMAT;
+		} finally {
+			rwLock.writeLock().unlock();
+		}
+	}
+
+	// Rebuilds indexes from the region, e.g. after updates failed to apply
+	// to them. Used by IndexUpdatePipeline.
+	public void rebuildIndexes(Collection<String> idxColKeys, HRegion region)
+			throws IOException, NoSuchMethodException {
+		rwLock.writeLock().lock();
+		try {
+			for (String idxColKey : idxColKeys) {
+				AbstractPluggableIndex oldColIdx = colIndex.get(idxColKey);
+				if (oldColIdx != null) {
+					LOG.info("INDEX: Rebuilding index [" + idxColKey + "].");
+					colIndex.put(idxColKey,
+							rebuild(idxColKey, oldColIdx, region));
+				}
+			}
+			clearQueryCache();
 		} finally {
 			rwLock.writeLock().unlock();
 		}
 	}
 
+	// A new index of the same type and columns, built from the region. The
+	// old one is detached from the row ordinals.
+	private AbstractPluggableIndex rebuild(String idxColKey,
+			AbstractPluggableIndex oldColIdx, HRegion region)
+			throws IOException, NoSuchMethodException {
+		AbstractPluggableIndex newColIdx = AbstractPluggableIndex.getInstance(
+				oldColIdx.getIndexType(), oldColIdx.getArguments());
+		newColIdx.setIncludedColumns(oldColIdx.getIncludedColumns());
+		newColIdx.setRowOrdinals(rowOrdinals);
+		newColIdx.fullBuild(region);
+		newColIdx.buildIncludedValues(region, Util.buildColumnList(idxColKey));
+		oldColIdx.setRowOrdinals(null);
+		return newColIdx;
+	}
+
 	// TODO: find a way to remove singleMappedIndex as well
 	// Used by HTableIndexCoprocessor.updateRegionIndexes()
 	public void remove(String colList) {
 		rwLock.writeLock().lock();
 		try {
 			//String idxColKey = Util.concatColumnsToString(colList);
-			colIndex.remove(colList);
+			detach(colIndex.remove(colList));
 			removeFromSingleMappedIndex(Util.buildColumnList(colList));
+			compileUpdatePlan();
+			clearQueryCache();
 		} finally {
 			rwLock.writeLock().unlock();
 		}
 	}
 	
 
+	// Releases the rows of a removed index from the row ordinals
+	private static void detach(AbstractPluggableIndex rci) {
+		if (rci != null) {
+			rci.setRowOrdinals(null);
+		}
+	}
+
 	public Set<String> getIndexedColumns() {
 		return colIndex.keySet();
 	}
@@ -242,6 +494,169 @@ public class RegionIndex implements Serializable {
 
 	}
 
+	public boolean hasForwardMap() {
+		return forwardMap != null;
+	}
+
+	// The current values of the indexed columns of the row, as a copy the
+	// caller may update and put back
+	public IndexedRowState getForwardState(byte[] row, IndexUpdatePlan plan) {
+		IndexedRowState rowState = forwardMap.get(new ByteArrayWrapper(row));
+		if (rowState == null) {
+			return new IndexedRowState(plan);
+		} else if (rowState.getPlan() != plan) {
+			// written before an index was added or removed
+			return rowState.remap(plan);
+		}
+		return new IndexedRowState(rowState);
+	}
+
+	// Called by the writers of the row, in the order of their writes. A no-op
+	// when there is no forward map and none is being built.
+	public void putForwardState(byte[] row, IndexedRowState rowState) {
+		forwardMapLock.readLock().lock();
+		try {
+			ByteArrayWrapper key = new ByteArrayWrapper(row);
+			ConcurrentHashMap<ByteArrayWrapper, IndexedRowState> writes = forwardMapWrites;
+			if (writes != null) {
+				writes.put(key, rowState);
+			}
+			ConcurrentHashMap<ByteArrayWrapper, IndexedRowState> map = forwardMap;
+			if (map == null) {
+				return;
+			}
+			if (rowState.isEmpty()) {
+				map.remove(key);
+			} else {
+				map.put(key, rowState);
+			}
+		} finally {
+			forwardMapLock.readLock().unlock();
+		}
+	}
+
+	// Build the forward map from the values of all indexed columns in the
+	// region
+	public void buildForwardMap(HRegion region) throws IOException {
+		rwLock.writeLock().lock();
+		try {
+			rebuildForwardMap(region);
+		} finally {
+			rwLock.writeLock().unlock();
+		}
+	}
+
+	// Scans the region into a new forward map. Writers do not wait for the
+	// scan, which may miss their writes: the states they put meanwhile are
+	// recorded and replayed into the new map before it replaces the current
+	// one. Called with the write lock held.
+	private void rebuildForwardMap(HRegion region) throws IOException {
+		forwardMapLock.writeLock().lock();
+		forwardMapWrites = new ConcurrentHashMap<ByteArrayWrapper, IndexedRowState>();
+		forwardMapLock.writeLock().unlock();
+		try {
+			IndexUpdatePlan plan = updatePlan;
+			ConcurrentHashMap<ByteArrayWrapper, IndexedRowState> newForwardMap = scanForwardMap(region);
+			forwardMapLock.writeLock().lock();
+			try {
+				for (Map.Entry<ByteArrayWrapper, IndexedRowState> entry : forwardMapWrites
+						.entrySet()) {
+					IndexedRowState rowState = entry.getValue();
+					if (rowState.getPlan() != plan) {
+						// computed without the columns of an index being
+						// added: read the row again
+						rowState = readForwardState(region,
+								entry.getKey().get(), plan);
+					}
+					if (rowState.isEmpty()) {
+						newForwardMap.remove(entry.getKey());
+					} else {
+						newForwardMap.put(entry.getKey(), rowState);
+					}
+				}
+				forwardMap = newForwardMap;
+			} finally {
+				forwardMapLock.writeLock().unlock();
+			}
+		} finally {
+			forwardMapWrites = null;
+		}
+	}
+
+	private IndexedRowState readForwardState(HRegion region, byte[] row,
+			IndexUpdatePlan plan) throws IOException {
+		Get get = new Get(row);
+		for (int ordinal = 0; ordinal < plan.getColumnCount(); ordinal++) {
+			Column col = plan.getColumn(ordinal);
+			get.addColumn(col.getFamily(), col.getQualifier());
+		}
+		Result current = region.get(get);
+		return new IndexedRowState(plan, current.isEmpty() ? null : Arrays
+				.asList(current.rawCells()));
+	}
+
+	private ConcurrentHashMap<ByteArrayWrapper, IndexedRowState> scanForwardMap(
+			HRegion region) throws IOException {
+		ConcurrentHashMap<ByteArrayWrapper, IndexedRowState> newForwardMap = new ConcurrentHashMap<ByteArrayWrapper, IndexedRowState>();
+		IndexUpdatePlan plan = updatePlan;
+		if (plan.getColumnCount() == 0) {
+			return newForwardMap;
+		}
+
+		Scan scan = new Scan();
+		for (int ordinal = 0; ordinal < plan.getColumnCount(); ordinal++) {
+			Column col = plan.getColumn(ordinal);
+			scan.addColumn(col.getFamily(), col.getQualifier());
+		}
+		scan.setCacheBlocks(false); // don't want to fill the cache
+									// uselessly and create churn
+		RegionScanner scanner = region.getScanner(scan);
+		MultiVersionConsistencyControl.setThreadReadPoint(
+				scanner.getMvccReadPoint());
+		region.startRegionOperation();
+
+		try {
+			List<Cell> values = new ArrayList<Cell>();
+			boolean more;
+			do {
+				values.clear();
+				more = scanner.nextRaw(values);
+				if (!values.isEmpty()) {
+					byte[] row = CellUtil.cloneRow(values.get(0));
+					newForwardMap.put(new ByteArrayWrapper(row),
+							new IndexedRowState(plan, values));
+				}
+			} while (more);
+		} finally {
+			scanner.close();
+			region.closeRegionOperation();
+		}
+		return newForwardMap;
+	}
+
+	// Apply the index updates computed for a batch of mutations, one
+	// index at a time. Keys are the indexed column keys of colIndex.
+	public void applyDeltas(Map<String, List<IndexDelta>> deltasByIndex)
+	throws IOException {
+		rwLock.readLock().lock();
+		try {
+			if (splitting) {
+				throw new IOException("The Region and Region Index are being "
+						+ "split; no updates possible at this moment.");
+			}
+			for (Map.Entry<String, List<IndexDelta>> entry : deltasByIndex
+					.entrySet()) {
+				AbstractPluggableIndex rci = colIndex.get(entry.getKey());
+				if (rci != null) {
+					rci.applyDeltas(entry.getValue());
+					rci.advanceVersion();
+				}
+			}
+		} finally {
+			rwLock.readLock().unlock();
+		}
+	}
+
 	/*
 	public AbstractPluggableIndex getValue(byte [] key) throws IOException{
 
@@ -276,7 +691,13 @@ public class RegionIndex implements Serializable {
 				AbstractPluggableIndex rciDaughterRegionB =
 						AbstractPluggableIndex
 								.getInstance(indexType, arguments);
+				rciDaughterRegionA
+						.setRowOrdinals(daughterRegionAIndex.rowOrdinals);
+				rciDaughterRegionB
+						.setRowOrdinals(daughterRegionBIndex.rowOrdinals);
 				rci.split(rciDaughterRegionA, rciDaughterRegionB, splitRow);
+				rci.splitIncludedValues(rciDaughterRegionA,
+						rciDaughterRegionB, splitRow);
 
 				// To be Done: Need to check the size of the keyset?
 
@@ -294,56 +715,741 @@ public class RegionIndex implements Serializable {
 	public List<ProtoResult> filterRowsFromCriteria(
 			List<Criterion<?>> criteriaOnIndexColumns,
 			List<Criterion<?>> criteriaOnNonIndexedColumns,
-			IndexedColumnQuery query, HRegion region) throws IOException,
-			ClassNotFoundException {
+			IndexedColumnQuery query, HRegion region, IndexedQueryPage page,
+			boolean keysOnly) throws IOException, ClassNotFoundException {
 		rwLock.readLock().lock();
 
 		try {
-			Set<byte[]> result = new TreeSet<byte[]>(Bytes.BYTES_COMPARATOR);
-			boolean firstRows = true;
-			boolean mustPassAll = query.isMustPassAllCriteria();
-			/*
-			 * Filter from index
-			 */
+			List<AbstractPluggableIndex> usedIndexes = new ArrayList<AbstractPluggableIndex>();
 			for (Criterion<?> criterion : criteriaOnIndexColumns) {
-				Column column = criterion.getCompareColumn();
+				usedIndexes.add(colIndex.get(criterion.getCompareColumn()
+						.toString()));
+			}
+
+			QueryResultCache cache = getQueryCache(region);
+			if (!cache.isEnabled() || isCollectingBatchRows()) {
+				return queryIndexes(criteriaOnIndexColumns,
+						criteriaOnNonIndexedColumns, usedIndexes, query,
+						region, page, keysOnly);
+			}
+			List<Criterion<?>> criteria = new ArrayList<Criterion<?>>(
+					criteriaOnIndexColumns);
+			criteria.addAll(criteriaOnNonIndexedColumns);
+			String cacheKey = getCacheKey(null, criteria,
+					query.isMustPassAllCriteria(), query.getColumnList(), page,
+					keysOnly);
+			List<ProtoResult> cached = cache.get(cacheKey, page,
+					dataVersion.get());
+			if (cached != null) {
+				return cached;
+			}
+			long startDataVersion = dataVersion.get();
+			long[] indexVersions = getVersions(usedIndexes);
+			List<ProtoResult> resultList = queryIndexes(
+					criteriaOnIndexColumns, criteriaOnNonIndexedColumns,
+					usedIndexes, query, region, page, keysOnly);
+			cacheResults(cache, cacheKey, resultList, page, usedIndexes,
+					indexVersions, startDataVersion);
+			return resultList;
+		} finally {
+			rwLock.readLock().unlock();
+		}
+	}
+
+	// Case 2 query, with the indexes of the criteria on indexed columns; the
+	// caller holds the read lock
+	private List<ProtoResult> queryIndexes(
+			List<Criterion<?>> criteriaOnIndexColumns,
+			List<Criterion<?>> criteriaOnNonIndexedColumns,
+			List<AbstractPluggableIndex> usedIndexes,
+			IndexedColumnQuery query, HRegion region, IndexedQueryPage page,
+			boolean keysOnly) throws IOException {
+		boolean covered = true;
+		for (AbstractPluggableIndex rci : usedIndexes) {
+			covered &= rci.covers(query.getColumnList());
+		}
+		boolean indexOnly = criteriaOnNonIndexedColumns.isEmpty()
+				&& (keysOnly || covered);
 
-				AbstractPluggableIndex rci = colIndex.get(column.toString());
+		/*
+		 * The results are read from the region, further filtering by
+		 * criteria on non indexed columns.
+		 */
+		FilterList filterList = buildFilterListFromCriteria(
+				criteriaOnNonIndexedColumns, query.isMustPassAllCriteria());
+		List<Column> fetchColumns = query.getColumnList();
+		if (keysOnly) {
+			// only what the filters need
+			fetchColumns = new ArrayList<Column>();
+			for (Criterion<?> criterion : criteriaOnNonIndexedColumns) {
+				fetchColumns.add(criterion.getCompareColumn());
+			}
+		}
 
-				Set<byte[]> partialRows = rci.filterRowsFromCriteria(criterion);
+		Filter indexedFilter = indexOnly ? null : buildIndexedScanFilter(
+				criteriaOnIndexColumns, query.isMustPassAllCriteria());
+		if (indexedFilter != null
+				&& shouldScanRegion(
+						estimateCandidates(criteriaOnIndexColumns,
+								query.isMustPassAllCriteria()),
+						getIndexedRowCount(usedIndexes), region)) {
+			// Same semantics as below: the criteria on non indexed
+			// columns apply on top of the indexed ones
+			FilterList scanFilter = new FilterList(
+					FilterList.Operator.MUST_PASS_ALL);
+			scanFilter.addFilter(indexedFilter);
+			if (filterList != null) {
+				scanFilter.addFilter(filterList);
+			}
+			return scanRegion(scanFilter, getColumns(criteriaOnIndexColumns),
+					fetchColumns, region, page, keysOnly);
+		}
 
-				if (partialRows != null && !partialRows.isEmpty()) {
-					if (firstRows || !mustPassAll) {
-						result.addAll(partialRows);
-					} else {
-						result.retainAll(partialRows);
-					}
+		if (page.getLimit() > 0) {
+			// LIMIT pages read the postings lazily, and stop once full
+			final List<Criterion<?>> streamCriteria = criteriaOnIndexColumns;
+			final boolean mustPassAll = query.isMustPassAllCriteria();
+			RowStreamSource source = new RowStreamSource() {
+				@Override
+				public RowKeyStream open() {
+					return streamRowsFromIndexes(streamCriteria, mustPassAll);
+				}
+			};
+			if (indexOnly) {
+				page.setStrategy(IndexedQueryPage.Strategy.INDEX_ONLY);
+				return fetchPageFromStream(source, null,
+						query.getColumnList(), usedIndexes, region, page,
+						keysOnly);
+			}
+			return fetchPageFromStream(source, filterList, fetchColumns,
+					null, region, page, keysOnly);
+		}
+
+		/*
+		 * Filter from index
+		 */
+		Set<byte[]> result = filterRowsFromIndexes(criteriaOnIndexColumns,
+				query.isMustPassAllCriteria());
+		if (result.isEmpty()) {
+			page.setStrategy(IndexedQueryPage.Strategy.INDEX_ONLY);
+			return new ArrayList<ProtoResult>(0);
+		}
+
+		if (indexOnly) {
+			page.setStrategy(IndexedQueryPage.Strategy.INDEX_ONLY);
+			return getResultsFromIndexes(result, usedIndexes,
+					query.getColumnList(), keysOnly, page);
+		}
+
+		List<ProtoResult> filteredRows = prefilteredLocalMultiGet(result,
+				filterList, fetchColumns, region, page, keysOnly);
+
+		return filteredRows;
+	}
+
+	// Rows matching the criteria on single-column indexes, intersected
+	// (MUST_PASS_ALL) or merged (MUST_PASS_ONE). Intersections start with the
+	// most selective criterion and stop as soon as the result is empty. The
+	// row sets are combined as bitmaps of row ordinals, built by the engines
+	// from their postings; only the rows of the result are resolved back to
+	// row keys. Engines that keep no row ordinals are combined as row sets.
+	private Set<byte[]> filterRowsFromIndexes(
+			List<Criterion<?>> criteriaOnIndexColumns, boolean mustPassAll) {
+		Set<byte[]> result = new TreeSet<byte[]>(Bytes.BYTES_COMPARATOR);
+		if (criteriaOnIndexColumns.size() == 1) {
+			Criterion<?> criterion = criteriaOnIndexColumns.get(0);
+			Set<byte[]> rows = colIndex.get(
+					criterion.getCompareColumn().toString())
+					.filterRowsFromCriteria(criterion);
+			if (rows != null) {
+				result.addAll(rows);
+			}
+			return result;
+		}
+
+		if (mustPassAll) {
+			criteriaOnIndexColumns = orderBySelectivity(criteriaOnIndexColumns);
+		}
+		rowOrdinals.beginQuery();
+		try {
+			RowBitmap combined = null;
+			for (Criterion<?> criterion : criteriaOnIndexColumns) {
+				AbstractPluggableIndex rci = colIndex.get(criterion
+						.getCompareColumn().toString());
+				RowBitmap rows = rci.filterRowBitmap(criterion);
+				if (rows == null) {
+					return filterRowSetsFromIndexes(criteriaOnIndexColumns,
+							mustPassAll);
+				}
+				if (combined == null) {
+					combined = rows;
+				} else if (mustPassAll) {
+					combined = combined.and(rows);
 				} else {
-					if (mustPassAll) {
-						// intersection of an empty set with any set yields an
-						// empty set.
-						return new ArrayList<ProtoResult>(0);
-					} else {
-						// continue
+					combined = combined.or(rows);
+				}
+				if (mustPassAll && combined.isEmpty()) {
+					// intersection of an empty set with any set yields an
+					// empty set.
+					return result;
+				}
+			}
+			rowOrdinals.resolve(combined, result);
+			return result;
+		} finally {
+			rowOrdinals.endQuery();
+		}
+	}
+
+	// filterRowsFromIndexes with the row sets of the indexes
+	private Set<byte[]> filterRowSetsFromIndexes(
+			List<Criterion<?>> criteriaOnIndexColumns, boolean mustPassAll) {
+		Set<byte[]> result = null;
+		for (Criterion<?> criterion : criteriaOnIndexColumns) {
+			Set<byte[]> rows = colIndex.get(
+					criterion.getCompareColumn().toString())
+					.filterRowsFromCriteria(criterion);
+			if (rows == null) {
+				rows = Collections.emptySet();
+			}
+			if (result == null) {
+				result = new TreeSet<byte[]>(Bytes.BYTES_COMPARATOR);
+				result.addAll(rows);
+			} else if (mustPassAll) {
+				result.retainAll(rows);
+			} else {
+				result.addAll(rows);
+			}
+			if (mustPassAll && result.isEmpty()) {
+				break;
+			}
+		}
+		return result;
+	}
+
+	// Rows matching the criteria on single-column indexes, as a lazy stream:
+	// a leapfrog intersection (MUST_PASS_ALL), led by the most selective
+	// criterion, or a k-way merge (MUST_PASS_ONE) of the index streams. The
+	// caller closes it.
+	private RowKeyStream streamRowsFromIndexes(
+			List<Criterion<?>> criteriaOnIndexColumns, boolean mustPassAll) {
+		if (mustPassAll && criteriaOnIndexColumns.size() > 1) {
+			criteriaOnIndexColumns = orderBySelectivity(criteriaOnIndexColumns);
+		}
+		List<RowKeyStream> streams = new ArrayList<RowKeyStream>(
+				criteriaOnIndexColumns.size());
+		try {
+			for (Criterion<?> criterion : criteriaOnIndexColumns) {
+				streams.add(colIndex.get(
+						criterion.getCompareColumn().toString())
+						.filterRowStream(criterion));
+			}
+		} catch (RuntimeException e) {
+			for (RowKeyStream stream : streams) {
+				stream.close();
+			}
+			throw e;
+		}
+		return mustPassAll ? RowKeyStream.intersection(streams) : RowKeyStream
+				.union(streams);
+	}
+
+	// Opens a stream over the rows matching a query. The stream may hold the
+	// read locks of its indexes until it is closed.
+	private interface RowStreamSource {
+		RowKeyStream open();
+	}
+
+	// Fetch a LIMIT page from the rows of the streams, from the region or,
+	// given the covering indexes, from the indexes. Rows are pulled in
+	// batches doubling in size until the page is full, so that the postings
+	// are read about as far as the rows returned. Each batch of row keys is
+	// collected and its stream closed before the rows are read, so that the
+	// index locks are not held during region I/O; the next batch reopens a
+	// stream after the last key of the previous one.
+	private static List<ProtoResult> fetchPageFromStream(
+			RowStreamSource source, Filter filter, List<Column> columnList,
+			List<AbstractPluggableIndex> coveringIndexes, HRegion region,
+			IndexedQueryPage page, boolean keysOnly) throws IOException {
+		List<ProtoResult> resultList = new ArrayList<ProtoResult>(
+				page.getLimit());
+		byte[] startAfterRow = page.getStartAfterRow();
+		int batchSize = page.getLimit();
+		while (true) {
+			NavigableSet<byte[]> batch = new TreeSet<byte[]>(
+					Bytes.BYTES_COMPARATOR);
+			boolean more;
+			RowKeyStream stream = source.open();
+			try {
+				byte[] row;
+				if (startAfterRow == null) {
+					row = stream.next();
+				} else {
+					row = stream.seek(startAfterRow);
+					if (row != null && Bytes.equals(row, startAfterRow)) {
+						row = stream.next();
 					}
 				}
-				firstRows = false;
+				while (row != null && batch.size() < batchSize) {
+					batch.add(row);
+					row = stream.next();
+				}
+				more = row != null;
+			} finally {
+				stream.close();
+			}
+			if (batch.isEmpty()) {
+				break;
+			}
+
+			IndexedQueryPage batchPage = new IndexedQueryPage(null,
+					page.getLimit() - resultList.size());
+			if (coveringIndexes != null) {
+				resultList.addAll(getResultsFromIndexes(batch, coveringIndexes,
+						columnList, keysOnly, batchPage));
+			} else {
+				resultList.addAll(fetchRows(batch, filter, columnList, region,
+						batchPage, keysOnly));
+			}
+			if (isCollectingBatchRows()) {
+				// the first batch is all a collect pass records
+				break;
+			}
+			if (page.isFull(resultList.size())) {
+				if (batchPage.getContinuationRow() != null) {
+					page.setContinuationRow(batchPage.getContinuationRow());
+				} else if (more) {
+					page.setContinuationRow(batch.last());
+				}
+				break;
+			}
+			if (!more) {
+				break;
+			}
+			// the filters rejected rows: continue after the last key
+			startAfterRow = batch.last();
+			batchSize *= 2;
+		}
+		return resultList;
+	}
+
+	// The criteria by increasing estimated number of rows, from the posting
+	// sizes. A criterion matching no row is enough on its own.
+	private List<Criterion<?>> orderBySelectivity(List<Criterion<?>> criteria) {
+		final Map<Criterion<?>, Long> estimates = new IdentityHashMap<Criterion<?>, Long>();
+		for (Criterion<?> criterion : criteria) {
+			long estimate = colIndex.get(criterion.getCompareColumn().toString())
+					.estimateRows(criterion);
+			if (estimate == 0) {
+				return Collections.<Criterion<?>> singletonList(criterion);
+			}
+			estimates.put(criterion, estimate);
+		}
+		List<Criterion<?>> ordered = new ArrayList<Criterion<?>>(criteria);
+		Collections.sort(ordered, new Comparator<Criterion<?>>() {
+			@Override
+			public int compare(Criterion<?> a, Criterion<?> b) {
+				return estimates.get(a).compareTo(estimates.get(b));
+			}
+		});
+		return ordered;
+	}
+
+	/**
+	 * Number of rows of each distinct value of the index on exactly the
+	 * criteria columns, for the values matching the criteria, or null if there
+	 * is no such index. Only the posting sizes are read.
+	 */
+	public SortedMap<byte[], Integer> countByValue(List<Criterion<?>> criteria) {
+		rwLock.readLock().lock();
+		try {
+			AbstractPluggableIndex rci = colIndex.get(getIndexKey(criteria));
+			if (rci == null) {
+				return null;
+			}
+			return rci.countByValue(toIndexCriterion(criteria));
+		} finally {
+			rwLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Number of rows matching criteria that are all on indexed columns, from
+	 * the postings only: the posting sizes when a single index covers the
+	 * criteria, otherwise the size of the combined row sets.
+	 */
+	public long countRowsFromCriteria(List<Criterion<?>> criteria,
+			boolean mustPassAll) {
+		rwLock.readLock().lock();
+		try {
+			if (colIndex.containsKey(getIndexKey(criteria))) {
+				long count = 0;
+				for (int rows : countByValue(criteria).values()) {
+					count += rows;
+				}
+				return count;
 			}
+			return filterRowsFromIndexes(criteria, mustPassAll).size();
+		} finally {
+			rwLock.readLock().unlock();
+		}
+	}
 
-			/*
-			 * Get the results from the region, further filtering by criteria on
-			 * non indexed columns.
-			 */
-			FilterList filterList = buildFilterListFromCriteria(
-					criteriaOnNonIndexedColumns, query.isMustPassAllCriteria());
-			List<ProtoResult> filteredRows = prefilteredLocalMultiGet(result,
-					filterList, query.getColumnList(), region);
+	/**
+	 * Reduces a column over the rows matching the criteria, on the region
+	 * server. Rows are selected as in filterRowsFromCriteria: by the index on
+	 * exactly the criteria columns if there is one, otherwise by the
+	 * single-column indexes, the criteria on non indexed columns being
+	 * applied while reading the region. The values come from the indexes
+	 * when they include the column.
+	 */
+	public void aggregateRowsFromCriteria(
+			List<Criterion<?>> criteriaOnIndexColumns,
+			List<Criterion<?>> criteriaOnNonIndexedColumns, boolean mustPassAll,
+			Column aggregateColumn, HRegion region, ColumnAggregator aggregator)
+			throws IOException {
+		rwLock.readLock().lock();
+		try {
+			List<AbstractPluggableIndex> usedIndexes = new ArrayList<AbstractPluggableIndex>();
+			FilterList filterList;
+			Set<byte[]> rows;
+			AbstractPluggableIndex rci = colIndex
+					.get(getIndexKey(criteriaOnIndexColumns));
+			boolean singleIndex = rci != null
+					&& criteriaOnNonIndexedColumns.isEmpty();
+			if (singleIndex) {
+				usedIndexes.add(rci);
+				rows = rci.filterRowsFromCriteria(
+						toIndexCriterion(criteriaOnIndexColumns));
+				// same check of the multi-column values as a query
+				filterList = criteriaOnIndexColumns.size() > 1 ? buildFilterListFromCriteria(
+						criteriaOnIndexColumns, true) : null;
+			} else {
+				for (Criterion<?> criterion : criteriaOnIndexColumns) {
+					usedIndexes.add(colIndex.get(criterion.getCompareColumn()
+							.toString()));
+				}
+				rows = filterRowsFromIndexes(criteriaOnIndexColumns,
+						mustPassAll);
+				filterList = buildFilterListFromCriteria(
+						criteriaOnNonIndexedColumns, mustPassAll);
+			}
+			if (rows == null || rows.isEmpty()) {
+				return;
+			}
+
+			List<Column> aggregated = Collections.singletonList(aggregateColumn);
+			boolean covered = criteriaOnNonIndexedColumns.isEmpty();
+			for (AbstractPluggableIndex index : usedIndexes) {
+				covered &= index.covers(aggregated);
+			}
+			if (covered) {
+				for (byte[] row : rows) {
+					byte[] value = getIncludedValue(row, usedIndexes,
+							aggregateColumn);
+					if (value != null) {
+						aggregator.add(value);
+					}
+				}
+				return;
+			}
 
-			return filteredRows;
+			List<Column> fetchColumns = new ArrayList<Column>();
+			fetchColumns.add(aggregateColumn);
+			for (Criterion<?> criterion : criteriaOnNonIndexedColumns) {
+				fetchColumns.add(criterion.getCompareColumn());
+			}
+			if (singleIndex && filterList != null) {
+				for (Criterion<?> criterion : criteriaOnIndexColumns) {
+					fetchColumns.add(criterion.getCompareColumn());
+				}
+			}
+			aggregateRows(IndexedQueryPage.all().select(rows), filterList,
+					fetchColumns, aggregateColumn, region, aggregator);
 		} finally {
 			rwLock.readLock().unlock();
 		}
+	}
+
+	// The included value of the column for the row, from the first index
+	// holding the included values of the row
+	private static byte[] getIncludedValue(byte[] row,
+			List<AbstractPluggableIndex> indexes, Column column) {
+		for (AbstractPluggableIndex rci : indexes) {
+			byte[][] values = rci.getIncludedValues(row);
+			if (values != null) {
+				return values[rci.getIncludedColumns().indexOf(column)];
+			}
+		}
+		return null;
+	}
+
+	// Reduce the aggregated column of the candidate rows in one pass over the
+	// region; only the values are kept, not the rows
+	private static void aggregateRows(NavigableSet<byte[]> rows, Filter filter,
+			List<Column> columnList, Column aggregateColumn, HRegion region,
+			ColumnAggregator aggregator) throws IOException {
+		SortedRowScanner scanner = new SortedRowScanner(region,
+				newCandidateScan(rows, filter, columnList));
+		try {
+			for (byte[] row : rows) {
+				List<Cell> cells = scanner.get(row);
+				if (cells == null) {
+					continue;
+				}
+				for (Cell cell : cells) {
+					if (CellUtil.matchingColumn(cell, aggregateColumn.getFamily(),
+							aggregateColumn.getQualifier())) {
+						aggregator.add(cell.getValueArray(),
+								cell.getValueOffset(), cell.getValueLength());
+						break;
+					}
+				}
+			}
+		} finally {
+			scanner.close();
+		}
+	}
+
+	private static String getIndexKey(List<Criterion<?>> criteria) {
+		return Util.concatColumnsToString(getColumns(criteria));
+	}
+
+	private static List<Column> getColumns(List<Criterion<?>> criteria) {
+		List<Column> columns = new ArrayList<Column>(criteria.size());
+		for (Criterion<?> criterion : criteria) {
+			columns.add(criterion.getCompareColumn());
+		}
+		return columns;
+	}
+
+	// Estimated number of rows matching the criteria on single-column
+	// indexes, Long.MAX_VALUE if unknown
+	private long estimateCandidates(List<Criterion<?>> criteria,
+			boolean mustPassAll) {
+		long estimate = mustPassAll ? Long.MAX_VALUE : 0;
+		for (Criterion<?> criterion : criteria) {
+			long rows = colIndex.get(criterion.getCompareColumn().toString())
+					.estimateRows(criterion);
+			if (mustPassAll) {
+				estimate = Math.min(estimate, rows);
+			} else if (rows == Long.MAX_VALUE) {
+				return Long.MAX_VALUE;
+			} else {
+				estimate += rows;
+			}
+		}
+		return estimate;
+	}
+
+	// Rows in the largest of the indexes, -1 if unknown
+	private static long getIndexedRowCount(List<AbstractPluggableIndex> indexes) {
+		long rows = -1;
+		for (AbstractPluggableIndex rci : indexes) {
+			rows = Math.max(rows, rci.getIndexedRowCount());
+		}
+		return rows;
+	}
+
+	// Whether the candidate rows are enough of the indexed rows for one
+	// sequential pass over the region to beat reading them one by one
+	private static boolean shouldScanRegion(long candidates, long indexedRows,
+			HRegion region) {
+		float threshold = region.getConf().getFloat(SCAN_THRESHOLD,
+				SCAN_THRESHOLD_DEFAULT);
+		return indexedRows > 0 && candidates != Long.MAX_VALUE
+				&& candidates >= threshold * indexedRows;
+	}
+
+	// Answer the query with one filtered pass over the region, with the
+	// results fetchRows gives for the candidate rows of the indexed columns:
+	// only the fetched columns are returned (all of them if there are none),
+	// and rows with none of them are dropped. The indexed columns are read
+	// too, so that the filter sees them.
+	private static List<ProtoResult> scanRegion(Filter filter,
+			List<Column> indexedColumns, List<Column> fetchColumns,
+			HRegion region, IndexedQueryPage page, boolean keysOnly)
+			throws IOException {
+		page.setStrategy(IndexedQueryPage.Strategy.REGION_SCAN);
+		if (isCollectingBatchRows()) {
+			// region scans are not shared: the second pass runs them
+			return new ArrayList<ProtoResult>(0);
+		}
+		Scan scan = new Scan();
+		if (page.getStartAfterRow() != null) {
+			scan.setStartRow(Bytes.add(page.getStartAfterRow(),
+					new byte[] { 0 }));
+		}
+		if (!fetchColumns.isEmpty()) {
+			for (Column col : indexedColumns) {
+				scan.addColumn(col.getFamily(), col.getQualifier());
+			}
+			for (Column col : fetchColumns) {
+				scan.addColumn(col.getFamily(), col.getQualifier());
+			}
+		}
+		scan.setFilter(filter);
+		scan.setCacheBlocks(false); // don't want to fill the cache
+									// uselessly and create churn
+
+		List<ProtoResult> resultList = new ArrayList<ProtoResult>();
+		SortedRowScanner scanner = new SortedRowScanner(region, scan);
+		try {
+			List<Cell> cells;
+			while ((cells = scanner.next()) != null) {
+				byte[] row = CellUtil.cloneRow(cells.get(0));
+				List<Cell> fetched = cells;
+				if (!fetchColumns.isEmpty()) {
+					fetched = new ArrayList<Cell>(cells.size());
+					for (Cell cell : cells) {
+						for (Column col : fetchColumns) {
+							if (CellUtil.matchingColumn(cell, col.getFamily(),
+									col.getQualifier())) {
+								fetched.add(cell);
+								break;
+							}
+						}
+					}
+					if (fetched.isEmpty()) {
+						continue;
+					}
+				}
+				resultList.add(keysOnly ? toKeyOnlyResult(row) : Util
+						.toResult(Result.create(fetched)));
+				if (page.isFull(resultList.size())) {
+					if (scanner.next() != null) {
+						page.setContinuationRow(row);
+					}
+					break;
+				}
+			}
+		} finally {
+			scanner.close();
+		}
+		return resultList;
+	}
 
+	// The query result cache of the region, sized from the region
+	// configuration on the first query
+	private QueryResultCache getQueryCache(HRegion region) {
+		QueryResultCache cache = queryCache;
+		if (cache == null) {
+			synchronized (this) {
+				if (queryCache == null) {
+					queryCache = new QueryResultCache(region.getConf());
+				}
+				cache = queryCache;
+			}
+		}
+		return cache;
+	}
+
+	private void clearQueryCache() {
+		if (queryCache != null) {
+			queryCache.clear();
+		}
+	}
+
+	// Cached query results reading the region are stale after any write to
+	// the region, even one not changing any index
+	public void advanceDataVersion() {
+		dataVersion.incrementAndGet();
+	}
+
+	private static long[] getVersions(List<AbstractPluggableIndex> indexes) {
+		long[] versions = new long[indexes.size()];
+		for (int i = 0; i < versions.length; i++) {
+			versions[i] = indexes.get(i).getVersion();
+		}
+		return versions;
+	}
+
+	// Results answered from the indexes alone do not depend on the region
+	// data
+	private static void cacheResults(QueryResultCache cache, String cacheKey,
+			List<ProtoResult> resultList, IndexedQueryPage page,
+			List<AbstractPluggableIndex> indexes, long[] indexVersions,
+			long startDataVersion) {
+		cache.put(cacheKey, resultList, page, indexes
+				.toArray(new AbstractPluggableIndex[indexes.size()]),
+				indexVersions,
+				page.getStrategy() == IndexedQueryPage.Strategy.INDEX_ONLY ? -1
+						: startDataVersion);
+	}
+
+	// Normalized query: the criteria are sorted unless given in the order of
+	// a multi-column index (idxColKey), the projected columns are sorted.
+	// Fields are separated by newlines, which toStringBinary escapes.
+	private static String getCacheKey(String idxColKey,
+			List<Criterion<?>> criteria, boolean mustPassAll,
+			List<Column> projectColumns, IndexedQueryPage page,
+			boolean keysOnly) {
+		List<String> criterionKeys = new ArrayList<String>(criteria.size());
+		for (Criterion<?> criterion : criteria) {
+			criterionKeys.add(getCacheKey(criterion));
+		}
+		if (idxColKey == null) {
+			Collections.sort(criterionKeys);
+		}
+		List<String> columnKeys = new ArrayList<String>(projectColumns.size());
+		for (Column col : projectColumns) {
+			columnKeys.add(col.toString());
+		}
+		Collections.sort(columnKeys);
+
+		StringBuilder key = new StringBuilder();
+		key.append(idxColKey).append('\n').append(mustPassAll).append('\n')
+				.append(keysOnly).append('\n').append(page.getLimit())
+				.append('\n');
+		if (page.getStartAfterRow() != null) {
+			key.append(Bytes.toStringBinary(page.getStartAfterRow()));
+		}
+		key.append('\n').append(criterionKeys).append('\n')
+				.append(columnKeys);
+		return key.toString();
+	}
+
+	private static String getCacheKey(Criterion<?> criterion) {
+		StringBuilder key = new StringBuilder();
+		key.append(criterion.getCompareColumn()).append('\n')
+				.append(criterion.getComparisonType()).append('\n');
+		if (criterion.getComparisonType() == CompareType.RANGE) {
+			key.append(
+					Bytes.toStringBinary(criterion.getRange().getLowerBound()))
+					.append('\n')
+					.append(Bytes.toStringBinary(criterion.getRange()
+							.getHigherBound()));
+		} else if (criterion.getComparisonType() == CompareType.IN) {
+			List<String> values = new ArrayList<String>();
+			for (byte[] value : AbstractPluggableIndex.getInValues(criterion)) {
+				values.add(Bytes.toStringBinary(value));
+			}
+			Collections.sort(values);
+			key.append(values);
+		} else {
+			Object value = criterion.getComparisonValue();
+			key.append(value instanceof byte[] ? Bytes
+					.toStringBinary((byte[]) value) : String.valueOf(value));
+		}
+		return key.toString();
+	}
+
+	// The criterion to look up in the index on the criteria columns: the
+	// criterion itself, or the composite key of the values for multi-column
+	// indexes
+	private static Criterion<?> toIndexCriterion(List<Criterion<?>> criteria) {
+		if (criteria.size() == 1) {
+			return criteria.get(0);
+		}
+		CompositeKeyBuilder builder = CompositeKeyBuilder.get();
+		for (Criterion<?> criterion : criteria) {
+			if (criterion.getComparisonType() == CompareType.IN) {
+				throw new UnsupportedOperationException("IN criteria cannot "
+						+ "be looked up in a multi-column index.");
+			}
+			builder.add((byte[]) criterion.getComparisonValue());
+		}
+		return new ByteArrayCriterion(builder.toBytes());
 	}
 
 	private static FilterList buildFilterListFromCriteria(
@@ -366,28 +1472,259 @@ public class RegionIndex implements Serializable {
 		return null;
 	}
 
+	// The criteria on indexed columns as a filter matching exactly the rows
+	// the indexes return: rows without the column never match, and values
+	// compare as bytes like in the indexes. Null if a criterion has no such
+	// filter, in which case the region is not scanned.
+	private static Filter buildIndexedScanFilter(List<Criterion<?>> criteria,
+			boolean mustPassAll) {
+		FilterList filterList = new FilterList(
+				mustPassAll ? FilterList.Operator.MUST_PASS_ALL
+						: FilterList.Operator.MUST_PASS_ONE);
+		for (Criterion<?> criterion : criteria) {
+			Column col = criterion.getCompareColumn();
+			switch (criterion.getComparisonType()) {
+			case EQUAL:
+				filterList.addFilter(newIndexedFilter(col, CompareOp.EQUAL,
+						(byte[]) criterion.getComparisonValue()));
+				break;
+			case GREATER:
+				filterList.addFilter(newIndexedFilter(col, CompareOp.GREATER,
+						(byte[]) criterion.getComparisonValue()));
+				break;
+			case GREATER_OR_EQUAL:
+				filterList.addFilter(newIndexedFilter(col,
+						CompareOp.GREATER_OR_EQUAL,
+						(byte[]) criterion.getComparisonValue()));
+				break;
+			case LESS:
+				filterList.addFilter(newIndexedFilter(col, CompareOp.LESS,
+						(byte[]) criterion.getComparisonValue()));
+				break;
+			case LESS_OR_EQUAL:
+				filterList.addFilter(newIndexedFilter(col,
+						CompareOp.LESS_OR_EQUAL,
+						(byte[]) criterion.getComparisonValue()));
+				break;
+			case RANGE:
+				Range range = criterion.getRange();
+				FilterList rangeFilter = new FilterList(
+						FilterList.Operator.MUST_PASS_ALL);
+				rangeFilter.addFilter(newIndexedFilter(col,
+						CompareOp.GREATER_OR_EQUAL, range.getLowerBound()));
+				rangeFilter.addFilter(newIndexedFilter(col,
+						CompareOp.LESS_OR_EQUAL, range.getHigherBound()));
+				filterList.addFilter(rangeFilter);
+				break;
+			case PREFIX:
+				SingleColumnValueFilter prefixFilter = new SingleColumnValueFilter(
+						col.getFamily(), col.getQualifier(), CompareOp.EQUAL,
+						new BinaryPrefixComparator(
+								(byte[]) criterion.getComparisonValue()));
+				prefixFilter.setFilterIfMissing(true);
+				filterList.addFilter(prefixFilter);
+				break;
+			case IN:
+				FilterList inFilter = new FilterList(
+						FilterList.Operator.MUST_PASS_ONE);
+				for (byte[] value : AbstractPluggableIndex
+						.getInValues(criterion)) {
+					inFilter.addFilter(newIndexedFilter(col, CompareOp.EQUAL,
+							value));
+				}
+				filterList.addFilter(inFilter);
+				break;
+			default:
+				return null;
+			}
+		}
+		return filterList;
+	}
+
+	private static SingleColumnValueFilter newIndexedFilter(Column col,
+			CompareOp op, byte[] value) {
+		SingleColumnValueFilter filter = new SingleColumnValueFilter(
+				col.getFamily(), col.getQualifier(), op, new BinaryComparator(
+						value));
+		filter.setFilterIfMissing(true);
+		return filter;
+	}
+
 	private List<ProtoResult> prefilteredLocalMultiGet(Set<byte[]> rows,
-			FilterList filterList, List<Column> columnList, HRegion region)
-	throws IOException {
+			FilterList filterList, final List<Column> columnList,
+			final HRegion region, IndexedQueryPage page, final boolean keysOnly)
+			throws IOException {
+
+		NavigableSet<byte[]> pageRows = page.select(rows);
+		ParallelRowFetcher fetcher = rowFetcher;
+		if (fetcher != null && page.getLimit() <= 0
+				&& batchRowFetch.get() == null) {
+			// Large unbounded results are fetched in parallel chunks. Bounded
+			// pages stay serial, as they stop after a few rows anyway. The
+			// queries of a batch share their candidate rows instead.
+			List<NavigableSet<byte[]>> chunks = fetcher.split(pageRows);
+			if (chunks.size() > 1) {
+				List<Callable<List<ProtoResult>>> chunkFetches = new ArrayList<Callable<List<ProtoResult>>>(
+						chunks.size());
+				for (final NavigableSet<byte[]> chunk : chunks) {
+					// Filters keep state while scanning: each chunk gets its own
+					final Filter chunkFilter = filterList == null ? null
+							: ProtobufUtil.toFilter(ProtobufUtil
+									.toFilter(filterList));
+					chunkFetches.add(new Callable<List<ProtoResult>>() {
+						@Override
+						public List<ProtoResult> call() throws IOException {
+							return fetchRows(chunk, chunkFilter, columnList,
+									region, IndexedQueryPage.all(), keysOnly);
+						}
+					});
+				}
+				return fetcher.fetch(chunkFetches);
+			}
+		}
+		return fetchRows(pageRows, filterList, columnList, region, page,
+				keysOnly);
+	}
+
+	// Fetch the rows of the page in one pass over the region, stopping as
+	// soon as the page is full. The scanner only visits the candidate rows,
+	// and the filter on non indexed columns is set up once.
+	private static List<ProtoResult> fetchRows(NavigableSet<byte[]> pageRows,
+			Filter filter, List<Column> columnList, HRegion region,
+			IndexedQueryPage page, boolean keysOnly) throws IOException {
+
+		List<ProtoResult> resultList = new ArrayList<ProtoResult>(
+				page.isFull(pageRows.size()) ? page.getLimit() : pageRows.size());
+		if (pageRows.isEmpty()) {
+			return resultList;
+		}
 
-		List<ProtoResult> resultList = new ArrayList<ProtoResult>(rows.size());
+		BatchRowFetch batchFetch = batchRowFetch.get();
+		if (batchFetch != null && !batchFetch.isFetched()) {
+			// collect pass of a batch, whose responses are discarded: only
+			// the rows read without a filter are shared
+			if (filter == null) {
+				batchFetch.add(pageRows, columnList);
+			}
+			return resultList;
+		}
+		boolean shared = batchFetch != null && filter == null
+				&& batchFetch.covers(pageRows);
 
-		for (byte[] row : rows) {
-			Get get = new Get(row);
-			for (Column col : columnList) {
-				get.addColumn(col.getFamily(), col.getQualifier());
+		SortedRowScanner scanner = shared ? null : new SortedRowScanner(
+				region, newCandidateScan(pageRows, filter, columnList));
+		try {
+			java.util.Iterator<byte[]> it = pageRows.iterator();
+			while (it.hasNext()) {
+				byte[] row = it.next();
+				List<Cell> cells = shared ? batchFetch.get(row, columnList)
+						: scanner.get(row);
+				if (cells != null) {
+					resultList.add(keysOnly ? toKeyOnlyResult(row) : Util
+							.toResult(Result.create(cells)));
+					if (page.isFull(resultList.size())) {
+						if (it.hasNext()) {
+							page.setContinuationRow(row);
+						}
+						break;
+					}
+				}
 			}
-			get.setFilter(filterList);
+		} finally {
+			if (scanner != null) {
+				scanner.close();
+			}
+		}
+
+		return resultList;
+	}
 
-			Result result = region.get(get);
-			if (result != null && !result.isEmpty()) {
+	// A scan of the columns of the candidate rows (not empty) passing the
+	// filter
+	private static Scan newCandidateScan(NavigableSet<byte[]> rows,
+			Filter filter, List<Column> columnList) {
+		Scan scan = SortedRowScanner.newScan(rows.first(), rows.last());
+		for (Column col : columnList) {
+			scan.addColumn(col.getFamily(), col.getQualifier());
+		}
+		FilterList scanFilter = new FilterList(FilterList.Operator.MUST_PASS_ALL);
+		scanFilter.addFilter(new CandidateRowFilter(rows));
+		if (filter != null) {
+			scanFilter.addFilter(filter);
+		}
+		scan.setFilter(scanFilter);
+		return scan;
+	}
+
+	// Answer the query from the postings and the included values of the
+	// indexes, without reading the region
+	private static List<ProtoResult> getResultsFromIndexes(Set<byte[]> rows,
+			List<AbstractPluggableIndex> indexes, List<Column> projectColumns,
+			boolean keysOnly, IndexedQueryPage page) throws IOException {
+		NavigableSet<byte[]> pageRows = page.select(rows);
+		List<ProtoResult> resultList = new ArrayList<ProtoResult>(
+				page.isFull(pageRows.size()) ? page.getLimit() : pageRows.size());
+
+		java.util.Iterator<byte[]> it = pageRows.iterator();
+		while (it.hasNext()) {
+			byte[] row = it.next();
+			if (keysOnly) {
+				resultList.add(toKeyOnlyResult(row));
+			} else {
+				Result result = getCoveredResult(row, indexes, projectColumns);
+				if (result == null) {
+					// none of the projected columns is set, as a Get would
+					// have returned nothing
+					continue;
+				}
 				resultList.add(Util.toResult(result));
 			}
+			if (page.isFull(resultList.size())) {
+				if (it.hasNext()) {
+					page.setContinuationRow(row);
+				}
+				break;
+			}
 		}
-
 		return resultList;
 	}
 
+	// The projected columns of the row, from the first index holding its
+	// included values. Values come without their timestamp.
+	private static Result getCoveredResult(byte[] row,
+			List<AbstractPluggableIndex> indexes, List<Column> projectColumns) {
+		for (AbstractPluggableIndex rci : indexes) {
+			byte[][] values = rci.getIncludedValues(row);
+			if (values == null) {
+				continue;
+			}
+			List<KeyValue> cells = new ArrayList<KeyValue>(
+					projectColumns.size());
+			for (Column col : projectColumns) {
+				byte[] value = values[rci.getIncludedColumns().indexOf(col)];
+				if (value != null) {
+					cells.add(new KeyValue(row, col.getFamily(), col
+							.getQualifier(), HConstants.LATEST_TIMESTAMP, value));
+				}
+			}
+			if (cells.isEmpty()) {
+				return null;
+			}
+			KeyValue[] sortedCells = cells.toArray(new KeyValue[cells.size()]);
+			Arrays.sort(sortedCells, KeyValue.COMPARATOR);
+			return Result.create(sortedCells);
+		}
+		return null;
+	}
+
+	// A result carrying the row key only
+	private static ProtoResult toKeyOnlyResult(byte[] row) {
+		return Util.toResult(Result.create(new Cell[] { new KeyValue(row,
+				HConstants.EMPTY_BYTE_ARRAY, HConstants.EMPTY_BYTE_ARRAY,
+				HConstants.LATEST_TIMESTAMP, KeyValue.Type.Put,
+				HConstants.EMPTY_BYTE_ARRAY) }));
+	}
+
 	public void setSplitting(boolean b) {
 		splitting = true;
 	}
@@ -396,57 +1733,182 @@ public class RegionIndex implements Serializable {
 	// Filter rows from index query
 	public List<ProtoResult> filterRowsFromCriteria(String idxColKey,
 			List<Criterion<?>> selectCriteria, List<Column> projectColumns,
-			HRegion region)
+			HRegion region, IndexedQueryPage page, boolean keysOnly)
 	throws IOException {
 
 		try {
 			rwLock.readLock().lock();
 
-			Criterion<?> selectCriterion = selectCriteria.get(0);
+			AbstractPluggableIndex rci = colIndex.get(idxColKey);
+			QueryResultCache cache = getQueryCache(region);
+			if (!cache.isEnabled() || isCollectingBatchRows()) {
+				return queryIndex(rci, selectCriteria, projectColumns, region,
+						page, keysOnly);
+			}
+			// criteria stay in the order of the index columns
+			String cacheKey = getCacheKey(idxColKey, selectCriteria, true,
+					projectColumns, page, keysOnly);
+			List<ProtoResult> cached = cache.get(cacheKey, page,
+					dataVersion.get());
+			if (cached != null) {
+				return cached;
+			}
+			List<AbstractPluggableIndex> usedIndexes = Collections
+					.singletonList(rci);
+			long startDataVersion = dataVersion.get();
+			long[] indexVersions = getVersions(usedIndexes);
+			List<ProtoResult> resultList = queryIndex(rci, selectCriteria,
+					projectColumns, region, page, keysOnly);
+			cacheResults(cache, cacheKey, resultList, page, usedIndexes,
+					indexVersions, startDataVersion);
+			return resultList;
+		} finally {
+			rwLock.readLock().unlock();
+		}
+	}
+
+	// Case 1 query, on the index on exactly the criteria columns; the caller
+	// holds the read lock
+	private List<ProtoResult> queryIndex(AbstractPluggableIndex rci,
+			List<Criterion<?>> selectCriteria, List<Column> projectColumns,
+			HRegion region, IndexedQueryPage page, boolean keysOnly)
+			throws IOException {
+		// Multi-column indexes are queried with the composite key
+		Criterion<?> selectCriterion = toIndexCriterion(selectCriteria);
+
+		boolean indexOnly = keysOnly || rci.covers(projectColumns);
+
+		Filter indexedFilter = indexOnly ? null : buildIndexedScanFilter(
+				selectCriteria, true);
+		if (indexedFilter != null
+				&& shouldScanRegion(rci.estimateRows(selectCriterion),
+						rci.getIndexedRowCount(), region)) {
+			return scanRegion(indexedFilter, getColumns(selectCriteria),
+					projectColumns, region, page, false);
+		}
+
+		FilterList filterList = null;
+		if (selectCriteria.size() > 1) {
+			// Multi-column case:
+			// Apply a MUST_PASS_ALL filter for the given criteria to
+			// ensure that results that have the given concatenated
+			// value for the given criteria are actually the same as
+			// the value being queried.
+			filterList = buildFilterListFromCriteria(selectCriteria, true);
+		}
 
-			if (selectCriteria.size() > 1) {
-				// Use multi-column index
-				byte[] concatValues = null;
-				for (Criterion<?> criterion : selectCriteria) {
-					concatValues = Util.concatByteArray(concatValues,
-							(byte[]) criterion.getComparisonValue());
+		if (page.getLimit() > 0) {
+			// LIMIT pages read the postings lazily, and stop once full
+			final AbstractPluggableIndex streamIndex = rci;
+			final Criterion<?> streamCriterion = selectCriterion;
+			RowStreamSource source = new RowStreamSource() {
+				@Override
+				public RowKeyStream open() {
+					return streamIndex.filterRowStream(streamCriterion);
 				}
-				// Create concatenated criterion
-				selectCriterion = new ByteArrayCriterion(concatValues);
+			};
+			if (indexOnly) {
+				page.setStrategy(IndexedQueryPage.Strategy.INDEX_ONLY);
+				return fetchPageFromStream(source, null, projectColumns,
+						Collections.singletonList(rci), region, page,
+						keysOnly);
 			}
+			return fetchPageFromStream(source, filterList, projectColumns,
+					null, region, page, false);
+		}
+
+		Set<byte[]> rowKeys = rci.filterRowsFromCriteria(selectCriterion);
 
+		List<ProtoResult> resultList;
+		if (rowKeys != null && !rowKeys.isEmpty() && indexOnly) {
+			// The composite keys are unambiguous, the postings alone
+			// answer the query
+			page.setStrategy(IndexedQueryPage.Strategy.INDEX_ONLY);
+			resultList = getResultsFromIndexes(rowKeys,
+					Collections.singletonList(rci), projectColumns,
+					keysOnly, page);
+		} else if (rowKeys != null && !rowKeys.isEmpty()) {
+			resultList = prefilteredLocalMultiGet(rowKeys, filterList,
+					projectColumns, region, page, false);
+		} else {
+			// no matching rows found, from the index alone
+			page.setStrategy(IndexedQueryPage.Strategy.INDEX_ONLY);
+			resultList = new ArrayList<>(0);
+		}
+
+		return resultList;
+	}
+	
+	
+	/**
+	 * Top-N query: at most limit rows matching the criteria on the index on
+	 * exactly the criteria columns, ordered by the indexed value. The index
+	 * stops at limit rows, and only these rows are read from the region; each
+	 * region returns its own top N.
+	 */
+	public List<ProtoResult> filterRowsInValueOrder(String idxColKey,
+			List<Criterion<?>> selectCriteria, List<Column> projectColumns,
+			HRegion region, boolean descending, int limit, boolean keysOnly)
+			throws IOException {
+		rwLock.readLock().lock();
+		try {
 			AbstractPluggableIndex rci = colIndex.get(idxColKey);
+			// The composite keys are unambiguous: no need to check the values
+			// of multi-column indexes
+			List<byte[]> rows = rci.filterRowsInValueOrder(
+					toIndexCriterion(selectCriteria), descending, limit);
 
-			Set<byte[]> rowKeys = rci.filterRowsFromCriteria(selectCriterion);
-
-			List<ProtoResult> resultList;
-			if (rowKeys != null && !rowKeys.isEmpty()) {
-				FilterList filterList = null;
-				if (selectCriteria.size() > 1) {
-					// Multi-column case:
-					// Apply a MUST_PASS_ALL filter for the given criteria to
-					// ensure that results that have the given concatenated
-					// value for the given criteria are actually the same as
-					// the value being queried.
-					filterList = buildFilterListFromCriteria(selectCriteria,
-							true);
-				}
-				resultList = prefilteredLocalMultiGet(rowKeys, filterList,
-						projectColumns, region);
-			} else {
-				// no matching rows found
-				resultList = new ArrayList<>(0);
+			List<ProtoResult> resultList = new ArrayList<ProtoResult>(
+					rows.size());
+			if (keysOnly || rci.covers(projectColumns)) {
+				for (byte[] row : rows) {
+					if (keysOnly) {
+						resultList.add(toKeyOnlyResult(row));
+					} else {
+						Result result = getCoveredResult(row,
+								Collections.singletonList(rci), projectColumns);
+						if (result != null) {
+							resultList.add(Util.toResult(result));
+						}
+					}
+				}
+				return resultList;
+			}
+			if (rows.isEmpty()) {
+				return resultList;
 			}
 
+			// Read the rows in one pass in row key order, then return them in
+			// value order
+			NavigableSet<byte[]> sortedRows = new TreeSet<byte[]>(
+					Bytes.BYTES_COMPARATOR);
+			sortedRows.addAll(rows);
+			Map<ByteArrayWrapper, Result> fetched = new HashMap<ByteArrayWrapper, Result>();
+			SortedRowScanner scanner = new SortedRowScanner(region,
+					newCandidateScan(sortedRows, null, projectColumns));
+			try {
+				for (byte[] row : sortedRows) {
+					List<Cell> cells = scanner.get(row);
+					if (cells != null) {
+						fetched.put(new ByteArrayWrapper(row),
+								Result.create(cells));
+					}
+				}
+			} finally {
+				scanner.close();
+			}
+			for (byte[] row : rows) {
+				Result result = fetched.get(new ByteArrayWrapper(row));
+				if (result != null) {
+					resultList.add(Util.toResult(result));
+				}
+			}
 			return resultList;
-
 		} finally {
 			rwLock.readLock().unlock();
 		}
-
 	}
-	
-	
+
 	 // just for test purpose
 	public static void printSingleMappedIndex(HashMap<String, Set<IndexedColumn>> index) {
 		for(String key: index.keySet()){
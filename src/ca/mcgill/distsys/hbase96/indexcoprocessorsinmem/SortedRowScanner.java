@@ -0,0 +1,109 @@
+package ca.mcgill.distsys.hbase96.indexcoprocessorsinmem;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.regionserver.HRegion;
+import org.apache.hadoop.hbase.regionserver.MultiVersionConsistencyControl;
+import org.apache.hadoop.hbase.regionserver.RegionScanner;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Reads a set of rows from a region in a single forward pass. The rows must
+ * be requested in ascending order; the scanner reseeks from one row to the
+ * next instead of paying for a separate Get per row. It can also simply
+ * return every row of the scan in turn.
+ */
+public class SortedRowScanner implements Closeable {
+
+	private final HRegion region;
+	private final RegionScanner scanner;
+	// Cells of a row that was read while looking for an earlier, missing row
+	private List<Cell> readAhead;
+	private boolean more = true;
+
+	public SortedRowScanner(HRegion region, Scan scan) throws IOException {
+		this.region = region;
+		this.scanner = region.getScanner(scan);
+		try {
+			MultiVersionConsistencyControl.setThreadReadPoint(scanner
+					.getMvccReadPoint());
+			region.startRegionOperation();
+		} catch (IOException e) {
+			scanner.close();
+			throw e;
+		}
+	}
+
+	// Scan covering the rows [firstRow, lastRow], both inclusive
+	public static Scan newScan(byte[] firstRow, byte[] lastRow) {
+		return new Scan(firstRow, Bytes.add(lastRow, new byte[] { 0 }));
+	}
+
+	/**
+	 * Returns the cells of the given row, or null if the row does not exist
+	 * (or was filtered out). Rows must be requested in ascending order.
+	 */
+	public List<Cell> get(byte[] row) throws IOException {
+		if (readAhead != null) {
+			int cmp = compareRow(readAhead.get(0), row);
+			if (cmp == 0) {
+				List<Cell> result = readAhead;
+				readAhead = null;
+				return result;
+			} else if (cmp > 0) {
+				// the scanner is already past the requested row
+				return null;
+			}
+			readAhead = null;
+		}
+		if (!more) {
+			return null;
+		}
+
+		scanner.reseek(row);
+		List<Cell> cells = new ArrayList<Cell>();
+		more = scanner.nextRaw(cells);
+		if (cells.isEmpty()) {
+			return null;
+		}
+		if (compareRow(cells.get(0), row) == 0) {
+			return cells;
+		}
+		readAhead = cells;
+		return null;
+	}
+
+	/**
+	 * Returns the cells of the next row of the scan, or null at its end, for
+	 * sequential passes. Not to be mixed with get().
+	 */
+	public List<Cell> next() throws IOException {
+		while (more) {
+			List<Cell> cells = new ArrayList<Cell>();
+			more = scanner.nextRaw(cells);
+			if (!cells.isEmpty()) {
+				return cells;
+			}
+		}
+		return null;
+	}
+
+	private static int compareRow(Cell cell, byte[] row) {
+		return Bytes.compareTo(cell.getRowArray(), cell.getRowOffset(),
+				cell.getRowLength(), row, 0, row.length);
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			scanner.close();
+		} finally {
+			region.closeRegionOperation();
+		}
+	}
+}
@@ -1,16 +1,41 @@
 package ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.pluggableIndex;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.client.Scan;
 import org.apache.hadoop.hbase.regionserver.HRegion;
+import org.apache.hadoop.hbase.regionserver.MultiVersionConsistencyControl;
+import org.apache.hadoop.hbase.regionserver.RegionScanner;
+import org.apache.hadoop.hbase.util.Bytes;
 
+import ca.mcgill.distsys.hbase96.indexcommonsinmem.proto.ByteArrayCriterion;
+import ca.mcgill.distsys.hbase96.indexcommonsinmem.proto.Column;
 import ca.mcgill.distsys.hbase96.indexcommonsinmem.proto.Criterion;
+import ca.mcgill.distsys.hbase96.indexcommonsinmem.proto.Range;
+import ca.mcgill.distsys.hbase96.indexcommonsinmem.proto.Criterion.CompareType;
+import ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.pluggableIndex.commons.ByteArrayWrapper;
+import ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.pluggableIndex.commons.RowBitmap;
+import ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.pluggableIndex.commons.RowKeyStream;
+import ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.pluggableIndex.commons.RowOrdinals;
 
 public abstract class AbstractPluggableIndex implements Serializable {
 
@@ -21,6 +46,24 @@ public abstract class AbstractPluggableIndex implements Serializable {
 
 	private String indexType;
 	private Object[] arguments;
+	// Included (covered) columns of the index, and their latest values for
+	// every indexed row, kept next to the postings so that queries projecting
+	// only these columns are answered without reading the region. Both are
+	// null for indexes without included columns.
+	private List<Column> includedColumns;
+	private ConcurrentHashMap<ByteArrayWrapper, byte[][]> includedValues;
+	// Advanced after every update of the postings or included values, so
+	// that cached query results can tell they are stale. Not persisted.
+	private transient AtomicLong version = new AtomicLong();
+	// Ordinals of the rows of the region, shared by the indexes of its
+	// region index; null while the index is not attached to one
+	private transient volatile RowOrdinals rowOrdinals;
+
+	private void readObject(ObjectInputStream in) throws IOException,
+			ClassNotFoundException {
+		in.defaultReadObject();
+		version = new AtomicLong();
+	}
 
 	// Return an instance of the object
 	public synchronized static AbstractPluggableIndex getInstance(
@@ -141,8 +184,355 @@ public abstract class AbstractPluggableIndex implements Serializable {
 
 	public abstract void remove(byte[] key, byte[] value);
 
+	// Apply the index updates of a whole batch of mutations. Indexes guarded
+	// by a single lock should override this to acquire it once per batch.
+	public void applyDeltas(List<IndexDelta> deltas) {
+		for (IndexDelta delta : deltas) {
+			// deltas of covering indexes may only change included values
+			if (!Arrays.equals(delta.getOldValue(), delta.getNewValue())) {
+				if (delta.getOldValue() != null) {
+					remove(delta.getOldValue(), delta.getRow());
+				}
+				if (delta.getNewValue() != null) {
+					add(delta.getNewValue(), delta.getRow());
+				}
+			}
+			if (includedValues != null) {
+				ByteArrayWrapper row = new ByteArrayWrapper(delta.getRow());
+				if (delta.getNewValue() != null
+						&& delta.getIncludedValues() != null) {
+					includedValues.put(row, delta.getIncludedValues());
+				} else {
+					includedValues.remove(row);
+				}
+			}
+		}
+	}
+
+	public long getVersion() {
+		return version.get();
+	}
+
+	public void advanceVersion() {
+		version.incrementAndGet();
+	}
+
+	public List<Column> getIncludedColumns() {
+		return includedColumns;
+	}
+
+	public void setIncludedColumns(List<Column> includedColumns) {
+		if (includedColumns == null || includedColumns.isEmpty()) {
+			this.includedColumns = null;
+			this.includedValues = null;
+		} else {
+			this.includedColumns = new ArrayList<Column>(includedColumns);
+			this.includedValues = new ConcurrentHashMap<ByteArrayWrapper, byte[][]>();
+		}
+	}
+
+	// Whether all the given columns are included columns of the index
+	public boolean covers(List<Column> columns) {
+		return includedColumns != null && !columns.isEmpty()
+				&& includedColumns.containsAll(columns);
+	}
+
+	// Latest values of the included columns of an indexed row, in the order
+	// of getIncludedColumns(), or null
+	public byte[][] getIncludedValues(byte[] row) {
+		return includedValues == null ? null : includedValues
+				.get(new ByteArrayWrapper(row));
+	}
+
+	// Load the included values of the rows having all the index columns
+	public void buildIncludedValues(HRegion region, List<Column> indexColumns)
+			throws IOException {
+		if (includedColumns == null) {
+			return;
+		}
+		Scan scan = new Scan();
+		for (Column col : indexColumns) {
+			scan.addColumn(col.getFamily(), col.getQualifier());
+		}
+		for (Column col : includedColumns) {
+			scan.addColumn(col.getFamily(), col.getQualifier());
+		}
+		scan.setCacheBlocks(false);
+		RegionScanner scanner = region.getScanner(scan);
+		MultiVersionConsistencyControl.setThreadReadPoint(scanner
+				.getMvccReadPoint());
+		region.startRegionOperation();
+
+		try {
+			includedValues.clear();
+			List<Cell> values = new ArrayList<Cell>();
+			boolean more;
+			do {
+				values.clear();
+				more = scanner.nextRaw(values);
+				if (values.isEmpty() || !containsAll(values, indexColumns)) {
+					continue;
+				}
+				byte[][] rowValues = new byte[includedColumns.size()][];
+				for (Cell cell : values) {
+					for (int i = 0; i < includedColumns.size(); i++) {
+						Column col = includedColumns.get(i);
+						if (CellUtil.matchingColumn(cell, col.getFamily(),
+								col.getQualifier())) {
+							rowValues[i] = CellUtil.cloneValue(cell);
+						}
+					}
+				}
+				includedValues.put(new ByteArrayWrapper(CellUtil
+						.cloneRow(values.get(0))), rowValues);
+			} while (more);
+		} finally {
+			scanner.close();
+			region.closeRegionOperation();
+		}
+	}
+
+	private static boolean containsAll(List<Cell> cells, List<Column> columns) {
+		for (Column col : columns) {
+			boolean found = false;
+			for (Cell cell : cells) {
+				if (CellUtil.matchingColumn(cell, col.getFamily(),
+						col.getQualifier())) {
+					found = true;
+					break;
+				}
+			}
+			if (!found) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// Hand the included values of each daughter region over to its index
+	public void splitIncludedValues(AbstractPluggableIndex daughterRegionA,
+			AbstractPluggableIndex daughterRegionB, byte[] splitRow) {
+		daughterRegionA.setIncludedColumns(includedColumns);
+		daughterRegionB.setIncludedColumns(includedColumns);
+		if (includedValues == null) {
+			return;
+		}
+		for (Map.Entry<ByteArrayWrapper, byte[][]> entry : includedValues
+				.entrySet()) {
+			if (Bytes.compareTo(entry.getKey().get(), splitRow) < 0) {
+				daughterRegionA.includedValues.put(entry.getKey(),
+						entry.getValue());
+			} else {
+				daughterRegionB.includedValues.put(entry.getKey(),
+						entry.getValue());
+			}
+		}
+	}
+
 	public abstract Set<byte[]> filterRowsFromCriteria(Criterion<?> criterion);
 
+	/**
+	 * Rows having any of the values (the values of an IN criterion), in row
+	 * key order. Engines override it to look up all the postings under one
+	 * hold of their read lock; the default looks up the values one by one.
+	 */
+	public Set<byte[]> filterRowsFromValues(Collection<byte[]> values) {
+		Set<byte[]> rowKeys = new TreeSet<byte[]>(Bytes.BYTES_COMPARATOR);
+		for (byte[] value : values) {
+			Set<byte[]> rows = filterRowsFromCriteria(toEqualCriterion(value));
+			if (rows != null) {
+				rowKeys.addAll(rows);
+			}
+		}
+		return rowKeys;
+	}
+
+	// The values of an IN criterion
+	@SuppressWarnings("unchecked")
+	public static List<byte[]> getInValues(Criterion<?> criterion) {
+		return (List<byte[]>) criterion.getComparisonValues();
+	}
+
+	protected static Criterion<?> toEqualCriterion(byte[] value) {
+		ByteArrayCriterion criterion = new ByteArrayCriterion(value);
+		criterion.setComparisonType(CompareType.EQUAL);
+		return criterion;
+	}
+
+	public RowOrdinals getRowOrdinals() {
+		return rowOrdinals;
+	}
+
+	/**
+	 * Attaches the index to the row ordinals of its region index, or
+	 * detaches it with null. Engines that keep row ordinals retain the rows
+	 * they index in the new ordinals and release them from the previous
+	 * ones; the others only remember them.
+	 */
+	public void setRowOrdinals(RowOrdinals ordinals) {
+		rowOrdinals = ordinals;
+	}
+
+	// For the engines that keep row ordinals, when a row reference is added
+	// to or removed from a posting
+	protected void retainRow(byte[] row) {
+		RowOrdinals ordinals = rowOrdinals;
+		if (ordinals != null) {
+			ordinals.retain(row);
+		}
+	}
+
+	protected void releaseRow(byte[] row) {
+		RowOrdinals ordinals = rowOrdinals;
+		if (ordinals != null) {
+			ordinals.release(row);
+		}
+	}
+
+	/**
+	 * The rows matching the criterion as a bitmap of their ordinals, for
+	 * combining with the rows of other indexes, or null if the engine keeps
+	 * no row ordinals or is not attached to any.
+	 */
+	public RowBitmap filterRowBitmap(Criterion<?> criterion) {
+		return null;
+	}
+
+	/**
+	 * The rows matching the criterion in row key order, read lazily so that
+	 * LIMIT queries stop early. Engines override it with views over their
+	 * postings, holding their read lock until the stream is closed; the
+	 * default copies the rows of filterRowsFromCriteria.
+	 */
+	public RowKeyStream filterRowStream(Criterion<?> criterion) {
+		return RowKeyStream.of(filterRowsFromCriteria(criterion));
+	}
+
+	/**
+	 * Number of indexed rows of each distinct value matching the criterion,
+	 * sorted by value, computed from the posting sizes. Engines that can
+	 * enumerate their values override it; the default only handles EQUAL.
+	 */
+	public SortedMap<byte[], Integer> countByValue(Criterion<?> criterion) {
+		if (criterion.getComparisonType() != CompareType.EQUAL) {
+			throw new UnsupportedOperationException(getClass().getName()
+					+ " cannot count the values of a "
+					+ criterion.getComparisonType() + " criterion.");
+		}
+		SortedMap<byte[], Integer> counts = new TreeMap<byte[], Integer>(
+				Bytes.BYTES_COMPARATOR);
+		Set<byte[]> rows = filterRowsFromCriteria(criterion);
+		if (rows != null && !rows.isEmpty()) {
+			counts.put((byte[]) criterion.getComparisonValue(), rows.size());
+		}
+		return counts;
+	}
+
+	/**
+	 * Estimated number of rows matching the criterion, Long.MAX_VALUE if
+	 * unknown. It is the sum of the countByValue posting sizes, so engines
+	 * that override countByValue estimate without collecting any row.
+	 */
+	public long estimateRows(Criterion<?> criterion) {
+		if (criterion.getComparisonType() == CompareType.IN) {
+			long rows = 0;
+			for (byte[] value : getInValues(criterion)) {
+				rows += estimateRows(toEqualCriterion(value));
+			}
+			return rows;
+		}
+		try {
+			long rows = 0;
+			for (int count : countByValue(criterion).values()) {
+				rows += count;
+			}
+			return rows;
+		} catch (UnsupportedOperationException e) {
+			return Long.MAX_VALUE;
+		}
+	}
+
+	// Number of rows in the index, a count the engines keep up to date as
+	// rows are added and removed; -1 if the engine cannot tell
+	public long getIndexedRowCount() {
+		return -1;
+	}
+
+	// Whether an indexed value matches the criterion, in byte order
+	protected static boolean matches(Criterion<?> criterion, byte[] value) {
+		switch (criterion.getComparisonType()) {
+		case EQUAL:
+			return Bytes.equals(value, (byte[]) criterion.getComparisonValue());
+		case GREATER:
+			return Bytes.compareTo(value,
+					(byte[]) criterion.getComparisonValue()) > 0;
+		case GREATER_OR_EQUAL:
+			return Bytes.compareTo(value,
+					(byte[]) criterion.getComparisonValue()) >= 0;
+		case LESS:
+			return Bytes.compareTo(value,
+					(byte[]) criterion.getComparisonValue()) < 0;
+		case LESS_OR_EQUAL:
+			return Bytes.compareTo(value,
+					(byte[]) criterion.getComparisonValue()) <= 0;
+		case RANGE:
+			Range range = criterion.getRange();
+			return Bytes.compareTo(value, range.getLowerBound()) >= 0
+					&& Bytes.compareTo(value, range.getHigherBound()) <= 0;
+		case PREFIX:
+			return Bytes.startsWith(value,
+					(byte[]) criterion.getComparisonValue());
+		case IN:
+			for (byte[] inValue : getInValues(criterion)) {
+				if (Bytes.equals(value, inValue)) {
+					return true;
+				}
+			}
+			return false;
+		default:
+			return false;
+		}
+	}
+
+	// The smallest value greater than all the values starting with the
+	// prefix, as an exclusive upper bound; null if there is none (the prefix
+	// is empty or all 0xFF)
+	protected static byte[] getPrefixUpperBound(byte[] prefix) {
+		for (int i = prefix.length - 1; i >= 0; i--) {
+			if (prefix[i] != (byte) 0xFF) {
+				byte[] upperBound = Arrays.copyOf(prefix, i + 1);
+				upperBound[i]++;
+				return upperBound;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * At most limit rows matching the criterion, in indexed value order
+	 * (descending if asked), rows of the same value in row key order (reversed
+	 * when descending); limit <= 0 returns all of them. Only engines keeping
+	 * their values sorted support it, and stop once they have limit rows.
+	 */
+	public List<byte[]> filterRowsInValueOrder(Criterion<?> criterion,
+			boolean descending, int limit) {
+		throw new UnsupportedOperationException(getClass().getName()
+				+ " does not keep its values sorted.");
+	}
+
+	// Append the rows of a posting, up to the limit; returns whether the
+	// limit is reached
+	protected static boolean addRows(List<byte[]> rows, Iterable<byte[]> posting,
+			int limit) {
+		for (byte[] row : posting) {
+			if (limit > 0 && rows.size() >= limit) {
+				return true;
+			}
+			rows.add(row);
+		}
+		return limit > 0 && rows.size() >= limit;
+	}
+
 	public abstract void split(AbstractPluggableIndex daughterRegionA,
 			AbstractPluggableIndex daughterRegionB, byte[] splitRow);
 
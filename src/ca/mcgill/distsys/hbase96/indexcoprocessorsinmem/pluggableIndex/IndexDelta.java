@@ -0,0 +1,43 @@
+package ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.pluggableIndex;
+
+/**
+ * A change to the index entry of a single row: the row is removed from the
+ * posting of oldValue (if not null) and added to the posting of newValue (if
+ * not null). For indexes with included columns, it also carries the values
+ * of those columns once the change is applied.
+ */
+public class IndexDelta {
+
+	private final byte[] row;
+	private final byte[] oldValue;
+	private final byte[] newValue;
+	private final byte[][] includedValues;
+
+	public IndexDelta(byte[] row, byte[] oldValue, byte[] newValue) {
+		this(row, oldValue, newValue, null);
+	}
+
+	public IndexDelta(byte[] row, byte[] oldValue, byte[] newValue,
+			byte[][] includedValues) {
+		this.row = row;
+		this.oldValue = oldValue;
+		this.newValue = newValue;
+		this.includedValues = includedValues;
+	}
+
+	public byte[] getRow() {
+		return row;
+	}
+
+	public byte[] getOldValue() {
+		return oldValue;
+	}
+
+	public byte[] getNewValue() {
+		return newValue;
+	}
+
+	public byte[][] getIncludedValues() {
+		return includedValues;
+	}
+}
@@ -0,0 +1,77 @@
+package ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.pluggableIndex.commons;
+
+import java.util.Arrays;
+
+/**
+ * Builds the keys of multi-column indexes. Each column value is written with
+ * its 0x00 bytes escaped as 0x00 0xFF and is followed by the terminator
+ * 0x00 0x01, so that column boundaries are never ambiguous and the byte
+ * order of the keys is the order of their column values, column by column.
+ * A key built from the leading columns only is a prefix of the full keys.
+ *
+ * Builders are reused per thread: the key is written into a buffer that
+ * grows as needed, and the only allocation is the copy returned by
+ * toBytes(). A builder must not be used for two keys at the same time.
+ */
+public final class CompositeKeyBuilder {
+
+	private static final byte ESCAPE = 0x00;
+	private static final byte ESCAPED_ZERO = (byte) 0xFF;
+	private static final byte TERMINATOR = 0x01;
+
+	private static final ThreadLocal<CompositeKeyBuilder> BUILDERS = new ThreadLocal<CompositeKeyBuilder>() {
+		@Override
+		protected CompositeKeyBuilder initialValue() {
+			return new CompositeKeyBuilder();
+		}
+	};
+
+	private byte[] buffer = new byte[64];
+	private int length = 0;
+
+	private CompositeKeyBuilder() {
+	}
+
+	// The builder of the current thread, emptied
+	public static CompositeKeyBuilder get() {
+		CompositeKeyBuilder builder = BUILDERS.get();
+		builder.length = 0;
+		return builder;
+	}
+
+	public static byte[] encode(byte[]... values) {
+		CompositeKeyBuilder builder = get();
+		for (byte[] value : values) {
+			builder.add(value);
+		}
+		return builder.toBytes();
+	}
+
+	public CompositeKeyBuilder add(byte[] value) {
+		return add(value, 0, value.length);
+	}
+
+	public CompositeKeyBuilder add(byte[] value, int offset, int valueLength) {
+		// worst case: every byte escaped
+		ensureCapacity(length + 2 * valueLength + 2);
+		for (int i = offset; i < offset + valueLength; i++) {
+			buffer[length++] = value[i];
+			if (value[i] == ESCAPE) {
+				buffer[length++] = ESCAPED_ZERO;
+			}
+		}
+		buffer[length++] = ESCAPE;
+		buffer[length++] = TERMINATOR;
+		return this;
+	}
+
+	public byte[] toBytes() {
+		return Arrays.copyOf(buffer, length);
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity > buffer.length) {
+			buffer = Arrays.copyOf(buffer, Math.max(capacity, buffer.length * 2));
+		}
+	}
+}
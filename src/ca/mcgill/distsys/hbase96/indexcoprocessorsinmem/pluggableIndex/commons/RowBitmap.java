@@ -0,0 +1,363 @@
+package ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.pluggableIndex.commons;
+
+import java.util.Arrays;
+
+/**
+ * Compressed set of row ordinals (see {@link RowOrdinals}), laid out like a
+ * Roaring bitmap: ordinals are grouped by their high 16 bits, and each group
+ * is stored as a sorted array of its low 16 bits while it is sparse, or as a
+ * 65536-bit bitmap once it holds more than ARRAY_MAX_SIZE ordinals. AND and
+ * OR work group by group, on 64-bit words between bitmaps.
+ */
+public class RowBitmap {
+
+	// Past this size, an array container takes more room than a bitmap
+	static final int ARRAY_MAX_SIZE = 4096;
+	private static final int BITMAP_WORDS = 1024;
+
+	// high 16 bits of the groups, sorted, and their containers
+	private char[] keys;
+	private Container[] containers;
+	private int size;
+
+	public RowBitmap() {
+		this(4);
+	}
+
+	private RowBitmap(int capacity) {
+		keys = new char[capacity];
+		containers = new Container[capacity];
+	}
+
+	public void add(int ordinal) {
+		char high = (char) (ordinal >>> 16);
+		int pos = Arrays.binarySearch(keys, 0, size, high);
+		if (pos >= 0) {
+			containers[pos] = containers[pos].add((char) ordinal);
+		} else {
+			insert(-pos - 1, high, new ArrayContainer().add((char) ordinal));
+		}
+	}
+
+	public boolean contains(int ordinal) {
+		int pos = Arrays.binarySearch(keys, 0, size, (char) (ordinal >>> 16));
+		return pos >= 0 && containers[pos].contains((char) ordinal);
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public int getCardinality() {
+		int cardinality = 0;
+		for (int i = 0; i < size; i++) {
+			cardinality += containers[i].cardinality();
+		}
+		return cardinality;
+	}
+
+	public RowBitmap and(RowBitmap other) {
+		RowBitmap result = new RowBitmap(Math.max(1, Math.min(size, other.size)));
+		int i = 0;
+		int j = 0;
+		while (i < size && j < other.size) {
+			if (keys[i] < other.keys[j]) {
+				i++;
+			} else if (keys[i] > other.keys[j]) {
+				j++;
+			} else {
+				Container container = containers[i].and(other.containers[j]);
+				if (container.cardinality() > 0) {
+					result.append(keys[i], container);
+				}
+				i++;
+				j++;
+			}
+		}
+		return result;
+	}
+
+	public RowBitmap or(RowBitmap other) {
+		RowBitmap result = new RowBitmap(Math.max(1, size + other.size));
+		int i = 0;
+		int j = 0;
+		while (i < size || j < other.size) {
+			if (j == other.size || (i < size && keys[i] < other.keys[j])) {
+				result.append(keys[i], containers[i].copy());
+				i++;
+			} else if (i == size || keys[i] > other.keys[j]) {
+				result.append(other.keys[j], other.containers[j].copy());
+				j++;
+			} else {
+				result.append(keys[i], containers[i].or(other.containers[j]));
+				i++;
+				j++;
+			}
+		}
+		return result;
+	}
+
+	// The ordinals, in ascending order
+	public int[] toArray() {
+		int[] ordinals = new int[getCardinality()];
+		int pos = 0;
+		for (int i = 0; i < size; i++) {
+			pos = containers[i].fill(keys[i] << 16, ordinals, pos);
+		}
+		return ordinals;
+	}
+
+	private void append(char high, Container container) {
+		insert(size, high, container);
+	}
+
+	private void insert(int pos, char high, Container container) {
+		if (size == keys.length) {
+			keys = Arrays.copyOf(keys, size * 2);
+			containers = Arrays.copyOf(containers, size * 2);
+		}
+		System.arraycopy(keys, pos, keys, pos + 1, size - pos);
+		System.arraycopy(containers, pos, containers, pos + 1, size - pos);
+		keys[pos] = high;
+		containers[pos] = container;
+		size++;
+	}
+
+	// The low 16 bits of the ordinals of a group
+	private static abstract class Container {
+		// may return a different container, e.g. once an array is full
+		abstract Container add(char low);
+
+		abstract boolean contains(char low);
+
+		abstract int cardinality();
+
+		abstract Container and(Container other);
+
+		abstract Container or(Container other);
+
+		abstract Container copy();
+
+		// writes high | low for each value, in ascending order
+		abstract int fill(int high, int[] ordinals, int pos);
+	}
+
+	private static final class ArrayContainer extends Container {
+		private char[] values;
+		private int cardinality;
+
+		ArrayContainer() {
+			this(4);
+		}
+
+		ArrayContainer(int capacity) {
+			values = new char[capacity];
+		}
+
+		@Override
+		Container add(char low) {
+			int pos = Arrays.binarySearch(values, 0, cardinality, low);
+			if (pos >= 0) {
+				return this;
+			}
+			if (cardinality == ARRAY_MAX_SIZE) {
+				return toBitmap().add(low);
+			}
+			pos = -pos - 1;
+			if (cardinality == values.length) {
+				values = Arrays.copyOf(values,
+						Math.min(ARRAY_MAX_SIZE, Math.max(4, cardinality * 2)));
+			}
+			System.arraycopy(values, pos, values, pos + 1, cardinality - pos);
+			values[pos] = low;
+			cardinality++;
+			return this;
+		}
+
+		@Override
+		boolean contains(char low) {
+			return Arrays.binarySearch(values, 0, cardinality, low) >= 0;
+		}
+
+		@Override
+		int cardinality() {
+			return cardinality;
+		}
+
+		@Override
+		Container and(Container other) {
+			ArrayContainer result = new ArrayContainer(Math.max(1, cardinality));
+			if (other instanceof ArrayContainer) {
+				ArrayContainer array = (ArrayContainer) other;
+				int i = 0;
+				int j = 0;
+				while (i < cardinality && j < array.cardinality) {
+					if (values[i] < array.values[j]) {
+						i++;
+					} else if (values[i] > array.values[j]) {
+						j++;
+					} else {
+						result.values[result.cardinality++] = values[i];
+						i++;
+						j++;
+					}
+				}
+			} else {
+				for (int i = 0; i < cardinality; i++) {
+					if (other.contains(values[i])) {
+						result.values[result.cardinality++] = values[i];
+					}
+				}
+			}
+			return result;
+		}
+
+		@Override
+		Container or(Container other) {
+			if (other instanceof BitmapContainer) {
+				return other.or(this);
+			}
+			ArrayContainer array = (ArrayContainer) other;
+			if (cardinality + array.cardinality > ARRAY_MAX_SIZE) {
+				return toBitmap().or(array);
+			}
+			ArrayContainer result = new ArrayContainer(Math.max(1,
+					cardinality + array.cardinality));
+			int i = 0;
+			int j = 0;
+			while (i < cardinality || j < array.cardinality) {
+				char value;
+				if (j == array.cardinality
+						|| (i < cardinality && values[i] < array.values[j])) {
+					value = values[i++];
+				} else if (i == cardinality || values[i] > array.values[j]) {
+					value = array.values[j++];
+				} else {
+					value = values[i++];
+					j++;
+				}
+				result.values[result.cardinality++] = value;
+			}
+			return result;
+		}
+
+		@Override
+		Container copy() {
+			ArrayContainer copy = new ArrayContainer(0);
+			copy.values = Arrays.copyOf(values, cardinality);
+			copy.cardinality = cardinality;
+			return copy;
+		}
+
+		@Override
+		int fill(int high, int[] ordinals, int pos) {
+			for (int i = 0; i < cardinality; i++) {
+				ordinals[pos++] = high | values[i];
+			}
+			return pos;
+		}
+
+		private BitmapContainer toBitmap() {
+			BitmapContainer bitmap = new BitmapContainer();
+			for (int i = 0; i < cardinality; i++) {
+				bitmap.add(values[i]);
+			}
+			return bitmap;
+		}
+	}
+
+	private static final class BitmapContainer extends Container {
+		private final long[] words = new long[BITMAP_WORDS];
+		private int cardinality;
+
+		@Override
+		Container add(char low) {
+			long bit = 1L << low;
+			if ((words[low >>> 6] & bit) == 0) {
+				words[low >>> 6] |= bit;
+				cardinality++;
+			}
+			return this;
+		}
+
+		@Override
+		boolean contains(char low) {
+			return (words[low >>> 6] & (1L << low)) != 0;
+		}
+
+		@Override
+		int cardinality() {
+			return cardinality;
+		}
+
+		@Override
+		Container and(Container other) {
+			if (other instanceof ArrayContainer) {
+				return other.and(this);
+			}
+			BitmapContainer bitmap = (BitmapContainer) other;
+			BitmapContainer result = new BitmapContainer();
+			for (int i = 0; i < BITMAP_WORDS; i++) {
+				result.words[i] = words[i] & bitmap.words[i];
+				result.cardinality += Long.bitCount(result.words[i]);
+			}
+			if (result.cardinality <= ARRAY_MAX_SIZE) {
+				return result.toArrayContainer();
+			}
+			return result;
+		}
+
+		@Override
+		Container or(Container other) {
+			BitmapContainer result = (BitmapContainer) copy();
+			if (other instanceof ArrayContainer) {
+				ArrayContainer array = (ArrayContainer) other;
+				for (int i = 0; i < array.cardinality; i++) {
+					result.add(array.values[i]);
+				}
+				return result;
+			}
+			BitmapContainer bitmap = (BitmapContainer) other;
+			result.cardinality = 0;
+			for (int i = 0; i < BITMAP_WORDS; i++) {
+				result.words[i] |= bitmap.words[i];
+				result.cardinality += Long.bitCount(result.words[i]);
+			}
+			return result;
+		}
+
+		@Override
+		Container copy() {
+			BitmapContainer copy = new BitmapContainer();
+			System.arraycopy(words, 0, copy.words, 0, BITMAP_WORDS);
+			copy.cardinality = cardinality;
+			return copy;
+		}
+
+		@Override
+		int fill(int high, int[] ordinals, int pos) {
+			for (int i = 0; i < BITMAP_WORDS; i++) {
+				long word = words[i];
+				while (word != 0) {
+					ordinals[pos++] = high | (i << 6)
+							| Long.numberOfTrailingZeros(word);
+					word &= word - 1;
+				}
+			}
+			return pos;
+		}
+
+		private ArrayContainer toArrayContainer() {
+			ArrayContainer array = new ArrayContainer(Math.max(1, cardinality));
+			for (int i = 0; i < BITMAP_WORDS; i++) {
+				long word = words[i];
+				while (word != 0) {
+					array.values[array.cardinality++] = (char) ((i << 6) | Long
+							.numberOfTrailingZeros(word));
+					word &= word - 1;
+				}
+			}
+			return array;
+		}
+	}
+}
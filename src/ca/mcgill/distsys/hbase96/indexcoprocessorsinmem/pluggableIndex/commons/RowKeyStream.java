@@ -0,0 +1,349 @@
+package ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.pluggableIndex.commons;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.locks.Lock;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Lazy stream of row keys in ascending order, e.g. a view over the postings
+ * of an index. Streams are combined without materializing the row sets: a
+ * k-way merge for MUST_PASS_ONE, a leapfrog intersection for MUST_PASS_ALL,
+ * so a query stops reading the postings once it has enough rows. A stream
+ * over live postings may hold a lock of its index until it is closed; it
+ * must be closed by the thread that opened it.
+ */
+public abstract class RowKeyStream implements Closeable {
+
+	/**
+	 * Advances to the next row key and returns it, or null at the end.
+	 */
+	public abstract byte[] next();
+
+	/**
+	 * Advances to the first row key >= target and returns it, or null at the
+	 * end. Never moves backwards: the current key is returned if it is
+	 * already >= target.
+	 */
+	public abstract byte[] seek(byte[] target);
+
+	@Override
+	public void close() {
+	}
+
+	public static RowKeyStream empty() {
+		return of(new TreeSet<byte[]>(Bytes.BYTES_COMPARATOR));
+	}
+
+	// A view over the row keys, if they are sorted in byte order, otherwise
+	// over a sorted copy
+	public static RowKeyStream of(Set<byte[]> rows) {
+		if (rows == null) {
+			return empty();
+		}
+		if (rows instanceof NavigableSet) {
+			return new SetStream((NavigableSet<byte[]>) rows);
+		}
+		NavigableSet<byte[]> sortedRows = new TreeSet<byte[]>(
+				Bytes.BYTES_COMPARATOR);
+		sortedRows.addAll(rows);
+		return new SetStream(sortedRows);
+	}
+
+	// A view over the row keys returned by the posting, which is only read,
+	// e.g. decompressed, once the stream is first advanced. A stream that is
+	// closed unread, such as the other side of an intersection that ran out
+	// first, never reads its posting.
+	public static RowKeyStream lazy(
+			final Callable<? extends Set<byte[]>> posting) {
+		return new RowKeyStream() {
+			private RowKeyStream stream;
+
+			@Override
+			public byte[] next() {
+				return open().next();
+			}
+
+			@Override
+			public byte[] seek(byte[] target) {
+				return open().seek(target);
+			}
+
+			private RowKeyStream open() {
+				if (stream == null) {
+					try {
+						stream = of(posting.call());
+					} catch (RuntimeException e) {
+						throw e;
+					} catch (Exception e) {
+						throw new IllegalStateException(
+								"Could not read a posting.", e);
+					}
+				}
+				return stream;
+			}
+		};
+	}
+
+	// The rows of any of the streams
+	public static RowKeyStream union(List<RowKeyStream> streams) {
+		return streams.size() == 1 ? streams.get(0) : new UnionStream(streams);
+	}
+
+	// The rows of all the streams
+	public static RowKeyStream intersection(List<RowKeyStream> streams) {
+		return streams.size() == 1 ? streams.get(0) : new IntersectionStream(
+				streams);
+	}
+
+	// Releases the lock, taken by the caller, when the stream is closed
+	public static RowKeyStream unlockOnClose(final RowKeyStream stream,
+			final Lock lock) {
+		return new RowKeyStream() {
+			private boolean closed = false;
+
+			@Override
+			public byte[] next() {
+				return stream.next();
+			}
+
+			@Override
+			public byte[] seek(byte[] target) {
+				return stream.seek(target);
+			}
+
+			@Override
+			public void close() {
+				if (!closed) {
+					closed = true;
+					try {
+						stream.close();
+					} finally {
+						lock.unlock();
+					}
+				}
+			}
+		};
+	}
+
+	private static void closeAll(List<RowKeyStream> streams) {
+		RuntimeException failure = null;
+		for (RowKeyStream stream : streams) {
+			try {
+				stream.close();
+			} catch (RuntimeException e) {
+				failure = e;
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	private static final class SetStream extends RowKeyStream {
+		private final NavigableSet<byte[]> rows;
+		private Iterator<byte[]> iterator;
+		private byte[] current;
+
+		SetStream(NavigableSet<byte[]> rows) {
+			this.rows = rows;
+			this.iterator = rows.iterator();
+		}
+
+		@Override
+		public byte[] next() {
+			if (iterator == null) {
+				return null;
+			}
+			current = iterator.hasNext() ? iterator.next() : null;
+			if (current == null) {
+				iterator = null;
+			}
+			return current;
+		}
+
+		@Override
+		public byte[] seek(byte[] target) {
+			if (iterator == null) {
+				return null;
+			}
+			if (current != null && Bytes.compareTo(current, target) >= 0) {
+				return current;
+			}
+			iterator = rows.tailSet(target, true).iterator();
+			return next();
+		}
+	}
+
+	// k-way merge of the streams, by their current row key
+	private static final class UnionStream extends RowKeyStream {
+		private final List<RowKeyStream> streams;
+		private final PriorityQueue<Head> heads;
+		private boolean started = false;
+		private byte[] current;
+
+		UnionStream(List<RowKeyStream> streams) {
+			this.streams = streams;
+			this.heads = new PriorityQueue<Head>(streams.size(),
+					new Comparator<Head>() {
+						@Override
+						public int compare(Head a, Head b) {
+							return Bytes.compareTo(a.row, b.row);
+						}
+					});
+		}
+
+		@Override
+		public byte[] next() {
+			if (!started) {
+				started = true;
+				for (RowKeyStream stream : streams) {
+					push(stream, stream.next());
+				}
+			} else {
+				// move every stream on the current row past it
+				while (!heads.isEmpty()
+						&& Bytes.equals(heads.peek().row, current)) {
+					RowKeyStream stream = heads.poll().stream;
+					push(stream, stream.next());
+				}
+			}
+			current = heads.isEmpty() ? null : heads.peek().row;
+			return current;
+		}
+
+		@Override
+		public byte[] seek(byte[] target) {
+			if (!started) {
+				started = true;
+				for (RowKeyStream stream : streams) {
+					push(stream, stream.seek(target));
+				}
+			} else {
+				if (current != null && Bytes.compareTo(current, target) >= 0) {
+					return current;
+				}
+				while (!heads.isEmpty()
+						&& Bytes.compareTo(heads.peek().row, target) < 0) {
+					RowKeyStream stream = heads.poll().stream;
+					push(stream, stream.seek(target));
+				}
+			}
+			current = heads.isEmpty() ? null : heads.peek().row;
+			return current;
+		}
+
+		private void push(RowKeyStream stream, byte[] row) {
+			if (row != null) {
+				heads.add(new Head(stream, row));
+			}
+		}
+
+		@Override
+		public void close() {
+			closeAll(streams);
+		}
+	}
+
+	private static final class Head {
+		final RowKeyStream stream;
+		final byte[] row;
+
+		Head(RowKeyStream stream, byte[] row) {
+			this.stream = stream;
+			this.row = row;
+		}
+	}
+
+	// Leapfrog: each stream seeks to the largest current row of the others,
+	// until they all agree
+	private static final class IntersectionStream extends RowKeyStream {
+		private final List<RowKeyStream> streams;
+		private final byte[][] rows;
+		private boolean started = false;
+		private byte[] current;
+
+		IntersectionStream(List<RowKeyStream> streams) {
+			this.streams = new ArrayList<RowKeyStream>(streams);
+			this.rows = new byte[streams.size()][];
+		}
+
+		@Override
+		public byte[] next() {
+			if (!started) {
+				started = true;
+				for (int i = 0; i < rows.length; i++) {
+					rows[i] = streams.get(i).next();
+					if (rows[i] == null) {
+						return current = null;
+					}
+				}
+			} else {
+				if (current == null) {
+					return null;
+				}
+				rows[0] = streams.get(0).next();
+				if (rows[0] == null) {
+					return current = null;
+				}
+			}
+			return current = align();
+		}
+
+		@Override
+		public byte[] seek(byte[] target) {
+			if (started && current == null) {
+				return null;
+			}
+			if (current != null && Bytes.compareTo(current, target) >= 0) {
+				return current;
+			}
+			started = true;
+			for (int i = 0; i < rows.length; i++) {
+				rows[i] = streams.get(i).seek(target);
+				if (rows[i] == null) {
+					return current = null;
+				}
+			}
+			return current = align();
+		}
+
+		private byte[] align() {
+			while (true) {
+				byte[] max = rows[0];
+				for (byte[] row : rows) {
+					if (Bytes.compareTo(row, max) > 0) {
+						max = row;
+					}
+				}
+				boolean aligned = true;
+				for (int i = 0; i < rows.length; i++) {
+					if (Bytes.compareTo(rows[i], max) < 0) {
+						rows[i] = streams.get(i).seek(max);
+						if (rows[i] == null) {
+							return null;
+						}
+						aligned &= Bytes.equals(rows[i], max);
+					}
+				}
+				if (aligned) {
+					return max;
+				}
+			}
+		}
+
+		@Override
+		public void close() {
+			closeAll(streams);
+		}
+	}
+}
@@ -0,0 +1,133 @@
+package ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.pluggableIndex.commons;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Dense integer ordinals of the indexed row keys of a region, so that row
+ * sets can be combined as {@link RowBitmap}s. The indexes of a region share
+ * its ordinals: an index retains the ordinal of a row when it adds a
+ * reference to it and releases it when it removes the reference, and the
+ * ordinal is freed once no index references the row any more. A freed
+ * ordinal is only handed out again once the queries that were running when
+ * it was freed have ended, so that their bitmaps never mix up two rows.
+ */
+public class RowOrdinals {
+
+	private static final class Entry {
+		final int ordinal;
+		// number of index references to the row
+		int references;
+
+		Entry(int ordinal) {
+			this.ordinal = ordinal;
+		}
+	}
+
+	private final ConcurrentHashMap<ByteArrayWrapper, Entry> ordinals = new ConcurrentHashMap<ByteArrayWrapper, Entry>();
+	// ordinal -> row key, null once freed
+	private byte[][] rows = new byte[16][];
+	private int assigned = 0;
+	// freed ordinals that can be handed out again
+	private int[] free = new int[16];
+	private int freeCount = 0;
+	// freed ordinals that running queries may still hold
+	private int[] pending = new int[16];
+	private int pendingCount = 0;
+	private int runningQueries = 0;
+
+	public synchronized void retain(byte[] row) {
+		ByteArrayWrapper key = new ByteArrayWrapper(row);
+		Entry entry = ordinals.get(key);
+		if (entry == null) {
+			int ordinal;
+			if (freeCount > 0) {
+				ordinal = free[--freeCount];
+			} else {
+				ordinal = assigned++;
+				if (ordinal == rows.length) {
+					rows = Arrays.copyOf(rows, rows.length * 2);
+				}
+			}
+			rows[ordinal] = row;
+			entry = new Entry(ordinal);
+			ordinals.put(key, entry);
+		}
+		entry.references++;
+	}
+
+	public synchronized void release(byte[] row) {
+		ByteArrayWrapper key = new ByteArrayWrapper(row);
+		Entry entry = ordinals.get(key);
+		if (entry == null || --entry.references > 0) {
+			return;
+		}
+		ordinals.remove(key);
+		rows[entry.ordinal] = null;
+		if (runningQueries == 0) {
+			free = push(free, freeCount++, entry.ordinal);
+		} else {
+			pending = push(pending, pendingCount++, entry.ordinal);
+		}
+	}
+
+	/**
+	 * The ordinal of the row, or -1 if no index references it.
+	 */
+	public int getOrdinal(byte[] row) {
+		Entry entry = ordinals.get(new ByteArrayWrapper(row));
+		return entry == null ? -1 : entry.ordinal;
+	}
+
+	// Add the ordinals of the rows to the bitmap
+	public void addTo(RowBitmap bitmap, Collection<byte[]> rowKeys) {
+		for (byte[] row : rowKeys) {
+			int ordinal = getOrdinal(row);
+			if (ordinal >= 0) {
+				bitmap.add(ordinal);
+			}
+		}
+	}
+
+	// A query combining bitmaps runs between beginQuery and endQuery, so
+	// that the ordinals it holds are not handed out to other rows meanwhile
+	public synchronized void beginQuery() {
+		runningQueries++;
+	}
+
+	public synchronized void endQuery() {
+		if (--runningQueries == 0) {
+			for (int i = 0; i < pendingCount; i++) {
+				free = push(free, freeCount++, pending[i]);
+			}
+			pendingCount = 0;
+		}
+	}
+
+	// Add the row keys of the ordinals of the bitmap to the collection; rows
+	// whose ordinals were freed since the bitmap was built are skipped
+	public void resolve(RowBitmap bitmap, Collection<byte[]> rowKeys) {
+		int[] bitmapOrdinals = bitmap.toArray();
+		synchronized (this) {
+			for (int ordinal : bitmapOrdinals) {
+				if (ordinal < assigned && rows[ordinal] != null) {
+					rowKeys.add(rows[ordinal]);
+				}
+			}
+		}
+	}
+
+	// Number of rows with an ordinal
+	public int size() {
+		return ordinals.size();
+	}
+
+	private static int[] push(int[] stack, int count, int ordinal) {
+		if (count == stack.length) {
+			stack = Arrays.copyOf(stack, stack.length * 2);
+		}
+		stack[count] = ordinal;
+		return stack;
+	}
+}
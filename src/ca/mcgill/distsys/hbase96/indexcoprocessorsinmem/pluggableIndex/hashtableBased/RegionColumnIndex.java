@@ -1,29 +1,26 @@
 package ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.pluggableIndex.hashtableBased;
 
 import ca.mcgill.distsys.hbase96.indexcommonsinmem.ByteUtil;
-import ca.mcgill.distsys.hbase96.indexcommonsinmem.Util;
 import ca.mcgill.distsys.hbase96.indexcommonsinmem.proto.Column;
 import ca.mcgill.distsys.hbase96.indexcommonsinmem.proto.Criterion;
+import ca.mcgill.distsys.hbase96.indexcommonsinmem.proto.Criterion.CompareType;
 import ca.mcgill.distsys.hbase96.indexcommonsinmem.proto.Range;
 import ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.pluggableIndex.AbstractPluggableIndex;
+import ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.pluggableIndex.IndexDelta;
 import ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.pluggableIndex.commons.ByteArrayWrapper;
+import ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.pluggableIndex.commons.CompositeKeyBuilder;
+import ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.pluggableIndex.commons.RowBitmap;
+import ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.pluggableIndex.commons.RowKeyStream;
+import ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.pluggableIndex.commons.RowOrdinals;
 
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.Cell;
-import org.apache.hadoop.hbase.HBaseConfiguration;
-import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.CellUtil;
 import org.apache.hadoop.hbase.NotServingRegionException;
 import org.apache.hadoop.hbase.RegionTooBusyException;
-import org.apache.hadoop.hbase.client.HTable;
-import org.apache.hadoop.hbase.client.Result;
-import org.apache.hadoop.hbase.client.ResultScanner;
 import org.apache.hadoop.hbase.client.Scan;
-import org.apache.hadoop.hbase.filter.CompareFilter.CompareOp;
-import org.apache.hadoop.hbase.filter.FilterList;
-import org.apache.hadoop.hbase.filter.SingleColumnValueFilter;
 import org.apache.hadoop.hbase.regionserver.HRegion;
 import org.apache.hadoop.hbase.regionserver.MultiVersionConsistencyControl;
 import org.apache.hadoop.hbase.regionserver.RegionScanner;
@@ -35,10 +32,17 @@ import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -54,8 +58,14 @@ public class RegionColumnIndex extends AbstractPluggableIndex implements
 	private transient ReadWriteLock rwLock;
 	private int maxTreeSize;
 	private List<Column> colList;
+	// The distinct values in byte order, for ordered criteria: built by the
+	// first of them, then kept up to date by internalAdd. Values stay when
+	// their posting is emptied, like in rowIndexMap. Not persisted.
+	private transient volatile TreeMap<byte[], RowIndex> sortedValues;
+	// Number of row references over all the postings, kept up to date by
+	// internalAdd and remove; -1 until counted after deserialization
+	private transient volatile long rowCount;
 
-	private String tableName = "";
 	private String test = "";
 
 
@@ -63,6 +73,7 @@ public class RegionColumnIndex extends AbstractPluggableIndex implements
 	ClassNotFoundException {
 		in.defaultReadObject();
 		rwLock = new ReentrantReadWriteLock(true);
+		rowCount = -1;
 	}
 
 	public RegionColumnIndex(Object[] arguments) {
@@ -104,10 +115,72 @@ public class RegionColumnIndex extends AbstractPluggableIndex implements
 			newPKRefTree = true;
 		}
 
-		rowIndex.add(value, maxTreeSize);
+		if (rowIndex.add(value, maxTreeSize)) {
+			if (rowCount >= 0) {
+				rowCount++;
+			}
+			retainRow(value);
+		}
 
 		if (newPKRefTree) {
 			rowIndexMap.put(keyByteArray, rowIndex);
+			if (sortedValues != null) {
+				sortedValues.put(key, rowIndex);
+			}
+		}
+	}
+
+	// The caller holds the read or write lock: writers, which update the
+	// view, are excluded while it is built or read
+	private TreeMap<byte[], RowIndex> getSortedValues() {
+		TreeMap<byte[], RowIndex> sorted = sortedValues;
+		if (sorted == null) {
+			synchronized (this) {
+				if (sortedValues == null) {
+					TreeMap<byte[], RowIndex> newSortedValues = new TreeMap<byte[], RowIndex>(
+							Bytes.BYTES_COMPARATOR);
+					for (Map.Entry<ByteArrayWrapper, RowIndex> entry : rowIndexMap
+							.entrySet()) {
+						newSortedValues.put(entry.getKey().get(),
+								entry.getValue());
+					}
+					sortedValues = newSortedValues;
+				}
+				sorted = sortedValues;
+			}
+		}
+		return sorted;
+	}
+
+	// The postings of the values matching the criterion, in value order.
+	// The caller holds the read lock.
+	private NavigableMap<byte[], RowIndex> getMatchingPostings(
+			Criterion<?> criterion) {
+		TreeMap<byte[], RowIndex> sorted = getSortedValues();
+		byte[] value = (byte[]) criterion.getComparisonValue();
+		switch (criterion.getComparisonType()) {
+		case EQUAL:
+			return sorted.subMap(value, true, value, true);
+		case GREATER:
+			return sorted.tailMap(value, false);
+		case LESS:
+			return sorted.headMap(value, false);
+		case GREATER_OR_EQUAL:
+			return sorted.tailMap(value, true);
+		case LESS_OR_EQUAL:
+			return sorted.headMap(value, true);
+		case RANGE:
+			Range range = criterion.getRange();
+			return sorted.subMap(range.getLowerBound(), true,
+					range.getHigherBound(), true);
+		case PREFIX:
+			byte[] upperBound = getPrefixUpperBound(value);
+			return upperBound == null ? sorted.tailMap(value, true) : sorted
+					.subMap(value, true, upperBound, false);
+		default:
+			throw new UnsupportedOperationException(
+					"Cannot select the values of a "
+							+ criterion.getComparisonType() + " criterion.");
 		}
 	}
 
@@ -166,24 +239,22 @@ public class RegionColumnIndex extends AbstractPluggableIndex implements
 					// Modified by Cong
 					// List<KeyValue> values = new ArrayList<KeyValue>();
 					List<Cell> values = new ArrayList<Cell>();
+					if (getRowOrdinals() != null) {
+						retainRows(getRowOrdinals(), false);
+					}
 					rowIndexMap.clear();
+					sortedValues = null;
+					rowCount = 0;
 					boolean more;
 					do {
 						more = scanner.nextRaw(values);
 						
 
-						if (!values.isEmpty()) {
-							// checking for multiIndexing
-							if(values.size() != colList.size()){
-								continue;
-							}
+						// checking for multiIndexing: rows missing one of the
+						// columns are not indexed
+						if (!values.isEmpty() && values.size() == colList.size()) {
 							byte[] rowid = values.get(0).getRow();
-							byte[] concatValues = null;
-							for (Cell cell : values) {
-								// concat the values of colList
-								concatValues = Util.concatByteArray(concatValues,
-										cell.getValue());
-							}
+							byte[] concatValues = getIndexedValue(values);
 							try {
 								internalAdd(concatValues,
 										Arrays.copyOf(rowid, rowid.length));
@@ -223,12 +294,36 @@ public class RegionColumnIndex extends AbstractPluggableIndex implements
 		}
 	}
 
+	// The index key of a row: the value of the column, or the composite key
+	// of the values of colList, in colList order (the scan returns them
+	// sorted by qualifier)
+	private byte[] getIndexedValue(List<Cell> values) {
+		if (colList.size() == 1) {
+			return CellUtil.cloneValue(values.get(0));
+		}
+		CompositeKeyBuilder builder = CompositeKeyBuilder.get();
+		for (Column col : colList) {
+			for (Cell cell : values) {
+				if (CellUtil.matchingColumn(cell, col.getFamily(),
+						col.getQualifier())) {
+					builder.add(cell.getValueArray(), cell.getValueOffset(),
+							cell.getValueLength());
+					break;
+				}
+			}
+		}
+		return builder.toBytes();
+	}
+
 	public void remove(byte[] key, byte[] value) {
 		rwLock.writeLock().lock();
 		try {
 			RowIndex rowIndex = rowIndexMap.get(new ByteArrayWrapper(key));
-			if (rowIndex != null) {
-				rowIndex.remove(value, maxTreeSize);
+			if (rowIndex != null && rowIndex.remove(value, maxTreeSize)) {
+				if (rowCount >= 0) {
+					rowCount--;
+				}
+				releaseRow(value);
 			}
 		} catch (ClassNotFoundException e) {
 			// TODO Auto-generated catch block
@@ -241,27 +336,239 @@ public class RegionColumnIndex extends AbstractPluggableIndex implements
 		}
 	}
 
+	@Override
+	public void applyDeltas(List<IndexDelta> deltas) {
+		rwLock.writeLock().lock();
+		try {
+			super.applyDeltas(deltas);
+		} finally {
+			rwLock.writeLock().unlock();
+		}
+	}
+
+	// EQUAL and IN values are looked up in the hash table, ordered criteria
+	// in the sorted view of the values
+	@Override
+	public SortedMap<byte[], Integer> countByValue(Criterion<?> criterion) {
+		rwLock.readLock().lock();
+		try {
+			SortedMap<byte[], Integer> counts = new TreeMap<byte[], Integer>(
+					Bytes.BYTES_COMPARATOR);
+			if (criterion.getComparisonType() == CompareType.EQUAL
+					|| criterion.getComparisonType() == CompareType.IN) {
+				List<byte[]> values;
+				if (criterion.getComparisonType() == CompareType.IN) {
+					values = getInValues(criterion);
+				} else {
+					values = Collections.singletonList((byte[]) criterion
+							.getComparisonValue());
+				}
+				for (byte[] value : values) {
+					RowIndex rowIndex = rowIndexMap.get(new ByteArrayWrapper(
+							value));
+					if (rowIndex != null && rowIndex.size() > 0) {
+						counts.put(value, rowIndex.size());
+					}
+				}
+				return counts;
+			}
+			for (Map.Entry<byte[], RowIndex> entry : getMatchingPostings(
+					criterion).entrySet()) {
+				if (entry.getValue().size() > 0) {
+					counts.put(entry.getKey(), entry.getValue().size());
+				}
+			}
+			return counts;
+		} catch (ClassNotFoundException | IOException e) {
+			throw new IllegalStateException(
+					"Could not read a compressed posting.", e);
+		} finally {
+			rwLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public long getIndexedRowCount() {
+		rwLock.readLock().lock();
+		try {
+			if (rowCount >= 0) {
+				return rowCount;
+			}
+			// only the first call after deserialization; writers are
+			// excluded, concurrent readers count the same
+			long rows = 0;
+			for (RowIndex rowIndex : rowIndexMap.values()) {
+				rows += rowIndex.size();
+			}
+			rowCount = rows;
+			return rows;
+		} catch (ClassNotFoundException | IOException e) {
+			throw new IllegalStateException(
+					"Could not read a compressed posting.", e);
+		} finally {
+			rwLock.readLock().unlock();
+		}
+	}
+
+	// A view over the posting of an EQUAL value, or a merge of views over
+	// the postings of the values matching an ordered criterion; the read
+	// lock keeps them from changing until the stream is closed. Compressed
+	// postings are only decompressed once their stream is read.
+	@Override
+	public RowKeyStream filterRowStream(Criterion<?> criterion) {
+		if (criterion.getComparisonType() == CompareType.IN) {
+			return super.filterRowStream(criterion);
+		}
+		rwLock.readLock().lock();
+		try {
+			List<RowKeyStream> streams = new ArrayList<RowKeyStream>();
+			if (criterion.getComparisonType() == CompareType.EQUAL) {
+				RowIndex rowIndex = rowIndexMap.get(new ByteArrayWrapper(
+						(byte[]) criterion.getComparisonValue()));
+				if (rowIndex != null) {
+					streams.add(postingStream(rowIndex));
+				}
+			} else {
+				for (RowIndex rowIndex : getMatchingPostings(criterion)
+						.values()) {
+					streams.add(postingStream(rowIndex));
+				}
+			}
+			RowKeyStream stream = streams.isEmpty() ? RowKeyStream.empty()
+					: RowKeyStream.union(streams);
+			return RowKeyStream.unlockOnClose(stream, rwLock.readLock());
+		} catch (RuntimeException e) {
+			rwLock.readLock().unlock();
+			throw e;
+		}
+	}
+
+	private static RowKeyStream postingStream(final RowIndex rowIndex) {
+		return RowKeyStream.lazy(new Callable<Set<byte[]>>() {
+			@Override
+			public Set<byte[]> call() throws IOException,
+					ClassNotFoundException {
+				return rowIndex.getPKRefs();
+			}
+		});
+	}
+
+	@Override
+	public void setRowOrdinals(RowOrdinals ordinals) {
+		rwLock.writeLock().lock();
+		try {
+			RowOrdinals previous = getRowOrdinals();
+			if (previous == ordinals) {
+				return;
+			}
+			if (previous != null) {
+				retainRows(previous, false);
+			}
+			if (ordinals != null) {
+				retainRows(ordinals, true);
+			}
+			super.setRowOrdinals(ordinals);
+		} finally {
+			rwLock.writeLock().unlock();
+		}
+	}
+
+	// Retains, or releases, every row reference of the postings in the
+	// ordinals. The caller holds the write lock.
+	private void retainRows(RowOrdinals ordinals, boolean retain) {
+		try {
+			for (RowIndex rowIndex : rowIndexMap.values()) {
+				for (byte[] row : rowIndex.getPKRefs()) {
+					if (retain) {
+						ordinals.retain(row);
+					} else {
+						ordinals.release(row);
+					}
+				}
+			}
+		} catch (ClassNotFoundException | IOException e) {
+			throw new IllegalStateException(
+					"Could not read a compressed posting.", e);
+		}
+	}
+
+	// Straight from the postings: the matching row keys are never collected
+	@Override
+	public RowBitmap filterRowBitmap(Criterion<?> criterion) {
+		RowOrdinals ordinals = getRowOrdinals();
+		if (ordinals == null) {
+			return null;
+		}
+		RowBitmap bitmap = new RowBitmap();
+		rwLock.readLock().lock();
+		try {
+			Collection<RowIndex> postings;
+			switch (criterion.getComparisonType()) {
+			case IN:
+				postings = new ArrayList<RowIndex>();
+				for (byte[] value : getInValues(criterion)) {
+					RowIndex rowIndex = rowIndexMap.get(new ByteArrayWrapper(
+							value));
+					if (rowIndex != null) {
+						postings.add(rowIndex);
+					}
+				}
+				break;
+			case EQUAL:
+				RowIndex rowIndex = rowIndexMap.get(new ByteArrayWrapper(
+						(byte[]) criterion.getComparisonValue()));
+				postings = rowIndex == null ? Collections.<RowIndex> emptyList()
+						: Collections.singletonList(rowIndex);
+				break;
+			default:
+				postings = getMatchingPostings(criterion).values();
+			}
+			for (RowIndex rowIndex : postings) {
+				ordinals.addTo(bitmap, rowIndex.getPKRefs());
+			}
+			return bitmap;
+		} catch (ClassNotFoundException | IOException e) {
+			throw new IllegalStateException(
+					"Could not read a compressed posting.", e);
+		} finally {
+			rwLock.readLock().unlock();
+		}
+	}
+
+	// All the postings of an IN list under one hold of the read lock
+	@Override
+	public Set<byte[]> filterRowsFromValues(Collection<byte[]> values) {
+		Set<byte[]> rowKeys = new TreeSet<byte[]>(Bytes.BYTES_COMPARATOR);
+		rwLock.readLock().lock();
+		try {
+			for (byte[] value : values) {
+				RowIndex rowIndex = rowIndexMap.get(new ByteArrayWrapper(value));
+				if (rowIndex != null) {
+					rowKeys.addAll(rowIndex.getPKRefs());
+				}
+			}
+			return rowKeys;
+		} catch (ClassNotFoundException | IOException e) {
+			throw new IllegalStateException(
+					"Could not read a compressed posting.", e);
+		} finally {
+			rwLock.readLock().unlock();
+		}
+	}
+
 	public Set<byte[]> filterRowsFromCriteria(Criterion<?> criterion) {
+		if (criterion.getComparisonType() == CompareType.IN) {
+			return filterRowsFromValues(getInValues(criterion));
+		}
 		rwLock.readLock().lock();
 
 		Set<byte[]> rowKeys = new TreeSet<byte[]>(Bytes.BYTES_COMPARATOR);
-		// Htable based only handles EQUAL relation
-		// Because only the indexing structure knows how to handle different
-		// criteria
-		// I moved all the case handling from Criterion to this class
-		// Modified by Cong
-
-		// for (String value : criterion
-		// .getMatchingValueSetFromIndex(rowIndexMap.keySet())) {
-		// rowKeys.addAll(rowIndexMap.get(value).getPKRefs());
-		// }
-		ByteArrayWrapper criterionValue = new ByteArrayWrapper(
-				(byte[]) criterion.getComparisonValue());
 
 		switch (criterion.getComparisonType()) {
 
 		case EQUAL:
-			RowIndex rowIndex = rowIndexMap.get(criterionValue);
+			RowIndex rowIndex = rowIndexMap.get(new ByteArrayWrapper(
+					(byte[]) criterion.getComparisonValue()));
 			if (rowIndex == null) {
 				rwLock.readLock().unlock();
 				return null;
@@ -270,65 +577,66 @@ public class RegionColumnIndex extends AbstractPluggableIndex implements
 					rowKeys.addAll(rowIndex.getPKRefs());
 					return rowKeys;
 				} catch (ClassNotFoundException | IOException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
+					throw new IllegalStateException(
+							"Could not read a compressed posting.", e);
 				} finally {
 					rwLock.readLock().unlock();
 				}
 			}
 
-		// not supported multiColumn query
+		// Ordered criteria use the sorted view of the values, within this
+		// region only
+		case GREATER:
+		case LESS:
+		case GREATER_OR_EQUAL:
+		case LESS_OR_EQUAL:
 		case RANGE:
-			Range range = criterion.getRange();
-
-			// Add lower bound and higher bound filter
-			Column column = colList.get(0);
-			FilterList list = new FilterList(FilterList.Operator.MUST_PASS_ALL);
-			SingleColumnValueFilter filter1 = new SingleColumnValueFilter(
-					column.getFamily(), column.getQualifier(), CompareOp.GREATER_OR_EQUAL,
-					range.getLowerBound());
-			list.addFilter(filter1);
-			SingleColumnValueFilter filter2 = new SingleColumnValueFilter(
-					column.getFamily(), column.getQualifier(), CompareOp.LESS_OR_EQUAL,
-					range.getHigherBound());
-			list.addFilter(filter2);
-
-			// scan the table based on the filter
-			Configuration config = HBaseConfiguration.create();
-			HTable table;
+		case PREFIX:
 			try {
-				table = new HTable(config, this.tableName);
-				Scan s = new Scan();
-				// set the filter lists
-				s.setFilter(list);
-				s.addColumn(column.getFamily(), column.getQualifier());
-				ResultScanner scanner = table.getScanner(s);
-				List<KeyValue> values = new ArrayList<KeyValue>();
-
-				for (Result rr = scanner.next(); rr != null; rr = scanner.next()) {
-					values = rr.list();
-					byte[] rowid = values.get(0).getRow();
-					rowKeys.add(rowid);
+				for (RowIndex matchingRowIndex : getMatchingPostings(criterion)
+						.values()) {
+					rowKeys.addAll(matchingRowIndex.getPKRefs());
 				}
-				scanner.close();
-				table.close();
 				return rowKeys;
-
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+			} catch (ClassNotFoundException | IOException e) {
+				throw new IllegalStateException(
+						"Could not read a compressed posting.", e);
 			} finally {
 				rwLock.readLock().unlock();
 			}
 
-			return null;
-
 		default:
 			rwLock.readLock().unlock();
 			return null;
 		}
 	}
 
+	@Override
+	public List<byte[]> filterRowsInValueOrder(Criterion<?> criterion,
+			boolean descending, int limit) {
+		rwLock.readLock().lock();
+		try {
+			NavigableMap<byte[], RowIndex> postings = getMatchingPostings(criterion);
+			if (descending) {
+				postings = postings.descendingMap();
+			}
+			List<byte[]> rows = new ArrayList<byte[]>();
+			for (RowIndex rowIndex : postings.values()) {
+				TreeSet<byte[]> pkRefs = rowIndex.getPKRefs();
+				if (addRows(rows, descending ? pkRefs.descendingSet() : pkRefs,
+						limit)) {
+					break;
+				}
+			}
+			return rows;
+		} catch (ClassNotFoundException | IOException e) {
+			throw new IllegalStateException(
+					"Could not read a compressed posting.", e);
+		} finally {
+			rwLock.readLock().unlock();
+		}
+	}
+
 	@Override
 	public void split(AbstractPluggableIndex daughterRegionA,
 					  AbstractPluggableIndex daughterRegionB, byte[] splitRow) {
@@ -20,16 +20,21 @@ public class RowIndex implements Serializable {
     private TreeSet<byte[]> pkRefs;
     private byte[] compressedPKRefs;
     private transient ReentrantReadWriteLock rwLock;
+    // Number of row references, so that counting does not decompress the
+    // tree; -1 until known after deserialization
+    private transient int size;
 
     private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
         in.defaultReadObject();
         rwLock = new ReentrantReadWriteLock(true);
+        size = -1;
     }
     
     public RowIndex() {
         compressedTree = false;
         pkRefs = new TreeSet<byte[]>(ByteUtil.BYTES_COMPARATOR);
         rwLock = new ReentrantReadWriteLock(true);
+        size = 0;
     }
     
     private void compressTree() throws IOException {
@@ -65,7 +70,31 @@ public class RowIndex implements Serializable {
         }
     }
 
-    public void add(byte[] value, int maxTreeSize) throws IOException, ClassNotFoundException {
+    public int size() throws IOException, ClassNotFoundException {
+        rwLock.readLock().lock();
+        try {
+            if (size >= 0) {
+                return size;
+            }
+        } finally {
+            rwLock.readLock().unlock();
+        }
+
+        // only the first call after deserialization
+        int count = getPKRefs().size();
+        rwLock.writeLock().lock();
+        try {
+            if (size < 0) {
+                size = count;
+            }
+            return size;
+        } finally {
+            rwLock.writeLock().unlock();
+        }
+    }
+
+    // Whether the row reference was not there yet
+    public boolean add(byte[] value, int maxTreeSize) throws IOException, ClassNotFoundException {
         rwLock.writeLock().lock();
 
         try {
@@ -73,7 +102,8 @@ public class RowIndex implements Serializable {
                 pkRefs = decompressTree();
             }
 
-            pkRefs.add(value);
+            boolean added = pkRefs.add(value);
+            size = pkRefs.size();
             if (pkRefs.size() > maxTreeSize) {
                 compressTree();
                 compressedTree = true;
@@ -81,13 +111,15 @@ public class RowIndex implements Serializable {
                 compressedTree = false;
                 compressedPKRefs = null;
             }
+            return added;
 
         } finally {
             rwLock.writeLock().unlock();
         }
     }
 
-    public void remove(byte[] value, int maxTreeSize) throws IOException, ClassNotFoundException {
+    // Whether the row reference was there
+    public boolean remove(byte[] value, int maxTreeSize) throws IOException, ClassNotFoundException {
         rwLock.writeLock().lock();
         
         try {
@@ -95,7 +127,8 @@ public class RowIndex implements Serializable {
                 pkRefs = decompressTree();
             }
 
-            pkRefs.remove(value);
+            boolean removed = pkRefs.remove(value);
+            size = pkRefs.size();
             if (pkRefs.size() > maxTreeSize) {
                 compressTree();
                 compressedTree = true;
@@ -103,6 +136,7 @@ public class RowIndex implements Serializable {
                 compressedTree = false;
                 compressedPKRefs = null;
             }
+            return removed;
 
         } finally {
             rwLock.writeLock().unlock();
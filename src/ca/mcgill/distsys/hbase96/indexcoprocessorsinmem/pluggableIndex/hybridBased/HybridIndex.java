@@ -2,9 +2,14 @@ package ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.pluggableIndex.hybridBa
 
 import ca.mcgill.distsys.hbase96.indexcommonsinmem.ByteUtil;
 import ca.mcgill.distsys.hbase96.indexcommonsinmem.proto.Criterion;
+import ca.mcgill.distsys.hbase96.indexcommonsinmem.proto.Criterion.CompareType;
 import ca.mcgill.distsys.hbase96.indexcommonsinmem.proto.Range;
 import ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.pluggableIndex.AbstractPluggableIndex;
+import ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.pluggableIndex.IndexDelta;
 import ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.pluggableIndex.commons.ByteArrayWrapper;
+import ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.pluggableIndex.commons.RowBitmap;
+import ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.pluggableIndex.commons.RowKeyStream;
+import ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.pluggableIndex.commons.RowOrdinals;
 import com.google.common.collect.BoundType;
 import com.google.common.collect.SortedMultiset;
 import com.google.common.collect.TreeMultiset;
@@ -25,10 +30,13 @@ import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -47,6 +55,9 @@ public class HybridIndex extends AbstractPluggableIndex
 	private TreeMultiset<HybridRowIndex> sortedTree;
 	private HashMap<ByteArrayWrapper, ArrayList<HybridRowIndex>> rowIndexMap;
 	private transient ReadWriteLock rwLock;
+	// Number of row references over all the postings, kept up to date by
+	// internalAdd and remove; -1 until counted after deserialization
+	private transient volatile long rowCount;
 	private byte[] columnFamily;
 	private byte[] qualifier;
 
@@ -54,6 +65,7 @@ public class HybridIndex extends AbstractPluggableIndex
 	ClassNotFoundException {
 		in.defaultReadObject();
 		rwLock = new ReentrantReadWriteLock(true);
+		rowCount = -1;
 	}
 
 	public HybridIndex(Object[] arguments) {
@@ -81,6 +93,8 @@ public class HybridIndex extends AbstractPluggableIndex
 			list = new ArrayList<HybridRowIndex>();
 			HybridRowIndex rowIndex = new HybridRowIndex(key);
 			rowIndex.add(value);
+			countRows(1);
+			retainRow(value);
 			list.add(rowIndex);
 			rowIndexMap.put(hashedValue, list);
 			// Add rowindex to the tree as well
@@ -88,7 +102,10 @@ public class HybridIndex extends AbstractPluggableIndex
 		} else {
 			for (HybridRowIndex singleRowIndex : list) {
 				if (Arrays.equals(key, singleRowIndex.getRowKey())) {
-					singleRowIndex.add(value);
+					if (singleRowIndex.add(value)) {
+						countRows(1);
+						retainRow(value);
+					}
 					// Because it's reference type, don't have to manipulate
 					// treeSet anymore
 					return;
@@ -127,7 +144,12 @@ public class HybridIndex extends AbstractPluggableIndex
 					// Modified by Cong
 					// List<KeyValue> values = new ArrayList<KeyValue>();
 					List<Cell> values = new ArrayList<Cell>();
+					if (getRowOrdinals() != null) {
+						retainRows(getRowOrdinals(), false);
+					}
 					rowIndexMap.clear();
+					sortedTree.clear();
+					rowCount = 0;
 
 					boolean more;
 					do {
@@ -190,7 +212,10 @@ public class HybridIndex extends AbstractPluggableIndex
 		if (list != null) {
 			for (HybridRowIndex singleRowIndex : list) {
 				if (Arrays.equals(key, singleRowIndex.getRowKey())) {
-					singleRowIndex.remove(value);
+					if (singleRowIndex.remove(value)) {
+						countRows(-1);
+						releaseRow(value);
+					}
 					// If the HybridRowIndex doesn't contain anything, then we
 					// should remove it
 					if (singleRowIndex.getPKRefs().isEmpty()) {
@@ -211,8 +236,117 @@ public class HybridIndex extends AbstractPluggableIndex
 
 	}
 
+	@Override
+	public void applyDeltas(List<IndexDelta> deltas) {
+		rwLock.writeLock().lock();
+		try {
+			super.applyDeltas(deltas);
+		} finally {
+			rwLock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void setRowOrdinals(RowOrdinals ordinals) {
+		rwLock.writeLock().lock();
+		try {
+			RowOrdinals previous = getRowOrdinals();
+			if (previous == ordinals) {
+				return;
+			}
+			if (previous != null) {
+				retainRows(previous, false);
+			}
+			if (ordinals != null) {
+				retainRows(ordinals, true);
+			}
+			super.setRowOrdinals(ordinals);
+		} finally {
+			rwLock.writeLock().unlock();
+		}
+	}
+
+	// Retains, or releases, every row reference of the postings in the
+	// ordinals. The caller holds the write lock.
+	private void retainRows(RowOrdinals ordinals, boolean retain) {
+		for (ArrayList<HybridRowIndex> list : rowIndexMap.values()) {
+			for (HybridRowIndex singleRowIndex : list) {
+				for (byte[] row : singleRowIndex.getPKRefs()) {
+					if (retain) {
+						ordinals.retain(row);
+					} else {
+						ordinals.release(row);
+					}
+				}
+			}
+		}
+	}
+
+	// Straight from the postings: the matching row keys are never collected
+	@Override
+	public RowBitmap filterRowBitmap(Criterion<?> criterion) {
+		RowOrdinals ordinals = getRowOrdinals();
+		if (ordinals == null) {
+			return null;
+		}
+		RowBitmap bitmap = new RowBitmap();
+		rwLock.readLock().lock();
+		try {
+			if (criterion.getComparisonType() == CompareType.IN) {
+				for (byte[] value : getInValues(criterion)) {
+					ArrayList<HybridRowIndex> list = rowIndexMap
+							.get(new ByteArrayWrapper(value));
+					if (list != null) {
+						for (HybridRowIndex singleRowIndex : list) {
+							if (Arrays.equals(value, singleRowIndex.getRowKey())) {
+								ordinals.addTo(bitmap, singleRowIndex.getPKRefs());
+								break;
+							}
+						}
+					}
+				}
+			} else {
+				for (HybridRowIndex singleRowIndex : getMatchingPostings(
+						criterion).elementSet()) {
+					ordinals.addTo(bitmap, singleRowIndex.getPKRefs());
+				}
+			}
+			return bitmap;
+		} finally {
+			rwLock.readLock().unlock();
+		}
+	}
+
+	// All the postings of an IN list under one hold of the read lock, from
+	// the hash map of the values
+	@Override
+	public Set<byte[]> filterRowsFromValues(Collection<byte[]> values) {
+		Set<byte[]> rowKeys = new TreeSet<byte[]>(Bytes.BYTES_COMPARATOR);
+		rwLock.readLock().lock();
+		try {
+			for (byte[] value : values) {
+				ArrayList<HybridRowIndex> list = rowIndexMap
+						.get(new ByteArrayWrapper(value));
+				if (list != null) {
+					for (HybridRowIndex singleRowIndex : list) {
+						if (Arrays.equals(value, singleRowIndex.getRowKey())) {
+							rowKeys.addAll(singleRowIndex.getPKRefs());
+							break;
+						}
+					}
+				}
+			}
+			return rowKeys;
+		} finally {
+			rwLock.readLock().unlock();
+		}
+	}
+
 	@Override
 	public Set<byte[]> filterRowsFromCriteria(Criterion<?> criterion) {
+		if (criterion.getComparisonType() == CompareType.IN) {
+			return filterRowsFromValues(getInValues(criterion));
+		}
 		rwLock.readLock().lock();
 
 		Set<byte[]> rowKeys = new TreeSet<byte[]>(Bytes.BYTES_COMPARATOR);
@@ -284,12 +418,154 @@ public class HybridIndex extends AbstractPluggableIndex
 			}
 			rwLock.readLock().unlock();
 			return rowKeys;
+		case PREFIX:
+			try {
+				for (HybridRowIndex singleRowIndex : getMatchingPostings(
+						criterion).elementSet()) {
+					rowKeys.addAll(singleRowIndex.getPKRefs());
+				}
+				return rowKeys;
+			} finally {
+				rwLock.readLock().unlock();
+			}
 		default:
 			rwLock.readLock().unlock();
 			return null;
 		}
 	}
 
+	// Merge of views over the postings of the matching values, read under
+	// the read lock until the stream is closed
+	@Override
+	public RowKeyStream filterRowStream(Criterion<?> criterion) {
+		if (criterion.getComparisonType() == CompareType.IN) {
+			return super.filterRowStream(criterion);
+		}
+		rwLock.readLock().lock();
+		try {
+			List<RowKeyStream> streams = new ArrayList<RowKeyStream>();
+			for (HybridRowIndex singleRowIndex : getMatchingPostings(criterion)
+					.elementSet()) {
+				streams.add(RowKeyStream.of(singleRowIndex.getPKRefs()));
+			}
+			RowKeyStream stream = streams.isEmpty() ? RowKeyStream.empty()
+					: RowKeyStream.union(streams);
+			return RowKeyStream.unlockOnClose(stream, rwLock.readLock());
+		} catch (RuntimeException e) {
+			rwLock.readLock().unlock();
+			throw e;
+		}
+	}
+
+	@Override
+	public SortedMap<byte[], Integer> countByValue(Criterion<?> criterion) {
+		rwLock.readLock().lock();
+		try {
+			SortedMap<byte[], Integer> counts = new TreeMap<byte[], Integer>(
+					Bytes.BYTES_COMPARATOR);
+			for (HybridRowIndex singleRowIndex : getMatchingPostings(criterion)) {
+				if (!singleRowIndex.getPKRefs().isEmpty()) {
+					counts.put(singleRowIndex.getRowKey(), singleRowIndex
+							.getPKRefs().size());
+				}
+			}
+			return counts;
+		} finally {
+			rwLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public long getIndexedRowCount() {
+		rwLock.readLock().lock();
+		try {
+			if (rowCount >= 0) {
+				return rowCount;
+			}
+			// only the first call after deserialization; writers are
+			// excluded, concurrent readers count the same
+			long rows = 0;
+			for (HybridRowIndex singleRowIndex : sortedTree.elementSet()) {
+				rows += singleRowIndex.getPKRefs().size();
+			}
+			rowCount = rows;
+			return rows;
+		} finally {
+			rwLock.readLock().unlock();
+		}
+	}
+
+	// The caller holds the write lock
+	private void countRows(int delta) {
+		if (rowCount >= 0) {
+			rowCount += delta;
+		}
+	}
+
+	@Override
+	public List<byte[]> filterRowsInValueOrder(Criterion<?> criterion,
+			boolean descending, int limit) {
+		rwLock.readLock().lock();
+		try {
+			SortedMultiset<HybridRowIndex> postings = getMatchingPostings(criterion);
+			if (descending) {
+				postings = postings.descendingMultiset();
+			}
+			List<byte[]> rows = new ArrayList<byte[]>();
+			for (HybridRowIndex singleRowIndex : postings.elementSet()) {
+				if (addRows(rows, descending ? singleRowIndex.getPKRefs()
+						.descendingSet() : singleRowIndex.getPKRefs(), limit)) {
+					break;
+				}
+			}
+			return rows;
+		} finally {
+			rwLock.readLock().unlock();
+		}
+	}
+
+	// The postings of the values matching the criterion, in value order
+	private SortedMultiset<HybridRowIndex> getMatchingPostings(
+			Criterion<?> criterion) {
+		Object value = criterion.getComparisonValue();
+		switch (criterion.getComparisonType()) {
+		case EQUAL:
+			HybridRowIndex equalRowIndex = new HybridRowIndex((byte[]) value);
+			return sortedTree.subMultiset(equalRowIndex, BoundType.CLOSED,
+					equalRowIndex, BoundType.CLOSED);
+		case GREATER:
+			return sortedTree.tailMultiset(new HybridRowIndex((byte[]) value),
+					BoundType.OPEN);
+		case LESS:
+			return sortedTree.headMultiset(new HybridRowIndex((byte[]) value),
+					BoundType.OPEN);
+		case GREATER_OR_EQUAL:
+			return sortedTree.tailMultiset(new HybridRowIndex((byte[]) value),
+					BoundType.CLOSED);
+		case LESS_OR_EQUAL:
+			return sortedTree.headMultiset(new HybridRowIndex((byte[]) value),
+					BoundType.CLOSED);
+		case RANGE:
+			Range range = criterion.getRange();
+			return sortedTree.subMultiset(
+					new HybridRowIndex(range.getLowerBound()), BoundType.CLOSED,
+					new HybridRowIndex(range.getHigherBound()), BoundType.CLOSED);
+		case PREFIX:
+			// the values from the prefix up to the first value without it
+			byte[] upperBound = getPrefixUpperBound((byte[]) value);
+			if (upperBound == null) {
+				return sortedTree.tailMultiset(
+						new HybridRowIndex((byte[]) value), BoundType.CLOSED);
+			}
+			return sortedTree.subMultiset(new HybridRowIndex((byte[]) value),
+					BoundType.CLOSED, new HybridRowIndex(upperBound),
+					BoundType.OPEN);
+		default:
+			throw new UnsupportedOperationException("Cannot select the values of a "
+					+ criterion.getComparisonType() + " criterion.");
+		}
+	}
+
 	// public String toString() {
 	// for (int key : rowIndexMap.keySet()) {
 	// System.out.println("HashMap key: " + key);
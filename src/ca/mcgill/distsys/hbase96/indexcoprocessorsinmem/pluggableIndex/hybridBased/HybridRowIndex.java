@@ -48,16 +48,24 @@ public class HybridRowIndex implements Comparable<HybridRowIndex> ,  Serializabl
 		return rowKey;
 	}
 	
-	public void add(byte[] value){
+	// Whether the row reference was not there yet
+	public boolean add(byte[] value){
 		rwLock.writeLock().lock();
-		pkRefs.add(value);
-		rwLock.writeLock().unlock();
+		try {
+			return pkRefs.add(value);
+		} finally {
+			rwLock.writeLock().unlock();
+		}
 	}
 	
-	public void remove(byte[] value) {
+	// Whether the row reference was there
+	public boolean remove(byte[] value) {
 		rwLock.writeLock().lock();
-		pkRefs.remove(value);
-		rwLock.writeLock().unlock();
+		try {
+			return pkRefs.remove(value);
+		} finally {
+			rwLock.writeLock().unlock();
+		}
 	}
 
 	@Override
@@ -62,15 +62,17 @@ public class ByteArrayNodeValue extends DeepCopyObject{
 		return rowKey;
 	}
 	
-	public void add(byte[] value){
+	// Whether the row reference was not there yet
+	public boolean add(byte[] value){
 		//rwLock.writeLock().lock();
-		pkRefs.add(value);
+		return pkRefs.add(value);
 		//rwLock.writeLock().unlock();
 	}
 	
-	public void remove(byte[] value) {
+	// Whether the row reference was there
+	public boolean remove(byte[] value) {
 		//rwLock.writeLock().lock();
-		pkRefs.remove(value);
+		return pkRefs.remove(value);
 		//rwLock.writeLock().unlock();
 	}
 
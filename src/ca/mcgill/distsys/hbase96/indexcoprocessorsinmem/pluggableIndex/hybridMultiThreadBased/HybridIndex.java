@@ -2,9 +2,13 @@ package ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.pluggableIndex.hybridMu
 
 import ca.mcgill.distsys.hbase96.indexcommonsinmem.ByteUtil;
 import ca.mcgill.distsys.hbase96.indexcommonsinmem.proto.Criterion;
+import ca.mcgill.distsys.hbase96.indexcommonsinmem.proto.Criterion.CompareType;
 import ca.mcgill.distsys.hbase96.indexcommonsinmem.proto.Range;
 import ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.pluggableIndex.AbstractPluggableIndex;
 import ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.pluggableIndex.commons.ByteArrayWrapper;
+import ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.pluggableIndex.commons.RowBitmap;
+import ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.pluggableIndex.commons.RowKeyStream;
+import ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.pluggableIndex.commons.RowOrdinals;
 import ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.pluggableIndex.hybridMultiThreadBased.IMBLTree.BNode;
 
 import org.apache.commons.logging.Log;
@@ -24,10 +28,13 @@ import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -46,6 +53,10 @@ public class HybridIndex extends AbstractPluggableIndex implements Serializable
 	// private HashMap<ByteArrayWrapper, ArrayList<HybridRowIndex>> rowIndexMap;
 	public HashMap<DeepCopyObject, ArrayList<DeepCopyObject>> map;
 	private transient ReadWriteLock rwLock;
+	// Number of row references over all the postings, kept up to date by
+	// add and remove under the write lock; -1 until counted after
+	// deserialization
+	private transient volatile long rowCount;
 	private byte[] columnFamily;
 	private byte[] qualifier;
 
@@ -53,6 +64,7 @@ public class HybridIndex extends AbstractPluggableIndex implements Serializable
 			ClassNotFoundException {
 		in.defaultReadObject();
 		rwLock = new ReentrantReadWriteLock(true);
+		rowCount = -1;
 	}
 
 	public HybridIndex(Object[] arguments) {
@@ -77,6 +89,8 @@ public class HybridIndex extends AbstractPluggableIndex implements Serializable
 			list = new ArrayList<DeepCopyObject>();
 			ByteArrayNodeValue rowIndex = new ByteArrayNodeValue(key);
 			rowIndex.add(value);
+			countRows(1);
+			retainRow(value);
 			list.add(rowIndex);
 			map.put(hashedValue, list);
 			rwLock.writeLock().unlock();
@@ -89,7 +103,10 @@ public class HybridIndex extends AbstractPluggableIndex implements Serializable
 			for (DeepCopyObject singleRowIndex : list) {
 				if (Arrays.equals(key,
 						((ByteArrayNodeValue) singleRowIndex).getRowKey())) {
-					((ByteArrayNodeValue) singleRowIndex).add(value);
+					if (((ByteArrayNodeValue) singleRowIndex).add(value)) {
+						countRows(1);
+						retainRow(value);
+					}
 					// Because it's reference type, don't have to manipulate
 					// treeSet anymore
 					rwLock.writeLock().unlock();
@@ -178,7 +195,12 @@ public class HybridIndex extends AbstractPluggableIndex implements Serializable
 					// Modified by Cong
 					// List<KeyValue> values = new ArrayList<KeyValue>();
 					List<Cell> values = new ArrayList<Cell>();
+					if (getRowOrdinals() != null) {
+						retainRows(getRowOrdinals(), false);
+					}
 					map.clear();
+					tree = new IMBLTree(6, IMBLTree.COMPARABLE_COMPARATOR);
+					rowCount = 0;
 
 					boolean more;
 					do {
@@ -247,7 +269,10 @@ public class HybridIndex extends AbstractPluggableIndex implements Serializable
 							.getUpdateStatus() == 1) {
 						;
 					}
-					((ByteArrayNodeValue) singleRowIndex).remove(value);
+					if (((ByteArrayNodeValue) singleRowIndex).remove(value)) {
+						countRows(-1);
+						releaseRow(value);
+					}
 					// If the HybridRowIndex doesn't contain anything, then we
 					// should remove it
 					if (((ByteArrayNodeValue) singleRowIndex).getPKRefs()
@@ -272,8 +297,115 @@ public class HybridIndex extends AbstractPluggableIndex implements Serializable
 
 	}
 
+	@Override
+	public void setRowOrdinals(RowOrdinals ordinals) {
+		rwLock.writeLock().lock();
+		try {
+			RowOrdinals previous = getRowOrdinals();
+			if (previous == ordinals) {
+				return;
+			}
+			if (previous != null) {
+				retainRows(previous, false);
+			}
+			if (ordinals != null) {
+				retainRows(ordinals, true);
+			}
+			super.setRowOrdinals(ordinals);
+		} finally {
+			rwLock.writeLock().unlock();
+		}
+	}
+
+	// Retains, or releases, every row reference of the postings in the
+	// ordinals, from the map, which unlike the tree is only changed under
+	// the write lock. The caller holds the write lock.
+	private void retainRows(RowOrdinals ordinals, boolean retain) {
+		for (ArrayList<DeepCopyObject> list : map.values()) {
+			for (DeepCopyObject posting : list) {
+				for (byte[] row : ((ByteArrayNodeValue) posting).getPKRefs()) {
+					if (retain) {
+						ordinals.retain(row);
+					} else {
+						ordinals.release(row);
+					}
+				}
+			}
+		}
+	}
+
+	// Straight from the postings: the matching row keys are never collected
+	@Override
+	public RowBitmap filterRowBitmap(Criterion<?> criterion) {
+		RowOrdinals ordinals = getRowOrdinals();
+		if (ordinals == null) {
+			return null;
+		}
+		RowBitmap bitmap = new RowBitmap();
+		rwLock.readLock().lock();
+		try {
+			if (criterion.getComparisonType() == CompareType.IN) {
+				for (byte[] value : getInValues(criterion)) {
+					ArrayList<DeepCopyObject> list = map
+							.get(new ByteArrayNodeKey(value));
+					if (list != null) {
+						for (DeepCopyObject posting : list) {
+							ByteArrayNodeValue nodeValue =
+									(ByteArrayNodeValue) posting;
+							if (Arrays.equals(value, nodeValue.getRowKey())) {
+								ordinals.addTo(bitmap, nodeValue.getPKRefs());
+								break;
+							}
+						}
+					}
+				}
+			} else {
+				for (DeepCopyObject posting : getMatchingPostings(criterion)) {
+					if (posting != null) {
+						ordinals.addTo(bitmap,
+								((ByteArrayNodeValue) posting).getPKRefs());
+					}
+				}
+			}
+			return bitmap;
+		} finally {
+			rwLock.readLock().unlock();
+		}
+	}
+
+	// All the postings of an IN list under one hold of the read lock, from
+	// the hash map of the values
+	@Override
+	public Set<byte[]> filterRowsFromValues(Collection<byte[]> values) {
+		Set<byte[]> rowKeys = new TreeSet<byte[]>(Bytes.BYTES_COMPARATOR);
+		rwLock.readLock().lock();
+		try {
+			for (byte[] value : values) {
+				ArrayList<DeepCopyObject> list = map.get(new ByteArrayNodeKey(
+						value));
+				if (list != null) {
+					for (DeepCopyObject singleRowIndex : list) {
+						if (Arrays.equals(value,
+								((ByteArrayNodeValue) singleRowIndex)
+										.getRowKey())) {
+							rowKeys.addAll(((ByteArrayNodeValue) singleRowIndex)
+									.getPKRefs());
+							break;
+						}
+					}
+				}
+			}
+			return rowKeys;
+		} finally {
+			rwLock.readLock().unlock();
+		}
+	}
+
 	@Override
 	public Set<byte[]> filterRowsFromCriteria(Criterion<?> criterion) {
+		if (criterion.getComparisonType() == CompareType.IN) {
+			return filterRowsFromValues(getInValues(criterion));
+		}
 		rwLock.readLock().lock();
 
 		Set<byte[]> rowKeys = new TreeSet<byte[]>(Bytes.BYTES_COMPARATOR);
@@ -353,6 +485,17 @@ public class HybridIndex extends AbstractPluggableIndex implements Serializable
 			}
 			rwLock.readLock().unlock();
 			return rowKeys;
+		case PREFIX:
+			try {
+				for (DeepCopyObject singleRowIndex : prefixSearch(
+						(byte[]) value)) {
+					rowKeys.addAll(((ByteArrayNodeValue) singleRowIndex)
+							.getPKRefs());
+				}
+				return rowKeys;
+			} finally {
+				rwLock.readLock().unlock();
+			}
 		default:
 			rwLock.readLock().unlock();
 			return null;
@@ -378,6 +521,231 @@ public class HybridIndex extends AbstractPluggableIndex implements Serializable
 	// return "";
 	// }
 
+	// Walks the leaves of the tree between the bounds of the criterion
+	@Override
+	public SortedMap<byte[], Integer> countByValue(Criterion<?> criterion) {
+		rwLock.readLock().lock();
+		try {
+			SortedMap<byte[], Integer> counts = new TreeMap<byte[], Integer>(
+					Bytes.BYTES_COMPARATOR);
+			for (DeepCopyObject posting : getMatchingPostings(criterion)) {
+				ByteArrayNodeValue nodeValue = (ByteArrayNodeValue) posting;
+				if (!nodeValue.getPKRefs().isEmpty()) {
+					counts.put(nodeValue.getRowKey(), nodeValue.getPKRefs()
+							.size());
+				}
+			}
+			return counts;
+		} finally {
+			rwLock.readLock().unlock();
+		}
+	}
+
+	// Merge of views over the leaf postings of the matching values, read
+	// under the read lock until the stream is closed
+	@Override
+	public RowKeyStream filterRowStream(Criterion<?> criterion) {
+		if (criterion.getComparisonType() == CompareType.IN) {
+			return super.filterRowStream(criterion);
+		}
+		rwLock.readLock().lock();
+		try {
+			List<RowKeyStream> streams = new ArrayList<RowKeyStream>();
+			for (DeepCopyObject posting : getMatchingPostings(criterion)) {
+				if (posting != null) {
+					streams.add(RowKeyStream.of(((ByteArrayNodeValue) posting)
+							.getPKRefs()));
+				}
+			}
+			RowKeyStream stream = streams.isEmpty() ? RowKeyStream.empty()
+					: RowKeyStream.union(streams);
+			return RowKeyStream.unlockOnClose(stream, rwLock.readLock());
+		} catch (RuntimeException e) {
+			rwLock.readLock().unlock();
+			throw e;
+		}
+	}
+
+	// The leaf postings of the values matching the criterion, in value
+	// order; the caller holds the read lock
+	private List<DeepCopyObject> getMatchingPostings(Criterion<?> criterion) {
+		Object value = criterion.getComparisonValue();
+		switch (criterion.getComparisonType()) {
+		case EQUAL:
+			ByteArrayNodeKey equalKey = new ByteArrayNodeKey((byte[]) value);
+			return tree.rangeSearch(equalKey, true, equalKey, true);
+		case GREATER:
+			return tree.rangeSearch(new ByteArrayNodeKey((byte[]) value), false,
+					null, false);
+		case LESS:
+			return tree.rangeSearch(null, false, new ByteArrayNodeKey(
+					(byte[]) value), false);
+		case GREATER_OR_EQUAL:
+			return tree.rangeSearch(new ByteArrayNodeKey((byte[]) value), true,
+					null, false);
+		case LESS_OR_EQUAL:
+			return tree.rangeSearch(null, false, new ByteArrayNodeKey(
+					(byte[]) value), true);
+		case RANGE:
+			Range range = criterion.getRange();
+			return tree.rangeSearch(new ByteArrayNodeKey(range.getLowerBound()),
+					true, new ByteArrayNodeKey(range.getHigherBound()), true);
+		case PREFIX:
+			return prefixSearch((byte[]) value);
+		default:
+			throw new UnsupportedOperationException(
+					"Cannot select the values of a "
+							+ criterion.getComparisonType() + " criterion.");
+		}
+	}
+
+	// The leaf postings of the values starting with the prefix: one walk of
+	// the leaf chain from the prefix, stopping at the first value without
+	// it. The caller holds the read lock.
+	private List<DeepCopyObject> prefixSearch(final byte[] prefix) {
+		final List<DeepCopyObject> postings = new ArrayList<DeepCopyObject>();
+		tree.ascendingSearch(new ByteArrayNodeKey(prefix), true,
+				new IMBLTree.RangeVisitor() {
+					@Override
+					public boolean visit(DeepCopyObject posting) {
+						if (!Bytes.startsWith(
+								((ByteArrayNodeValue) posting).getRowKey(),
+								prefix)) {
+							return false;
+						}
+						postings.add(posting);
+						return true;
+					}
+				});
+		return postings;
+	}
+
+	@Override
+	public long getIndexedRowCount() {
+		rwLock.readLock().lock();
+		try {
+			if (rowCount >= 0) {
+				return rowCount;
+			}
+			// only the first call after deserialization; writers are
+			// excluded, concurrent readers count the same. The map, unlike
+			// the tree, is only changed under the write lock.
+			long rows = 0;
+			for (ArrayList<DeepCopyObject> list : map.values()) {
+				for (DeepCopyObject posting : list) {
+					rows += ((ByteArrayNodeValue) posting).getPKRefs().size();
+				}
+			}
+			rowCount = rows;
+			return rows;
+		} finally {
+			rwLock.readLock().unlock();
+		}
+	}
+
+	// The caller holds the write lock
+	private void countRows(int delta) {
+		if (rowCount >= 0) {
+			rowCount += delta;
+		}
+	}
+
+	// Walks the tree from the lower bound (ascending) or the upper bound
+	// (descending) and stops after limit rows
+	@Override
+	public List<byte[]> filterRowsInValueOrder(Criterion<?> criterion,
+			boolean descending, final int limit) {
+		Object value = criterion.getComparisonValue();
+		byte[] lower = null;
+		byte[] upper = null;
+		boolean lowerInclusive = false;
+		boolean upperInclusive = false;
+		switch (criterion.getComparisonType()) {
+		case EQUAL:
+			lower = upper = (byte[]) value;
+			lowerInclusive = upperInclusive = true;
+			break;
+		case GREATER:
+			lower = (byte[]) value;
+			break;
+		case GREATER_OR_EQUAL:
+			lower = (byte[]) value;
+			lowerInclusive = true;
+			break;
+		case LESS:
+			upper = (byte[]) value;
+			break;
+		case LESS_OR_EQUAL:
+			upper = (byte[]) value;
+			upperInclusive = true;
+			break;
+		case RANGE:
+			lower = criterion.getRange().getLowerBound();
+			upper = criterion.getRange().getHigherBound();
+			lowerInclusive = upperInclusive = true;
+			break;
+		case PREFIX:
+			lower = (byte[]) value;
+			lowerInclusive = true;
+			upper = getPrefixUpperBound((byte[]) value);
+			break;
+		default:
+			throw new UnsupportedOperationException(
+					"Cannot select the values of a "
+							+ criterion.getComparisonType() + " criterion.");
+		}
+		ByteArrayNodeKey lowerKey = lower == null ? null : new ByteArrayNodeKey(
+				lower);
+		final List<byte[]> rows = new ArrayList<byte[]>();
+
+		rwLock.readLock().lock();
+		try {
+			if (descending) {
+				final byte[] lowerBound = lower;
+				final boolean inclusive = lowerInclusive;
+				tree.descendingSearch(upper == null ? null
+						: new ByteArrayNodeKey(upper), upperInclusive,
+						new IMBLTree.RangeVisitor() {
+							@Override
+							public boolean visit(DeepCopyObject posting) {
+								ByteArrayNodeValue nodeValue = (ByteArrayNodeValue) posting;
+								if (lowerBound != null) {
+									int cmp = Bytes.compareTo(
+											nodeValue.getRowKey(), lowerBound);
+									if (cmp < 0 || (cmp == 0 && !inclusive)) {
+										return false;
+									}
+								}
+								return !addRows(rows, nodeValue.getPKRefs()
+										.descendingSet(), limit);
+							}
+						});
+			} else {
+				final byte[] upperBound = upper;
+				final boolean inclusive = upperInclusive;
+				tree.ascendingSearch(lowerKey, lowerInclusive,
+						new IMBLTree.RangeVisitor() {
+							@Override
+							public boolean visit(DeepCopyObject posting) {
+								ByteArrayNodeValue nodeValue = (ByteArrayNodeValue) posting;
+								if (upperBound != null) {
+									int cmp = Bytes.compareTo(
+											nodeValue.getRowKey(), upperBound);
+									if (cmp > 0 || (cmp == 0 && !inclusive)) {
+										return false;
+									}
+								}
+								return !addRows(rows, nodeValue.getPKRefs(),
+										limit);
+							}
+						});
+			}
+			return rows;
+		} finally {
+			rwLock.readLock().unlock();
+		}
+	}
+
 	@Override
 	public void split(AbstractPluggableIndex daughterRegionA,
 			AbstractPluggableIndex daughterRegionB, byte[] splitRow) {
@@ -871,6 +871,113 @@ public class IMBLTree implements Serializable {
 
 	}
 
+	// Called on each value of an ascending walk; returns false to stop it
+	public interface RangeVisitor {
+		boolean visit(DeepCopyObject value);
+	}
+
+	// Walks the values from the lower bound (null: from the first value) in
+	// ascending order, following the leaf chain, until the visitor stops it.
+	// Unlike rangeSearch, the leaves after that point are never read.
+	public void ascendingSearch(DeepCopyObject lowerBound,
+			boolean isInclusiveLower, RangeVisitor visitor) {
+		BNode current;
+		if (lowerBound == null) {
+			current = leftEdges.get(0);
+			if (!current.isLeaf()) {
+				return;
+			}
+		} else {
+			List<DeepCopyObject> list = new ArrayList<DeepCopyObject>();
+			current = this.getLowerNodeSublist(lowerBound, isInclusiveLower,
+					list);
+			for (DeepCopyObject value : list) {
+				if (value != null && !visitor.visit(value)) {
+					return;
+				}
+			}
+			current = current.getNodeContent().next();
+		}
+		while (current != null) {
+			IMBLTNodeContentWrapper wrapper = current.getNodeContent();
+			for (DeepCopyObject value : wrapper.vals()) {
+				if (value != null && !visitor.visit(value)) {
+					return;
+				}
+			}
+			current = wrapper.next();
+		}
+	}
+
+	// Walks the values from the upper bound (null: from the last value) in
+	// descending order until the visitor stops it. The leaf chain only links
+	// forward, so the walk goes down the directory nodes, right to left;
+	// leaves before that point are never read. Writers split nodes while it
+	// runs: a node split off but not yet in its parent is only reachable
+	// through the link of its left sibling, so each child is read together
+	// with the siblings it links to up to the next key of the parent.
+	public void descendingSearch(DeepCopyObject upperBound,
+			boolean isInclusiveUpper, RangeVisitor visitor) {
+		descendingSearch(rootNode, null, upperBound, isInclusiveUpper,
+				visitor);
+	}
+
+	// fence: the key of the parent after the node, null if there is none;
+	// returns false once the visitor stopped the walk
+	private boolean descendingSearch(BNode node, DeepCopyObject fence,
+			DeepCopyObject upperBound, boolean isInclusiveUpper,
+			RangeVisitor visitor) {
+		List<IMBLTNodeContentWrapper> chain = new ArrayList<IMBLTNodeContentWrapper>();
+		IMBLTNodeContentWrapper wrapper = node.getNodeContent();
+		chain.add(wrapper);
+		while (wrapper.highKey() != null
+				&& (fence == null || comparator.compare(wrapper.highKey(),
+						fence) < 0) && wrapper.next() != null) {
+			wrapper = wrapper.next().getNodeContent();
+			chain.add(wrapper);
+		}
+
+		for (int n = chain.size() - 1; n >= 0; n--) {
+			wrapper = chain.get(n);
+			DeepCopyObject[] keys = wrapper.keys();
+			// keys[0] is the low key: all the keys of the node are greater
+			if (upperBound != null && keys[0] != null
+					&& comparator.compare(keys[0], upperBound) >= 0) {
+				continue;
+			}
+			if (wrapper.isLeaf()) {
+				// the last key is a copy of the high key
+				for (int i = keys.length - 2; i >= 1; i--) {
+					if (upperBound != null) {
+						int cmp = comparator.compare(keys[i], upperBound);
+						if (cmp > 0 || (cmp == 0 && !isInclusiveUpper)) {
+							continue;
+						}
+					}
+					DeepCopyObject value = wrapper.vals()[i - 1];
+					if (value != null && !visitor.visit(value)) {
+						return false;
+					}
+				}
+				continue;
+			}
+			// the last child is the link to the sibling
+			BNode[] child = wrapper.child();
+			int pos = keys.length - 2;
+			if (upperBound != null) {
+				pos = Math.max(0,
+						Math.min(pos, findChildren(upperBound, keys) - 1));
+			}
+			for (int i = pos; i >= 0; i--) {
+				if (!descendingSearch(child[i], keys[i + 1], upperBound,
+						isInclusiveUpper, visitor)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
 	// helper method
 	public void printWholeTree() {
 		int counter = 1;
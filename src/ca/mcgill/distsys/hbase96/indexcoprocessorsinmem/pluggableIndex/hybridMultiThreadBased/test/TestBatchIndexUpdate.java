@@ -0,0 +1,152 @@
+package ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.pluggableIndex.hybridMultiThreadBased.test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import ca.mcgill.distsys.hbase96.indexcommonsinmem.IndexedColumn;
+import ca.mcgill.distsys.hbase96.indexcommonsinmem.proto.Column;
+import ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.BatchIndexUpdate;
+import ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.IndexUpdatePlan;
+import ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.IndexedRowState;
+import ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.pluggableIndex.IndexDelta;
+import ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.pluggableIndex.commons.CompositeKeyBuilder;
+
+public class TestBatchIndexUpdate {
+
+	private static final byte[] FAMILY = Bytes.toBytes("cf");
+	private static final byte[] C0 = Bytes.toBytes("c0");
+	private static final byte[] C1 = Bytes.toBytes("c1");
+	private static final byte[] ROW1 = Bytes.toBytes("row1");
+	private static final byte[] ROW2 = Bytes.toBytes("row2");
+
+	// slot 0: index on c0, slot 1: index on (c1, c0)
+	static IndexUpdatePlan plan;
+
+	public static void main(String[] args) throws Exception {
+		List<IndexedColumn> indexes = new ArrayList<IndexedColumn>();
+		List<Column> colList = new ArrayList<Column>();
+		colList.add(new Column(FAMILY, C0));
+		indexes.add(new IndexedColumn(colList));
+		colList = new ArrayList<Column>();
+		colList.add(new Column(FAMILY, C1));
+		colList.add(new Column(FAMILY, C0));
+		indexes.add(new IndexedColumn(colList));
+		plan = IndexUpdatePlan.compile(indexes);
+
+		System.out.println("starting test....");
+
+		System.out.println("Checking several puts on a row...");
+		BatchIndexUpdate batchUpdate = new BatchIndexUpdate(plan);
+		IndexedRowState rowState = rowState("a", "x");
+		batchUpdate.applyPut(put(ROW1, C0, "b"), rowState);
+		batchUpdate.applyPut(put(ROW1, C0, "c"), rowState);
+		batchUpdate.applyPut(put(ROW1, C0, "d"), rowState);
+		HashMap<String, List<IndexDelta>> deltas = batchUpdate.getDeltas();
+		check(deltas, 0, ROW1, value("a"), value("d"));
+		check(deltas, 1, ROW1, key("x", "a"), key("x", "d"));
+
+		System.out.println("Checking a row put back to its value...");
+		batchUpdate = new BatchIndexUpdate(plan);
+		rowState = rowState("a", "x");
+		batchUpdate.applyPut(put(ROW1, C0, "b"), rowState);
+		batchUpdate.applyPut(put(ROW1, C1, "y"), rowState);
+		batchUpdate.applyPut(put(ROW1, C0, "a"), rowState);
+		batchUpdate.applyPut(put(ROW1, C1, "x"), rowState);
+		if (!batchUpdate.isEmpty() || !batchUpdate.getDeltas().isEmpty()) {
+			throw new Exception("No-op changes were not dropped: "
+					+ batchUpdate.getDeltas().keySet());
+		}
+
+		System.out.println("Checking a new row filled by several puts...");
+		batchUpdate = new BatchIndexUpdate(plan);
+		rowState = new IndexedRowState(plan);
+		batchUpdate.applyPut(put(ROW1, C0, "a"), rowState);
+		batchUpdate.applyPut(put(ROW1, C1, "x"), rowState);
+		batchUpdate.applyPut(put(ROW1, C0, "b"), rowState);
+		deltas = batchUpdate.getDeltas();
+		check(deltas, 0, ROW1, null, value("b"));
+		check(deltas, 1, ROW1, null, key("x", "b"));
+
+		System.out.println("Checking a put followed by a delete of the row...");
+		batchUpdate = new BatchIndexUpdate(plan);
+		rowState = rowState("a", "x");
+		batchUpdate.applyPut(put(ROW1, C0, "b"), rowState);
+		batchUpdate.applyDelete(new Delete(ROW1), rowState);
+		deltas = batchUpdate.getDeltas();
+		check(deltas, 0, ROW1, value("a"), null);
+		check(deltas, 1, ROW1, key("x", "a"), null);
+
+		System.out.println("Checking interleaved puts on two rows...");
+		batchUpdate = new BatchIndexUpdate(plan);
+		IndexedRowState rowState1 = rowState("a", "x");
+		IndexedRowState rowState2 = rowState("p", "q");
+		batchUpdate.applyPut(put(ROW1, C0, "b"), rowState1);
+		batchUpdate.applyPut(put(ROW2, C0, "r"), rowState2);
+		batchUpdate.applyPut(put(ROW1, C0, "c"), rowState1);
+		batchUpdate.applyPut(put(ROW2, C0, "p"), rowState2);
+		// row2 is back to its value, only row1 changed
+		deltas = batchUpdate.getDeltas();
+		check(deltas, 0, ROW1, value("a"), value("c"));
+		check(deltas, 1, ROW1, key("x", "a"), key("x", "c"));
+
+		System.out.println("Checking a put of a non indexed column...");
+		batchUpdate = new BatchIndexUpdate(plan);
+		batchUpdate.applyPut(put(ROW1, Bytes.toBytes("other"), "z"),
+				rowState("a", "x"));
+		if (!batchUpdate.getDeltas().isEmpty()) {
+			throw new Exception("Deltas for a non indexed column");
+		}
+
+		System.out.println("No exception occur");
+	}
+
+	private static IndexedRowState rowState(String c0, String c1) {
+		IndexedRowState rowState = new IndexedRowState(plan);
+		rowState.put(plan.findColumn(new Column(FAMILY, C0)), value(c0));
+		rowState.put(plan.findColumn(new Column(FAMILY, C1)), value(c1));
+		return rowState;
+	}
+
+	private static Put put(byte[] row, byte[] qualifier, String value) {
+		Put put = new Put(row);
+		put.add(FAMILY, qualifier, value(value));
+		return put;
+	}
+
+	private static byte[] value(String value) {
+		return Bytes.toBytes(value);
+	}
+
+	private static byte[] key(String c1, String c0) {
+		return CompositeKeyBuilder.encode(value(c1), value(c0));
+	}
+
+	// The index of the slot has a single delta, of the row
+	private static void check(HashMap<String, List<IndexDelta>> deltas,
+			int slot, byte[] row, byte[] oldValue, byte[] newValue)
+			throws Exception {
+		List<IndexDelta> indexDeltas = deltas.get(plan.getIndexKey(slot));
+		if (indexDeltas == null || indexDeltas.size() != 1) {
+			throw new Exception("Expected one delta for "
+					+ plan.getIndexKey(slot) + " but was " + indexDeltas);
+		}
+		IndexDelta delta = indexDeltas.get(0);
+		check(row, delta.getRow());
+		check(oldValue, delta.getOldValue());
+		check(newValue, delta.getNewValue());
+	}
+
+	private static void check(byte[] expected, byte[] actual) throws Exception {
+		if (expected == null ? actual != null : !Bytes.equals(expected, actual)) {
+			throw new Exception("Expected "
+					+ (expected == null ? "null" : Bytes.toStringBinary(expected))
+					+ " but was "
+					+ (actual == null ? "null" : Bytes.toStringBinary(actual)));
+		}
+	}
+}
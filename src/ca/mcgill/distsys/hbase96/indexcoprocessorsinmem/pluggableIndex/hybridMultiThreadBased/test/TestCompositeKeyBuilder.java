@@ -0,0 +1,114 @@
+package ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.pluggableIndex.hybridMultiThreadBased.test;
+
+import java.util.Random;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+import ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.pluggableIndex.commons.CompositeKeyBuilder;
+
+public class TestCompositeKeyBuilder {
+
+	static int count = 20000;
+	static Random generator = new Random();
+
+	public static void main(String[] args) throws Exception {
+		System.out.println("starting test....");
+
+		System.out.println("Checking the escaping of 0x00...");
+		check(new byte[] { 'a', 0x00, 0x01 }, encode(new byte[] { 'a' }));
+		check(new byte[] { 0x00, (byte) 0xFF, 0x00, 0x01, 0x00, 0x01 },
+				encode(new byte[] { 0x00 }, new byte[0]));
+		check(new byte[] { 'a', 0x00, (byte) 0xFF, 0x00, 0x01, 'b', 0x00, 0x01 },
+				encode(new byte[] { 'a', 0x00 }, new byte[] { 'b' }));
+		// the column boundary moves, so the keys must differ
+		if (Bytes.equals(encode(new byte[] { 'a', 0x00 }, new byte[] { 'b' }),
+				encode(new byte[] { 'a' }, new byte[] { 0x00, 'b' }))) {
+			throw new Exception("Ambiguous keys for a 0x00 moved across columns");
+		}
+
+		System.out.println("Checking the order of " + count + " random keys...");
+		for (int i = 0; i < count; i++) {
+			byte[][] a = randomValues();
+			byte[][] b = randomValues();
+			int expected = compareColumns(a, b);
+			int actual = Integer.signum(Bytes.compareTo(encode(a), encode(b)));
+			if (expected != actual) {
+				throw new Exception("Key order " + actual + " instead of "
+						+ expected + " for " + toString(a) + " and "
+						+ toString(b));
+			}
+		}
+
+		System.out.println("Checking the prefixes of leading columns...");
+		for (int i = 0; i < count; i++) {
+			byte[][] values = randomValues();
+			byte[] key = encode(values);
+			if (!Bytes.startsWith(key, encode(values[0]))) {
+				throw new Exception("The key of " + toString(values)
+						+ " does not start with the key of its first column");
+			}
+		}
+
+		System.out.println("Checking the reuse of the builder...");
+		byte[] first = CompositeKeyBuilder.get().add(new byte[] { 'x' })
+				.toBytes();
+		byte[] second = CompositeKeyBuilder.get().add(new byte[] { 'y' })
+				.add(new byte[] { 0x00, 'z', 0x00 }, 1, 1).toBytes();
+		check(new byte[] { 'x', 0x00, 0x01 }, first);
+		check(new byte[] { 'y', 0x00, 0x01, 'z', 0x00, 0x01 }, second);
+		// a value longer than the initial buffer
+		byte[] large = new byte[1000];
+		check(large.length * 2 + 2, encode(large).length);
+
+		System.out.println("No exception occur");
+	}
+
+	private static byte[] encode(byte[]... values) {
+		return CompositeKeyBuilder.encode(values);
+	}
+
+	// Two columns of short values, drawn from few bytes so that equal
+	// values, prefixes and 0x00 bytes are frequent
+	private static byte[][] randomValues() {
+		byte[][] values = new byte[2][];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = new byte[generator.nextInt(4)];
+			for (int j = 0; j < values[i].length; j++) {
+				int b = generator.nextInt(4);
+				values[i][j] = (byte) (b == 3 ? 0xFF : b);
+			}
+		}
+		return values;
+	}
+
+	private static int compareColumns(byte[][] a, byte[][] b) {
+		for (int i = 0; i < a.length; i++) {
+			int cmp = Bytes.compareTo(a[i], b[i]);
+			if (cmp != 0) {
+				return Integer.signum(cmp);
+			}
+		}
+		return 0;
+	}
+
+	private static void check(byte[] expected, byte[] actual) throws Exception {
+		if (!Bytes.equals(expected, actual)) {
+			throw new Exception("Expected key " + Bytes.toStringBinary(expected)
+					+ " but was " + Bytes.toStringBinary(actual));
+		}
+	}
+
+	private static void check(int expected, int actual) throws Exception {
+		if (expected != actual) {
+			throw new Exception("Expected " + expected + " but was " + actual);
+		}
+	}
+
+	private static String toString(byte[][] values) {
+		StringBuilder sb = new StringBuilder();
+		for (byte[] value : values) {
+			sb.append(Bytes.toStringBinary(value)).append(' ');
+		}
+		return sb.toString();
+	}
+}
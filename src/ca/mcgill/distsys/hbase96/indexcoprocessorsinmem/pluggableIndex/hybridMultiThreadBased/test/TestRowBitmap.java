@@ -0,0 +1,156 @@
+package ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.pluggableIndex.hybridMultiThreadBased.test;
+
+import java.util.Random;
+import java.util.TreeSet;
+
+import ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.pluggableIndex.commons.RowBitmap;
+
+public class TestRowBitmap {
+
+	// a group holds the ordinals sharing their high 16 bits; it switches from
+	// an array to a bitmap container past 4096 ordinals
+	static int groupSize = 65536;
+	static int arrayMaxSize = 4096;
+	static Random generator = new Random();
+
+	public static void main(String[] args) throws Exception {
+		System.out.println("starting test....");
+
+		System.out.println("Checking an array container growing into a bitmap...");
+		TreeSet<Integer> expected = new TreeSet<Integer>();
+		RowBitmap bitmap = new RowBitmap();
+		while (expected.size() < arrayMaxSize + 10) {
+			int ordinal = generator.nextInt(groupSize);
+			bitmap.add(ordinal);
+			expected.add(ordinal);
+			if (expected.size() >= arrayMaxSize - 2) {
+				check(expected, bitmap);
+			}
+		}
+
+		System.out.println("Checking OR of two arrays into a bitmap...");
+		// each side stays an array, their union does not
+		TreeSet<Integer> left = randomOrdinals(0, arrayMaxSize - 100);
+		TreeSet<Integer> right = randomOrdinals(0, arrayMaxSize - 100);
+		checkOr(left, right);
+		checkAnd(left, right);
+
+		System.out.println("Checking AND of two bitmaps into an array...");
+		// both sides are bitmaps, most of their ordinals are disjoint
+		left = new TreeSet<Integer>();
+		right = new TreeSet<Integer>();
+		for (int i = 0; i < 3 * arrayMaxSize; i++) {
+			left.add(2 * i);
+			right.add(2 * i + 1);
+		}
+		for (int i = 0; i < 100; i++) {
+			int shared = generator.nextInt(groupSize);
+			left.add(shared);
+			right.add(shared);
+		}
+		checkAnd(left, right);
+		checkOr(left, right);
+
+		System.out.println("Checking AND of two bitmaps staying a bitmap...");
+		left = randomOrdinals(0, 3 * arrayMaxSize);
+		right = new TreeSet<Integer>(left);
+		right.addAll(randomOrdinals(0, arrayMaxSize));
+		checkAnd(left, right);
+
+		System.out.println("Checking AND and OR of an array and a bitmap...");
+		left = randomOrdinals(0, 100);
+		right = randomOrdinals(0, 2 * arrayMaxSize);
+		checkAnd(left, right);
+		checkAnd(right, left);
+		checkOr(left, right);
+		checkOr(right, left);
+
+		System.out.println("Checking groups present on one side only...");
+		for (int i = 0; i < 20; i++) {
+			left = new TreeSet<Integer>();
+			right = new TreeSet<Integer>();
+			for (int group = 0; group < 6; group++) {
+				// sizes on both sides of the container threshold
+				int leftSize = generator.nextInt(2) == 0 ? 0 : generator
+						.nextInt(2 * arrayMaxSize);
+				int rightSize = generator.nextInt(2) == 0 ? 0 : generator
+						.nextInt(2 * arrayMaxSize);
+				left.addAll(randomOrdinals(group, leftSize));
+				right.addAll(randomOrdinals(group, rightSize));
+			}
+			checkAnd(left, right);
+			checkOr(left, right);
+		}
+
+		System.out.println("Checking empty bitmaps...");
+		checkAnd(new TreeSet<Integer>(), randomOrdinals(0, 10));
+		checkOr(new TreeSet<Integer>(), randomOrdinals(0, 10));
+		if (!new RowBitmap().and(toBitmap(randomOrdinals(1, 10))).isEmpty()) {
+			throw new Exception("AND with an empty bitmap is not empty");
+		}
+
+		System.out.println("No exception occur");
+	}
+
+	private static void checkAnd(TreeSet<Integer> left, TreeSet<Integer> right)
+			throws Exception {
+		TreeSet<Integer> expected = new TreeSet<Integer>(left);
+		expected.retainAll(right);
+		check(expected, toBitmap(left).and(toBitmap(right)));
+	}
+
+	private static void checkOr(TreeSet<Integer> left, TreeSet<Integer> right)
+			throws Exception {
+		TreeSet<Integer> expected = new TreeSet<Integer>(left);
+		expected.addAll(right);
+		check(expected, toBitmap(left).or(toBitmap(right)));
+	}
+
+	private static void check(TreeSet<Integer> expected, RowBitmap bitmap)
+			throws Exception {
+		if (bitmap.getCardinality() != expected.size()) {
+			throw new Exception("Cardinality " + bitmap.getCardinality()
+					+ " instead of " + expected.size());
+		}
+		if (bitmap.isEmpty() != expected.isEmpty()) {
+			throw new Exception("isEmpty() is " + bitmap.isEmpty() + " for "
+					+ expected.size() + " ordinals");
+		}
+		int[] ordinals = bitmap.toArray();
+		int i = 0;
+		for (Integer ordinal : expected) {
+			if (ordinals[i] != ordinal) {
+				throw new Exception("Ordinal " + ordinals[i] + " at " + i
+						+ " instead of " + ordinal);
+			}
+			if (!bitmap.contains(ordinal)) {
+				throw new Exception("Missing ordinal " + ordinal);
+			}
+			i++;
+		}
+		for (int j = 0; j < 1000; j++) {
+			int ordinal = generator.nextInt(8 * groupSize);
+			if (bitmap.contains(ordinal) != expected.contains(ordinal)) {
+				throw new Exception("contains(" + ordinal + ") is "
+						+ bitmap.contains(ordinal));
+			}
+		}
+	}
+
+	// size distinct random ordinals of a group
+	private static TreeSet<Integer> randomOrdinals(int group, int size) {
+		TreeSet<Integer> ordinals = new TreeSet<Integer>();
+		while (ordinals.size() < size) {
+			ordinals.add(group * groupSize + generator.nextInt(groupSize));
+		}
+		return ordinals;
+	}
+
+	private static RowBitmap toBitmap(TreeSet<Integer> ordinals) {
+		RowBitmap bitmap = new RowBitmap();
+		for (Integer ordinal : ordinals) {
+			bitmap.add(ordinal);
+		}
+		return bitmap;
+	}
+}
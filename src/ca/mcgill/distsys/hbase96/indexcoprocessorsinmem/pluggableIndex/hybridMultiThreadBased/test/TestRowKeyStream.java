@@ -0,0 +1,202 @@
+package ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.pluggableIndex.hybridMultiThreadBased.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+import ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.pluggableIndex.commons.RowKeyStream;
+
+public class TestRowKeyStream {
+
+	static int count = 2000;
+	static Random generator = new Random();
+
+	public static void main(String[] args) throws Exception {
+		System.out.println("starting test....");
+
+		System.out.println("Checking " + count + " random unions...");
+		for (int i = 0; i < count; i++) {
+			List<NavigableSet<byte[]>> postings = randomPostings();
+			NavigableSet<byte[]> expected = newRowSet();
+			for (NavigableSet<byte[]> posting : postings) {
+				expected.addAll(posting);
+			}
+			check(expected, RowKeyStream.union(toStreams(postings)));
+		}
+
+		System.out.println("Checking " + count + " random intersections...");
+		for (int i = 0; i < count; i++) {
+			List<NavigableSet<byte[]>> postings = randomPostings();
+			NavigableSet<byte[]> expected = newRowSet();
+			expected.addAll(postings.get(0));
+			for (NavigableSet<byte[]> posting : postings) {
+				expected.retainAll(posting);
+			}
+			check(expected, RowKeyStream.intersection(toStreams(postings)));
+		}
+
+		System.out.println("Checking an intersection of unions...");
+		for (int i = 0; i < count; i++) {
+			List<RowKeyStream> unions = new ArrayList<RowKeyStream>();
+			NavigableSet<byte[]> expected = null;
+			for (int j = 0; j < 2; j++) {
+				List<NavigableSet<byte[]>> postings = randomPostings();
+				NavigableSet<byte[]> union = newRowSet();
+				for (NavigableSet<byte[]> posting : postings) {
+					union.addAll(posting);
+				}
+				if (expected == null) {
+					expected = union;
+				} else {
+					expected.retainAll(union);
+				}
+				unions.add(RowKeyStream.union(toStreams(postings)));
+			}
+			check(expected, RowKeyStream.intersection(unions));
+		}
+
+		System.out.println("Checking that lazy postings are only read when advanced...");
+		final AtomicInteger reads = new AtomicInteger();
+		Callable<Set<byte[]>> posting = new Callable<Set<byte[]>>() {
+			@Override
+			public Set<byte[]> call() {
+				reads.incrementAndGet();
+				NavigableSet<byte[]> rows = newRowSet();
+				rows.add(new byte[] { 1 });
+				return rows;
+			}
+		};
+		List<RowKeyStream> streams = new ArrayList<RowKeyStream>();
+		streams.add(RowKeyStream.empty());
+		streams.add(RowKeyStream.lazy(posting));
+		RowKeyStream stream = RowKeyStream.intersection(streams);
+		if (stream.next() != null) {
+			throw new Exception("Intersection with an empty stream is not empty");
+		}
+		stream.close();
+		check(0, reads.get());
+		stream = RowKeyStream.lazy(posting);
+		check(0, reads.get());
+		stream.next();
+		stream.seek(new byte[] { 2 });
+		check(1, reads.get());
+
+		System.out.println("Checking that the lock is released once on close...");
+		ReentrantLock lock = new ReentrantLock();
+		lock.lock();
+		stream = RowKeyStream.unlockOnClose(RowKeyStream.empty(), lock);
+		stream.close();
+		stream.close();
+		check(0, lock.getHoldCount());
+
+		System.out.println("No exception occur");
+	}
+
+	// Reads the stream with random next() and seek() calls, and checks each
+	// row key against the expected rows
+	private static void check(NavigableSet<byte[]> expected, RowKeyStream stream)
+			throws Exception {
+		boolean started = false;
+		byte[] current = null;
+		while (true) {
+			byte[] row;
+			byte[] expectedRow;
+			if (generator.nextInt(3) == 0) {
+				byte[] target = randomRow();
+				row = stream.seek(target);
+				if (started && current == null) {
+					expectedRow = null;
+				} else if (current != null
+						&& Bytes.compareTo(current, target) >= 0) {
+					expectedRow = current;
+				} else {
+					expectedRow = expected.ceiling(target);
+				}
+			} else {
+				row = stream.next();
+				if (!started) {
+					expectedRow = expected.isEmpty() ? null : expected.first();
+				} else {
+					expectedRow = current == null ? null : expected
+							.higher(current);
+				}
+			}
+			if (row == null ? expectedRow != null : expectedRow == null
+					|| !Bytes.equals(row, expectedRow)) {
+				throw new Exception("Row " + toString(row) + " instead of "
+						+ toString(expectedRow));
+			}
+			started = true;
+			current = row;
+			if (row == null) {
+				break;
+			}
+		}
+		stream.close();
+	}
+
+	private static void check(int expected, int actual) throws Exception {
+		if (expected != actual) {
+			throw new Exception("Expected " + expected + " but was " + actual);
+		}
+	}
+
+	private static List<NavigableSet<byte[]>> randomPostings() {
+		List<NavigableSet<byte[]>> postings = new ArrayList<NavigableSet<byte[]>>();
+		int size = 1 + generator.nextInt(4);
+		for (int i = 0; i < size; i++) {
+			NavigableSet<byte[]> posting = newRowSet();
+			int rows = generator.nextInt(40);
+			for (int j = 0; j < rows; j++) {
+				posting.add(randomRow());
+			}
+			postings.add(posting);
+		}
+		return postings;
+	}
+
+	// Half of the postings are read lazily
+	private static List<RowKeyStream> toStreams(
+			List<NavigableSet<byte[]>> postings) {
+		List<RowKeyStream> streams = new ArrayList<RowKeyStream>();
+		for (final NavigableSet<byte[]> posting : postings) {
+			if (generator.nextBoolean()) {
+				streams.add(RowKeyStream.of(posting));
+			} else {
+				streams.add(RowKeyStream.lazy(new Callable<Set<byte[]>>() {
+					@Override
+					public Set<byte[]> call() {
+						return posting;
+					}
+				}));
+			}
+		}
+		return streams;
+	}
+
+	// Short keys from few bytes, so that rows are shared between postings
+	// and some are prefixes of others
+	private static byte[] randomRow() {
+		byte[] row = new byte[1 + generator.nextInt(2)];
+		for (int i = 0; i < row.length; i++) {
+			row[i] = (byte) generator.nextInt(8);
+		}
+		return row;
+	}
+
+	private static NavigableSet<byte[]> newRowSet() {
+		return new TreeSet<byte[]>(Bytes.BYTES_COMPARATOR);
+	}
+
+	private static String toString(byte[] row) {
+		return row == null ? "null" : Bytes.toStringBinary(row);
+	}
+}
@@ -0,0 +1,204 @@
+package ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.pluggableIndex.hybridMultiThreadBased.test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.regionserver.HRegion;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import ca.mcgill.distsys.hbase96.indexcommonsinmem.Util;
+import ca.mcgill.distsys.hbase96.indexcommonsinmem.proto.ByteArrayCriterion;
+import ca.mcgill.distsys.hbase96.indexcommonsinmem.proto.Column;
+import ca.mcgill.distsys.hbase96.indexcommonsinmem.proto.Criterion;
+import ca.mcgill.distsys.hbase96.indexcommonsinmem.proto.Criterion.CompareType;
+import ca.mcgill.distsys.hbase96.indexcommonsinmem.proto.IndexedColumnQuery;
+import ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.IndexedQueryPage;
+import ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.QueryResultCache;
+import ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.RegionIndex;
+import ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.protobuf.generated.IndexCoprocessorInMem.ProtoResult;
+
+// Each query runs once as a region scan (threshold 0) and once through the
+// indexes (threshold above 1); both must return the same results. Some rows
+// lack an indexed, a filtered or a projected column.
+public class TestScanStrategy {
+
+	static final byte[] FAMILY = Bytes.toBytes("cf");
+	static final Column A = new Column(FAMILY, Bytes.toBytes("a"));
+	static final Column B = new Column(FAMILY, Bytes.toBytes("b"));
+	// not indexed
+	static final Column C = new Column(FAMILY, Bytes.toBytes("c"));
+	static final Column D = new Column(FAMILY, Bytes.toBytes("d"));
+	static final String INDEX_TYPE = "ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.pluggableIndex.hybridMultiThreadBased.HybridIndex";
+	static int rowCount = 200;
+
+	static HRegion region;
+	static RegionIndex regionIndex;
+
+	public static void main(String[] args) throws Exception {
+		System.out.println("starting test....");
+		Configuration conf = HBaseConfiguration.create();
+		// every query runs, none is answered from the cache
+		conf.setInt(QueryResultCache.MAX_ENTRIES, 0);
+		File rootDir = new File(System.getProperty("java.io.tmpdir"),
+				"TestScanStrategy-" + System.currentTimeMillis());
+		HTableDescriptor desc = new HTableDescriptor(
+				TableName.valueOf("TestScanStrategy"));
+		desc.addFamily(new HColumnDescriptor(FAMILY));
+		region = HRegion.createHRegion(new HRegionInfo(desc.getTableName()),
+				new Path(rootDir.getAbsolutePath()), conf, desc);
+		try {
+			for (int i = 0; i < rowCount; i++) {
+				Put put = new Put(Bytes.toBytes(String.format("row%03d", i)));
+				if (i % 11 != 0) {
+					put.add(FAMILY, A.getQualifier(), value("a", i % 10));
+				}
+				if (i % 5 != 0) {
+					put.add(FAMILY, B.getQualifier(), value("b", i % 7));
+				}
+				if (i % 4 != 0) {
+					put.add(FAMILY, C.getQualifier(), value("c", i % 3));
+				}
+				if (i % 6 != 0) {
+					put.add(FAMILY, D.getQualifier(), value("d", i));
+				}
+				region.put(put);
+			}
+			regionIndex = new RegionIndex(6);
+			regionIndex.add(Collections.singletonList(A), region, INDEX_TYPE,
+					new Object[] { A.getFamily(), A.getQualifier() });
+			regionIndex.add(Collections.singletonList(B), region, INDEX_TYPE,
+					new Object[] { B.getFamily(), B.getQualifier() });
+
+			List<List<Column>> projections = new ArrayList<List<Column>>();
+			projections.add(new ArrayList<Column>());
+			projections.add(Arrays.asList(D));
+			projections.add(Arrays.asList(B, D));
+			projections.add(Arrays.asList(C));
+
+			System.out.println("Checking queries on one index...");
+			List<List<Criterion<?>>> selections = new ArrayList<List<Criterion<?>>>();
+			selections.add(criteria(criterion(A, CompareType.EQUAL, "a3")));
+			selections.add(criteria(criterion(A, CompareType.GREATER, "a5")));
+			selections.add(criteria(criterion(A, CompareType.LESS_OR_EQUAL,
+					"a2")));
+			selections.add(criteria(criterion(A, CompareType.PREFIX, "a")));
+			for (List<Criterion<?>> selectCriteria : selections) {
+				for (List<Column> projectColumns : projections) {
+					checkIndexQuery(selectCriteria, projectColumns);
+				}
+			}
+
+			System.out.println("Checking queries on several indexes...");
+			List<Criterion<?>> indexed = criteria(
+					criterion(A, CompareType.GREATER, "a4"),
+					criterion(B, CompareType.EQUAL, "b2"));
+			List<Criterion<?>> nonIndexed = criteria(criterion(C,
+					CompareType.EQUAL, "c1"));
+			List<Criterion<?>> none = criteria();
+			for (boolean mustPassAll : new boolean[] { true, false }) {
+				for (List<Column> projectColumns : projections) {
+					checkIndexesQuery(indexed, none, mustPassAll,
+							projectColumns, false);
+					checkIndexesQuery(indexed, nonIndexed, mustPassAll,
+							projectColumns, false);
+				}
+				checkIndexesQuery(indexed, nonIndexed, mustPassAll,
+						new ArrayList<Column>(), true);
+			}
+
+			System.out.println("No exception occur");
+		} finally {
+			HRegion.closeHRegion(region);
+		}
+	}
+
+	// Case 1 query, on the index of the criteria
+	private static void checkIndexQuery(List<Criterion<?>> selectCriteria,
+			List<Column> projectColumns) throws Exception {
+		String idxColKey = Util.concatColumnsToString(Collections
+				.singletonList(selectCriteria.get(0).getCompareColumn()));
+		List<List<ProtoResult>> results = new ArrayList<List<ProtoResult>>();
+		for (float threshold : new float[] { 0, 10 }) {
+			region.getConf().setFloat(RegionIndex.SCAN_THRESHOLD, threshold);
+			IndexedQueryPage page = IndexedQueryPage.all();
+			results.add(regionIndex.filterRowsFromCriteria(idxColKey,
+					selectCriteria, projectColumns, region, page, false));
+			checkStrategy(threshold, page);
+		}
+		check(results, selectCriteria + " " + projectColumns);
+	}
+
+	// Case 2 query, on the criteria on indexed columns and filtered by the
+	// others
+	private static void checkIndexesQuery(List<Criterion<?>> indexed,
+			List<Criterion<?>> nonIndexed, boolean mustPassAll,
+			List<Column> projectColumns, boolean keysOnly) throws Exception {
+		IndexedColumnQuery query = new IndexedColumnQuery();
+		query.setMustPassAllCriteria(mustPassAll);
+		for (Criterion<?> criterion : indexed) {
+			query.addCriterion(criterion);
+		}
+		for (Criterion<?> criterion : nonIndexed) {
+			query.addCriterion(criterion);
+		}
+		query.setColumnList(projectColumns);
+		List<List<ProtoResult>> results = new ArrayList<List<ProtoResult>>();
+		for (float threshold : new float[] { 0, 10 }) {
+			region.getConf().setFloat(RegionIndex.SCAN_THRESHOLD, threshold);
+			IndexedQueryPage page = IndexedQueryPage.all();
+			results.add(regionIndex.filterRowsFromCriteria(indexed,
+					nonIndexed, query, region, page, keysOnly));
+			checkStrategy(threshold, page);
+		}
+		check(results, indexed + " " + nonIndexed + " " + mustPassAll + " "
+				+ projectColumns + " " + keysOnly);
+	}
+
+	private static void checkStrategy(float threshold, IndexedQueryPage page)
+			throws Exception {
+		boolean scanned = page.getStrategy() == IndexedQueryPage.Strategy.REGION_SCAN;
+		if (scanned != (threshold == 0)) {
+			throw new Exception("Strategy " + page.getStrategy()
+					+ " with threshold " + threshold);
+		}
+	}
+
+	private static void check(List<List<ProtoResult>> results, String query)
+			throws Exception {
+		List<ProtoResult> scanned = results.get(0);
+		List<ProtoResult> indexed = results.get(1);
+		if (!scanned.equals(indexed)) {
+			throw new Exception("The region scan returned " + scanned.size()
+					+ " rows and the indexes " + indexed.size() + " for "
+					+ query);
+		}
+	}
+
+	private static List<Criterion<?>> criteria(Criterion<?>... criteria) {
+		return new ArrayList<Criterion<?>>(Arrays.asList(criteria));
+	}
+
+	private static Criterion<?> criterion(Column column, CompareType type,
+			String value) {
+		ByteArrayCriterion criterion = new ByteArrayCriterion(
+				Bytes.toBytes(value));
+		criterion.setCompareColumn(column);
+		criterion.setComparisonType(type);
+		return criterion;
+	}
+
+	private static byte[] value(String prefix, int i) {
+		return Bytes.toBytes(prefix + i);
+	}
+}
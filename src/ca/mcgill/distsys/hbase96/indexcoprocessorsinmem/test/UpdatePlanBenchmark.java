@@ -0,0 +1,154 @@
+package ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import ca.mcgill.distsys.hbase96.indexcommonsinmem.IndexedColumn;
+import ca.mcgill.distsys.hbase96.indexcommonsinmem.Util;
+import ca.mcgill.distsys.hbase96.indexcommonsinmem.proto.Column;
+import ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.BatchIndexUpdate;
+import ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.IndexUpdatePlan;
+import ca.mcgill.distsys.hbase96.indexcoprocessorsinmem.IndexedRowState;
+
+// Compares the compiled update plans with the former put path (column name
+// lookups, linear scans over the changed columns and concatenation of every
+// index value) for tables with 1, 4 and 16 indexes. Every put updates all
+// the indexed columns of a row that already has a value for each of them.
+public class UpdatePlanBenchmark {
+
+	private static final byte[] FAMILY = Bytes.toBytes("cf");
+	private static final int PUTS = 200000;
+	private static final int ROUNDS = 5;
+
+	public static void main(String[] args) {
+		for (int indexCount : new int[] { 1, 4, 16 }) {
+			List<IndexedColumn> indexes = buildIndexes(indexCount);
+			List<Put> puts = buildPuts(indexes);
+
+			long legacy = Long.MAX_VALUE;
+			long compiled = Long.MAX_VALUE;
+			for (int round = 0; round < ROUNDS; round++) {
+				legacy = Math.min(legacy, runLegacy(indexes, puts));
+				compiled = Math.min(compiled, runCompiled(indexes, puts));
+			}
+			System.out.println(indexCount + " indexes: legacy "
+					+ (legacy / PUTS) + " ns/put, compiled "
+					+ (compiled / PUTS) + " ns/put");
+		}
+	}
+
+	// Half single-column indexes, half two-column indexes sharing columns
+	private static List<IndexedColumn> buildIndexes(int indexCount) {
+		List<IndexedColumn> indexes = new ArrayList<IndexedColumn>();
+		for (int i = 0; i < indexCount; i++) {
+			List<Column> colList = new ArrayList<Column>();
+			colList.add(new Column(FAMILY, Bytes.toBytes("c" + i)));
+			if (i % 2 == 1) {
+				colList.add(new Column(FAMILY, Bytes.toBytes("c" + (i - 1))));
+			}
+			indexes.add(new IndexedColumn(colList));
+		}
+		return indexes;
+	}
+
+	private static List<Put> buildPuts(List<IndexedColumn> indexes) {
+		List<Put> puts = new ArrayList<Put>(PUTS);
+		for (int i = 0; i < PUTS; i++) {
+			Put put = new Put(Bytes.toBytes("row" + i));
+			for (int c = 0; c < indexes.size(); c++) {
+				put.add(FAMILY, Bytes.toBytes("c" + c), Bytes.toBytes("v" + i));
+			}
+			// a non indexed column
+			put.add(FAMILY, Bytes.toBytes("other"), Bytes.toBytes(i));
+			puts.add(put);
+		}
+		return puts;
+	}
+
+	private static long runCompiled(List<IndexedColumn> indexes, List<Put> puts) {
+		IndexUpdatePlan plan = IndexUpdatePlan.compile(indexes);
+		long start = System.nanoTime();
+		BatchIndexUpdate batchUpdate = new BatchIndexUpdate(plan);
+		for (Put put : puts) {
+			IndexedRowState rowState = new IndexedRowState(plan);
+			for (int ordinal = 0; ordinal < plan.getColumnCount(); ordinal++) {
+				rowState.put(ordinal, Bytes.toBytes("old"));
+			}
+			batchUpdate.applyPut(put, rowState);
+		}
+		int deltas = batchUpdate.getDeltas().size();
+		long elapsed = System.nanoTime() - start;
+		if (deltas != indexes.size()) {
+			throw new IllegalStateException("Unexpected deltas: " + deltas);
+		}
+		return elapsed;
+	}
+
+	private static long runLegacy(List<IndexedColumn> indexes, List<Put> puts) {
+		HashMap<String, Set<IndexedColumn>> singleMappedIndex = new HashMap<String, Set<IndexedColumn>>();
+		for (IndexedColumn index : indexes) {
+			for (Column column : index.getColumnList()) {
+				Set<IndexedColumn> set = singleMappedIndex.get(column.toString());
+				if (set == null) {
+					set = new HashSet<IndexedColumn>();
+					singleMappedIndex.put(column.toString(), set);
+				}
+				set.add(index);
+			}
+		}
+
+		long start = System.nanoTime();
+		int deltas = 0;
+		for (Put put : puts) {
+			TreeMap<byte[], byte[]> currentRow = new TreeMap<byte[], byte[]>(
+					Bytes.BYTES_COMPARATOR);
+			for (String column : singleMappedIndex.keySet()) {
+				currentRow.put(Bytes.toBytes(column), Bytes.toBytes("old"));
+			}
+
+			Set<IndexedColumn> changedIndexes = new HashSet<IndexedColumn>();
+			List<String> changedColumns = new ArrayList<String>();
+			List<byte[]> changedValues = new ArrayList<byte[]>();
+			for (Cell cell : put.getFamilyCellMap().get(FAMILY)) {
+				String column = new Column(CellUtil.cloneFamily(cell),
+						CellUtil.cloneQualifier(cell)).toString();
+				Set<IndexedColumn> set = singleMappedIndex.get(column);
+				if (set != null) {
+					changedIndexes.addAll(set);
+					changedColumns.add(column);
+					changedValues.add(CellUtil.cloneValue(cell));
+				}
+			}
+
+			for (IndexedColumn index : changedIndexes) {
+				byte[] concatOldValue = null;
+				byte[] concatNewValue = null;
+				for (Column column : index.getColumnList()) {
+					String name = column.toString();
+					byte[] current = currentRow.get(Bytes.toBytes(name));
+					int pos = changedColumns.indexOf(name);
+					concatOldValue = Util.concatByteArray(concatOldValue, current);
+					concatNewValue = Util.concatByteArray(concatNewValue,
+							pos != -1 ? changedValues.get(pos) : current);
+				}
+				if (!Bytes.equals(concatOldValue, concatNewValue)) {
+					deltas++;
+				}
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+		if (deltas != (long) indexes.size() * puts.size()) {
+			throw new IllegalStateException("Unexpected deltas: " + deltas);
+		}
+		return elapsed;
+	}
+}